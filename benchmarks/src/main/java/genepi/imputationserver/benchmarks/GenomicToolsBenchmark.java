@@ -0,0 +1,131 @@
+package genepi.imputationserver.benchmarks;
+
+import genepi.imputationserver.util.AlleleCheck;
+import genepi.imputationserver.util.ChiSquareObject;
+import genepi.imputationserver.util.GenomicTools;
+import genepi.imputationserver.util.GenotypeCounts;
+import genepi.io.legend.LegendEntry;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Per-site checks of the quality control: allele classification, genotype
+ * counting on raw vcf lines and the chi square test. Score is sites per
+ * second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GenomicToolsBenchmark {
+
+	public static final int SITES = 1024;
+
+	private static final char[] ALLELES = { 'A', 'C', 'G', 'T', 'A', 'C', 'G', 'T', 'N', '-' };
+
+	@Param({ "100", "1000" })
+	public int samples;
+
+	private char[] studyRef = new char[SITES];
+
+	private char[] studyAlt = new char[SITES];
+
+	private char[] legendRef = new char[SITES];
+
+	private char[] legendAlt = new char[SITES];
+
+	private String[] lines = new String[SITES];
+
+	private GenotypeCounts[] counts = new GenotypeCounts[SITES];
+
+	private LegendEntry[] entries = new LegendEntry[SITES];
+
+	private GenotypeCounts scanCounts;
+
+	@Setup
+	public void setup() {
+
+		Random random = new Random(4711);
+
+		for (int i = 0; i < SITES; i++) {
+
+			studyRef[i] = ALLELES[random.nextInt(ALLELES.length)];
+			studyAlt[i] = ALLELES[random.nextInt(ALLELES.length)];
+			legendRef[i] = ALLELES[random.nextInt(ALLELES.length)];
+			legendAlt[i] = ALLELES[random.nextInt(ALLELES.length)];
+
+			double frequency = 0.01 + random.nextDouble() * 0.49;
+			StringBuilder line = new StringBuilder("20\t" + (i + 1) + "\trs" + i + "\tA\tC\t.\tPASS\t.\tGT");
+			for (int j = 0; j < samples; j++) {
+				line.append('\t');
+				if (random.nextInt(100) == 0) {
+					line.append(".|.");
+				} else {
+					line.append(random.nextDouble() < frequency ? '1' : '0');
+					line.append('|');
+					line.append(random.nextDouble() < frequency ? '1' : '0');
+				}
+			}
+			lines[i] = line.toString();
+
+			counts[i] = new GenotypeCounts(samples);
+			counts[i].scan(lines[i]);
+
+			LegendEntry entry = new LegendEntry();
+			entry.setPosition(i + 1);
+			entry.setAlleleA('A');
+			entry.setAlleleB('C');
+			entry.setFrequencyA((float) (1 - frequency));
+			entry.setFrequencyB((float) frequency);
+			entries[i] = entry;
+
+		}
+
+		scanCounts = new GenotypeCounts(samples);
+
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SITES)
+	public void classify(Blackhole blackhole) {
+		for (int i = 0; i < SITES; i++) {
+			AlleleCheck check = GenomicTools.classify(studyRef[i], studyAlt[i], legendRef[i], legendAlt[i]);
+			blackhole.consume(check);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SITES)
+	public void scanGenotypes(Blackhole blackhole) {
+		for (int i = 0; i < SITES; i++) {
+			blackhole.consume(scanCounts.scan(lines[i]));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SITES)
+	public void chiSquare(Blackhole blackhole) {
+		for (int i = 0; i < SITES; i++) {
+			ChiSquareObject result = GenomicTools.chiSquare(counts[i], entries[i], false, 2535);
+			blackhole.consume(result);
+		}
+	}
+
+}
@@ -0,0 +1,96 @@
+package genepi.imputationserver.benchmarks;
+
+import genepi.imputationserver.util.BinaryLegendConverter;
+import genepi.imputationserver.util.BinaryLegendIndex;
+import genepi.imputationserver.util.LegendIndex;
+import genepi.imputationserver.util.TextLegendIndex;
+import genepi.io.FileUtil;
+import genepi.io.legend.LegendEntry;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Legend lookups of all study positions in ascending order (the access
+ * pattern of the quality control) on the text legend (LegendFileReader) and
+ * the memory-mapped binary legend. Score is lookups per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LegendIndexBenchmark {
+
+	public static final int SNPS = 100000;
+
+	@Param({ "1000", "10000" })
+	public int density;
+
+	@Param({ "text", "binary" })
+	public String format;
+
+	private String folder;
+
+	private int[] positions;
+
+	private LegendIndex index;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+
+		folder = Files.createTempDirectory("legend-benchmark").toString();
+
+		SyntheticData data = new SyntheticData(1, SNPS, density);
+		String legendFilename = SyntheticData.getLegendFilename(folder);
+		data.writeLegend(legendFilename);
+
+		positions = new int[SNPS];
+		for (int i = 0; i < SNPS; i++) {
+			positions[i] = data.getPosition(i);
+		}
+
+		if (format.equals("binary")) {
+			String binaryFilename = BinaryLegendIndex.getFilename(legendFilename);
+			BinaryLegendConverter.convert(legendFilename, binaryFilename);
+			index = new BinaryLegendIndex(binaryFilename, SyntheticData.POPULATION);
+		} else {
+			index = new TextLegendIndex(legendFilename, SyntheticData.POPULATION);
+		}
+
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		index.close();
+		FileUtil.deleteDirectory(folder);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SNPS)
+	public void findByPosition(Blackhole blackhole) throws IOException {
+		for (int position : positions) {
+			LegendEntry entry = index.findByPosition(position);
+			blackhole.consume(entry);
+		}
+	}
+
+}
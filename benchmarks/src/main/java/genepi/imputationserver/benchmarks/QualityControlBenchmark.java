@@ -0,0 +1,103 @@
+package genepi.imputationserver.benchmarks;
+
+import genepi.imputationserver.steps.qc.ChunkReader;
+import genepi.imputationserver.steps.qc.PanelContext;
+import genepi.imputationserver.steps.qc.QualityControlProcessor;
+import genepi.imputationserver.steps.qc.QualityControlResult;
+import genepi.imputationserver.steps.vcf.VcfChunk;
+import genepi.io.FileUtil;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Quality control of one chunk as executed by QualityControlMapper (tabix
+ * query, genotype counting, legend lookup, allele checks, chi square and
+ * writing the filtered chunk). Score is vcf lines per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class QualityControlBenchmark {
+
+	public static final int SNPS = 10000;
+
+	@Param({ "100", "1000" })
+	public int samples;
+
+	@Param({ "1000", "10000" })
+	public int density;
+
+	@Param({ "true", "false" })
+	public boolean binaryLegend;
+
+	private String folder;
+
+	private VcfChunk chunk;
+
+	private PanelContext panel;
+
+	private ChunkReader reader;
+
+	private QualityControlProcessor processor;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+
+		folder = Files.createTempDirectory("qc-benchmark").toString();
+
+		SyntheticData data = new SyntheticData(samples, SNPS, density);
+		chunk = data.create(folder);
+
+		String legendFolder = FileUtil.path(folder, "legend");
+		if (!binaryLegend) {
+			FileUtil.deleteFile(SyntheticData.getLegendFilename(legendFolder) + ".bin");
+		}
+
+		panel = new PanelContext("phase3", SyntheticData.POPULATION, legendFolder, SyntheticData.LEGEND_PATTERN,
+				0);
+
+		String output = FileUtil.path(folder, "output");
+		String removedSnps = FileUtil.path(folder, "removed");
+		FileUtil.createDirectory(output);
+		FileUtil.createDirectory(removedSnps);
+		processor = new QualityControlProcessor(panel, output, removedSnps);
+
+		reader = new ChunkReader(chunk.getVcfFilename(), chunk.getIndexFilename(),
+				FileUtil.path(folder, "local.vcf.gz.tbi"));
+
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		reader.close();
+		panel.close();
+		FileUtil.deleteDirectory(folder);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SNPS)
+	public QualityControlResult processChunk() throws IOException, InterruptedException {
+		return processor.process(chunk, reader);
+	}
+
+}
@@ -0,0 +1,221 @@
+package genepi.imputationserver.benchmarks;
+
+import genepi.imputationserver.steps.vcf.VcfChunk;
+import genepi.imputationserver.util.BinaryLegendConverter;
+import genepi.imputationserver.util.BinaryLegendIndex;
+import genepi.io.FileUtil;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.tribble.index.IndexFactory;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndex;
+import htsjdk.variant.vcf.VCFCodec;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * Creates a synthetic study (bgzipped vcf file with tabix index) and a
+ * matching reference panel (text and binary legend file) for one chromosome.
+ * The number of samples and the SNP density (SNPs per Mb) are free
+ * parameters, all other properties are drawn from a seeded random generator
+ * so two runs with the same parameters produce the same files.
+ *
+ * Sites in the study: 80% match the reference, 5% allele switches, 5% strand
+ * swaps, 5% allele mismatches and 5% are not in the reference. 1% of the
+ * genotypes are missing.
+ */
+public class SyntheticData {
+
+	public static final String CHROMOSOME = "20";
+
+	public static final String LEGEND_PATTERN = "chr$chr.legend";
+
+	public static final String POPULATION = "eur";
+
+	private static final char[] BASES = { 'A', 'C', 'G', 'T' };
+
+	private int samples;
+
+	private int snps;
+
+	private int density;
+
+	private long seed = 4711;
+
+	public SyntheticData(int samples, int snps, int density) {
+		this.samples = samples;
+		this.snps = snps;
+		this.density = density;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public int getSamples() {
+		return samples;
+	}
+
+	public int getSnps() {
+		return snps;
+	}
+
+	public int getPosition(int snp) {
+		return 1 + (int) (snp * 1000000L / density);
+	}
+
+	public int getStart() {
+		return 1;
+	}
+
+	public int getEnd() {
+		return getPosition(snps - 1);
+	}
+
+	/**
+	 * creates the vcf file, the legend files and returns a chunk that covers
+	 * all snps.
+	 */
+	public VcfChunk create(String folder) throws IOException {
+
+		FileUtil.createDirectory(folder);
+
+		String vcfFilename = FileUtil.path(folder, "study.chr" + CHROMOSOME + ".vcf.gz");
+		writeVcf(vcfFilename);
+
+		String legendFolder = FileUtil.path(folder, "legend");
+		FileUtil.createDirectory(legendFolder);
+		String legendFilename = getLegendFilename(legendFolder);
+		writeLegend(legendFilename);
+		BinaryLegendConverter.convert(legendFilename, BinaryLegendIndex.getFilename(legendFilename));
+
+		VcfChunk chunk = new VcfChunk();
+		chunk.setChromosome(CHROMOSOME);
+		chunk.setStart(getStart());
+		chunk.setEnd(getEnd());
+		chunk.setPhased(true);
+		chunk.setVcfFilename(vcfFilename);
+		chunk.setIndexFilename(vcfFilename + ".tbi");
+		chunk.setSnps(snps);
+		chunk.setSamples(samples);
+		return chunk;
+
+	}
+
+	public static String getLegendFilename(String legendFolder) {
+		return FileUtil.path(legendFolder, LEGEND_PATTERN.replaceAll("\\$chr", CHROMOSOME));
+	}
+
+	/**
+	 * writes a bgzipped vcf file and its tabix index.
+	 */
+	public void writeVcf(String filename) throws IOException {
+
+		Random random = new Random(seed);
+		Random genotypes = new Random(seed + 2);
+
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new BlockCompressedOutputStream(filename)));
+		writer.write("##fileformat=VCFv4.1\n");
+		writer.write("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">\n");
+		writer.write("##contig=<ID=" + CHROMOSOME + ">\n");
+		writer.write("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT");
+		for (int i = 0; i < samples; i++) {
+			writer.write("\tSAMPLE" + (i + 1));
+		}
+		writer.write("\n");
+
+		StringBuilder line = new StringBuilder();
+		for (int snp = 0; snp < snps; snp++) {
+
+			int ref = random.nextInt(4);
+			int alt = (ref + 1 + random.nextInt(3)) % 4;
+			double frequency = 0.01 + random.nextDouble() * 0.49;
+
+			line.setLength(0);
+			line.append(CHROMOSOME).append('\t').append(getPosition(snp)).append("\trs").append(snp + 1)
+					.append('\t').append(BASES[ref]).append('\t').append(BASES[alt]).append("\t.\tPASS\t.\tGT");
+
+			for (int i = 0; i < samples; i++) {
+				line.append('\t');
+				if (genotypes.nextInt(100) == 0) {
+					line.append(".|.");
+				} else {
+					line.append(genotypes.nextDouble() < frequency ? '1' : '0');
+					line.append('|');
+					line.append(genotypes.nextDouble() < frequency ? '1' : '0');
+				}
+			}
+			line.append('\n');
+			writer.write(line.toString());
+
+		}
+		writer.close();
+
+		TabixIndex index = IndexFactory.createTabixIndex(new File(filename), new VCFCodec(), TabixFormat.VCF, null);
+		index.writeBasedOnFeatureFile(new File(filename));
+
+	}
+
+	/**
+	 * writes a text legend file (id position a0 a1 eur.aaf) with the same
+	 * alleles as the vcf file and one additional site between two study
+	 * sites.
+	 */
+	public void writeLegend(String filename) throws IOException {
+
+		// same sites as in writeVcf
+		Random random = new Random(seed);
+		Random legendRandom = new Random(seed + 1);
+
+		Writer writer = new BufferedWriter(new FileWriter(filename));
+		writer.write("id position a0 a1 " + POPULATION + ".aaf\n");
+
+		for (int snp = 0; snp < snps; snp++) {
+
+			int ref = random.nextInt(4);
+			int alt = (ref + 1 + random.nextInt(3)) % 4;
+			double frequency = 0.01 + random.nextDouble() * 0.49;
+
+			int type = legendRandom.nextInt(100);
+			int legendRef = ref;
+			int legendAlt = alt;
+			if (type < 80) {
+				// match
+			} else if (type < 85) {
+				legendRef = alt;
+				legendAlt = ref;
+			} else if (type < 90) {
+				legendRef = 3 - ref;
+				legendAlt = 3 - alt;
+			} else if (type < 95) {
+				for (int base = 0; base < 4; base++) {
+					if (base != ref && base != alt) {
+						legendAlt = base;
+					}
+				}
+			} else {
+				legendRef = -1;
+			}
+
+			int position = getPosition(snp);
+			if (legendRef != -1) {
+				writer.write("rs" + (snp + 1) + " " + position + " " + BASES[legendRef] + " " + BASES[legendAlt]
+						+ " " + (float) frequency + "\n");
+			}
+
+			// reference only site
+			if (getPosition(snp + 1) - position > 1) {
+				writer.write("ref" + (snp + 1) + " " + (position + 1) + " A G " + legendRandom.nextFloat() + "\n");
+			}
+
+		}
+		writer.close();
+
+	}
+
+}
@@ -0,0 +1,80 @@
+package genepi.imputationserver.benchmarks;
+
+import genepi.imputationserver.steps.vcf.VcfChunk;
+import genepi.imputationserver.steps.vcf.VcfFile;
+import genepi.imputationserver.steps.vcf.VcfFileUtil;
+import genepi.imputationserver.util.FileMerger;
+import genepi.imputationserver.util.FileMerger.BgzipSplitOutputStream;
+import genepi.io.FileUtil;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole-file passes over a vcf file: loading and chunking an uploaded file
+ * (input validation) and splitting an imputed file into header and data
+ * (imputation mapper). Score is vcf lines per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class VcfFileBenchmark {
+
+	public static final int SNPS = 10000;
+
+	@Param({ "100", "1000" })
+	public int samples;
+
+	@Param({ "1000", "10000" })
+	public int density;
+
+	private String folder;
+
+	private VcfChunk chunk;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		folder = Files.createTempDirectory("vcf-benchmark").toString();
+		chunk = new SyntheticData(samples, SNPS, density).create(folder);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		FileUtil.deleteDirectory(folder);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SNPS)
+	public VcfFile load() throws IOException {
+		return VcfFileUtil.load(chunk.getVcfFilename(), 20000000, false);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SNPS)
+	public void splitIntoHeaderAndData() throws IOException {
+		FileMerger.splitIntoHeaderAndData(chunk.getVcfFilename(),
+				new BgzipSplitOutputStream(new FileOutputStream(FileUtil.path(folder, "header.dose.vcf.gz"))),
+				new BgzipSplitOutputStream(new FileOutputStream(FileUtil.path(folder, "data.dose.vcf.gz"))));
+	}
+
+}
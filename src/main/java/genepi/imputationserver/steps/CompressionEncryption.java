@@ -2,40 +2,37 @@ package genepi.imputationserver.steps;
 
 import genepi.hadoop.HdfsUtil;
 import genepi.hadoop.PreferenceStore;
-import genepi.hadoop.command.Command;
 import genepi.hadoop.common.WorkflowContext;
 import genepi.hadoop.common.WorkflowStep;
-import genepi.imputationserver.steps.vcf.MergedVcfFile;
-import genepi.imputationserver.util.FileMerger;
+import genepi.imputationserver.steps.export.ChromosomeExport;
+import genepi.imputationserver.steps.export.ExportQueue;
 import genepi.io.FileUtil;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-import net.lingala.zip4j.core.ZipFile;
-import net.lingala.zip4j.model.ZipParameters;
-import net.lingala.zip4j.util.Zip4jConstants;
+import net.lingala.zip4j.exception.ZipException;
 
 import org.apache.commons.lang.RandomStringUtils;
-import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FileStatus;
-import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.Path;
 
 
 public class CompressionEncryption extends WorkflowStep {
 
 	@Override
-	public boolean run(WorkflowContext context) {
+	public boolean run(final WorkflowContext context) {
 
 		String workingDirectory = getFolder(InputValidation.class);
 
 		String output = context.get("outputimputation");
-		String localOutput = context.get("local");
+		final String localOutput = context.get("local");
 
 		// read config if mails should be sent
 		String folderConfig = getFolder(CompressionEncryption.class);
@@ -52,7 +49,7 @@ public class CompressionEncryption extends WorkflowStep {
 		}
 
 
-		String password;
+		final String password;
 
 		if (notification.equals("yes")) {
 			// create one-time password
@@ -60,84 +57,70 @@ public class CompressionEncryption extends WorkflowStep {
 		} else {
 			password = "imputation@michigan";
 		}
-		try {
-
-			context.beginTask("Export data...");
-
-			List<String> folders = HdfsUtil.getDirectories(output);
-
-			// export all chromosomes
-
-			for (String folder : folders) {
-
-				String name = FileUtil.getFilename(folder);
-				context.println("Export and merge chromosome " + name);
 
-				// create temp fir
-				String temp = FileUtil.path(localOutput, "temp");
-				FileUtil.createDirectory(temp);
+		// chromosomes are exported in parallel
+		int threads = ExportQueue.getThreads(store);
 
-				// output files
-				String doseOutput = FileUtil.path(temp, "chr" + name + ".info.gz");
-				String vcfOutput = FileUtil.path(temp, "chr" + name + ".dose.vcf.gz");
+		final String tabix = FileUtil.path(workingDirectory, "bin", "tabix");
+		String temp = FileUtil.path(localOutput, "temp");
 
-				// merge all info files
-				FileMerger.mergeAndGz(doseOutput, folder, true, ".info");
+		ExecutorService pool = null;
 
-				List<String> dataFiles = findFiles(folder, ".data.dose.vcf.gz");
-				List<String> headerFiles = findFiles(folder, ".header.dose.vcf.gz");
+		try {
 
-				MergedVcfFile vcfFile = new MergedVcfFile(vcfOutput);
+			context.beginTask("Export data...");
 
-				// add one header
-				// TODO: check number of samples per chunk....
-				String header = headerFiles.get(0);
-				vcfFile.addFile(HdfsUtil.open(header));
+			// chromosomes and results of additional panels
+			List<String> folders = new Vector<String>();
+			for (String folder : HdfsUtil.getDirectories(output)) {
+				folders.addAll(ChromosomeExport.getFolders(folder));
+			}
 
-				// add data files
-				for (String file : dataFiles) {
-					context.println("Read file " + file);
-					vcfFile.addFile(HdfsUtil.open(file));
-				}
+			// export all chromosomes, chr_<name>.zip is created by one thread
+			pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, folders.size())));
+			CompletionService<String> service = new ExecutorCompletionService<String>(pool);
 
-				vcfFile.close();
+			for (String folder : folders) {
+				final String chromosomeFolder = folder;
+				final String chromosomeTemp = FileUtil.path(temp, ChromosomeExport.getId(folder));
+				service.submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						exportChromosome(chromosomeFolder, chromosomeTemp, localOutput, password, tabix, context);
+						return ChromosomeExport.getId(chromosomeFolder);
+					}
+				});
+			}
 
-				Command tabix = new Command(FileUtil.path(workingDirectory, "bin", "tabix"));
-				tabix.setSilent(false);
-				tabix.setParams("-f", vcfOutput);
-				if (tabix.execute() != 0) {
-					context.endTask("Error during index creation: " + tabix.getStdOut(), WorkflowContext.ERROR);
-					return false;
+			// stop after the first failure
+			for (int i = 0; i < folders.size(); i++) {
+				String name = service.take().get();
+				synchronized (context) {
+					context.println("Exported chromosome " + name);
+					context.updateTask("Exported " + (i + 1) + " of " + folders.size() + " chromosomes...",
+							WorkflowContext.RUNNING);
 				}
-
-				ZipParameters param = new ZipParameters();
-				param.setEncryptFiles(true);
-				param.setPassword(password);
-				param.setEncryptionMethod(Zip4jConstants.ENC_METHOD_STANDARD);
-
-				// create zip file
-				ArrayList<File> files = new ArrayList<File>();
-				files.add(new File(vcfOutput));
-				files.add(new File(vcfOutput + ".tbi"));
-				files.add(new File(doseOutput));
-
-				ZipFile file = new ZipFile(new File(FileUtil.path(localOutput, "chr_" + name + ".zip")));
-				file.createZipFile(files, param);
-
-				// delete temp dir
-				FileUtil.deleteDirectory(temp);
-
 			}
 
+			FileUtil.deleteDirectory(temp);
+
 			// delete temporary files
 			HdfsUtil.delete(output);
 
 			context.endTask("Exported data.", WorkflowContext.OK);
 
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+			context.endTask("Data compression failed: " + e.getCause().getMessage(), WorkflowContext.ERROR);
+			return false;
 		} catch (Exception e) {
 			e.printStackTrace();
 			context.endTask("Data compression failed: " + e.getMessage(), WorkflowContext.ERROR);
 			return false;
+		} finally {
+			if (pool != null) {
+				pool.shutdownNow();
+			}
 		}
 
 		// submit counters!
@@ -186,23 +169,38 @@ public class CompressionEncryption extends WorkflowStep {
 
 	}
 
-	private List<String> findFiles(String folder, String pattern) throws IOException {
-
-		Configuration conf = new Configuration();
-
-		FileSystem fileSystem = FileSystem.get(conf);
-		Path pathFolder = new Path(folder);
-		FileStatus[] files = fileSystem.listStatus(pathFolder);
-
-		List<String> dataFiles = new Vector<String>();
-		for (FileStatus file : files) {
-			if (!file.isDir() && !file.getPath().getName().startsWith("_")
-					&& file.getPath().getName().endsWith(pattern)) {
-				dataFiles.add(file.getPath().toString());
+	/**
+	 * merges, indexes and encrypts the results of one chromosome. Chromosomes
+	 * prepared by the imputation step (see ExportQueue) are only encrypted,
+	 * indexed chunks are streamed into the zip file. Otherwise the files are
+	 * merged in the temp folder of the chromosome.
+	 */
+	private void exportChromosome(String folder, String temp, String localOutput, String password, String tabixCommand,
+			WorkflowContext context) throws IOException, ZipException {
+
+		ChromosomeExport export = new ChromosomeExport(folder, temp);
+		export.setTabixCommand(tabixCommand);
+
+		String zipFilename = FileUtil.path(localOutput, "chr_" + export.getId() + ".zip");
+
+		if (export.isPrepared()) {
+			export.zip(zipFilename, password);
+		} else if (export.isIndexed()) {
+			synchronized (context) {
+				context.println("Export chromosome " + export.getId());
 			}
+			export.export(zipFilename, password);
+		} else {
+			synchronized (context) {
+				context.println("Export and merge chromosome " + export.getId());
+			}
+			export.prepare();
+			export.zip(zipFilename, password);
 		}
-		Collections.sort(dataFiles);
-		return dataFiles;
+
+		// delete temp dir
+		export.cleanup();
+
 	}
 
 }
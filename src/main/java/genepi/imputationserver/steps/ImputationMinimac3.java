@@ -1,23 +1,54 @@
 package genepi.imputationserver.steps;
 
 import genepi.hadoop.HadoopJob;
+import genepi.hadoop.HadoopUtil;
 import genepi.hadoop.HdfsUtil;
+import genepi.hadoop.PreferenceStore;
 import genepi.hadoop.common.ContextLog;
 import genepi.hadoop.common.WorkflowContext;
+import genepi.hadoop.io.HdfsLineWriter;
+import genepi.imputationserver.steps.export.ChromosomeExport;
+import genepi.imputationserver.steps.export.ExportQueue;
+import genepi.imputationserver.steps.imputationMinimac3.ChromosomePhasing;
+import genepi.imputationserver.steps.imputationMinimac3.ChromosomeScheduler;
+import genepi.imputationserver.steps.imputationMinimac3.ChunkResultCache;
+import genepi.imputationserver.steps.imputationMinimac3.ImputationChunkProcessor;
 import genepi.imputationserver.steps.imputationMinimac3.ImputationJobMinimac3;
+import genepi.imputationserver.steps.imputationMinimac3.LocalImputation;
+import genepi.imputationserver.steps.vcf.VcfChunk;
 import genepi.imputationserver.util.GeneticMap;
+import genepi.imputationserver.util.LocalEngine;
 import genepi.imputationserver.util.MapList;
+import genepi.imputationserver.util.ParallelBgzfOutputStream;
 import genepi.imputationserver.util.ParallelHadoopJobStep;
 import genepi.imputationserver.util.RefPanel;
 import genepi.imputationserver.util.RefPanelList;
 import genepi.io.FileUtil;
+import genepi.io.text.LineReader;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.RunningJob;
 
 public class ImputationMinimac3 extends ParallelHadoopJobStep {
 
+	// one job per chromosome
+	public static final int PARALLEL_JOBS = 25;
+
+	// all chromosomes in one job (see ImputationJobMinimac3)
+	public static final String SINGLE_JOB = "minimac.single.job";
+
+	public static final String ALL_CHROMOSOMES = "all";
+
 	Map<String, HadoopJob> jobs = null;
 
 	boolean error = false;
@@ -28,9 +59,92 @@ public class ImputationMinimac3 extends ParallelHadoopJobStep {
 
 	private boolean running = true;
 
+	// prepares the export of finished chromosomes (incremental export)
+	private ExportQueue exportQueue = null;
+
+	private String output;
+
+	private String exportTemp;
+
+	private String tabixCommand;
+
+	// longest job first, priorities updated by job progress
+	private ChromosomeScheduler scheduler = null;
+
+	private boolean dynamicPriorities = false;
+
+	private boolean singleJob = false;
+
+	// states of the chromosomes of the single job
+	private Map<String, Integer> chromosomeStates = new ConcurrentHashMap<String, Integer>();
+
+	private Map<String, String> chunkFiles = new HashMap<String, String>();
+
+	// retry of missing chunks instead of killing all jobs
+	public static final String RETRY_ATTEMPTS = "minimac.retry.attempts";
+
+	public static final String RETRY_WINDOW = "minimac.retry.window";
+
+	public static final String RETRY_MEMORY = "minimac.retry.memory";
+
+	private int retryAttempts = 0;
+
+	private String retryWindow;
+
+	private String retryMemory;
+
+	private Map<String, Integer> retries = new ConcurrentHashMap<String, Integer>();
+
+	// chunks imputed before the last retry (single job)
+	private Map<String, Integer> skippedChunks = new ConcurrentHashMap<String, Integer>();
+
+	// whole-chromosome phasing, vcores per map task
+	public static final String CHROMOSOME_PHASING = "minimac.phasing.chromosome";
+
+	public static final String PHASING_VCORES = "minimac.phasing.vcores";
+
+	public static final int DEFAULT_PHASING_VCORES = 4;
+
+	// memory of a map task on MR1 (see ImputationJobMinimac3.setChromosomePhasing)
+	public static final String PHASING_MEMORY = "minimac.phasing.memory";
+
+	private int phasingVcores = 0;
+
+	private String phasingMemory = null;
+
+	// job settings
+	private String folder;
+
+	private String input;
+
+	private String logFolder;
+
+	private String queue;
+
+	private String reference;
+
+	private String phasing;
+
+	private String rounds;
+
+	private String window;
+
+	private String population;
+
+	private boolean noCache;
+
+	private String minimacBin;
+
+	private RefPanel panel;
+
+	// imputed with the phased chunks of the first panel
+	private List<RefPanel> additionalPanels = new Vector<RefPanel>();
+
+	private GeneticMap map;
+
 	public ImputationMinimac3() {
-		super(10);
-		jobs = new HashMap<String, HadoopJob>();
+		super(PARALLEL_JOBS);
+		jobs = new ConcurrentHashMap<String, HadoopJob>();
 	}
 
 	@Override
@@ -42,21 +156,21 @@ public class ImputationMinimac3 extends ParallelHadoopJobStep {
 	@Override
 	public boolean run(WorkflowContext context) {
 
-		String folder = getFolder(ImputationMinimac3.class);
+		folder = getFolder(ImputationMinimac3.class);
 
 		// inputs
-		String input = context.get("mafchunkfile");
-		String reference = context.get("refpanel");
-		String phasing = context.get("phasing");
-		String rounds = context.get("rounds");
-		String window = context.get("window");
-		String population = context.get("population");
+		input = context.get("mafchunkfile");
+		reference = context.get("refpanel");
+		phasing = context.get("phasing");
+		rounds = context.get("rounds");
+		window = context.get("window");
+		population = context.get("population");
 		
-		String queue = "default";
+		queue = "default";
 		queue = context.get("queues");
 		
-		boolean noCache = false;
-		String minimacBin = "minimac";
+		noCache = false;
+		minimacBin = "minimac";
 
 		if (context.get("nocache") != null) {
 			noCache = context.get("nocache").equals("yes");
@@ -67,8 +181,8 @@ public class ImputationMinimac3 extends ParallelHadoopJobStep {
 		}
 
 		// outputs
-		String output = context.get("outputimputation");
-		String log = context.get("logfile");
+		output = context.get("outputimputation");
+		logFolder = context.get("logfile");
 
 		if (!HdfsUtil.exists(input)) {
 			context.error("No chunks passed the QC step.");
@@ -88,7 +202,7 @@ public class ImputationMinimac3 extends ParallelHadoopJobStep {
 			return false;
 		}
 
-		RefPanel panel = panels.getById(reference);
+		panel = panels.getById(reference);
 
 		context.println("Reference Panel: ");
 		context.println("  Name: " + reference);
@@ -96,6 +210,27 @@ public class ImputationMinimac3 extends ParallelHadoopJobStep {
 		context.println("  Legend: " + panel.getLegend());
 		context.println("  Version: " + panel.getVersion());
 
+		// additional panels, QC and phasing are done with the first panel
+		String panelIds = context.get("panels");
+		if (panelIds != null && !panelIds.trim().isEmpty()) {
+			for (String id : panelIds.split(",")) {
+				id = id.trim();
+				if (id.isEmpty() || id.equals(reference)) {
+					continue;
+				}
+				RefPanel additionalPanel = panels.getById(id);
+				if (additionalPanel == null) {
+					context.error("Reference panel " + id + " not found.");
+					return false;
+				}
+				additionalPanels.add(additionalPanel);
+				context.println("Additional Reference Panel: ");
+				context.println("  Name: " + id);
+				context.println("  Location: " + additionalPanel.getHdfs());
+				context.println("  Version: " + additionalPanel.getVersion());
+			}
+		}
+
 		// load maps
 		MapList maps = null;
 		try {
@@ -107,62 +242,78 @@ public class ImputationMinimac3 extends ParallelHadoopJobStep {
 		}
 
 		// check map for hapmap2
-		GeneticMap map = maps.getById("hapmap2");
+		map = maps.getById("hapmap2");
 		if (map == null) {
 			context.error("genetic map not found.");
 			return false;
 		}
 
-		// execute one job per chromosome
-		try {
-			List<String> chunkFiles = HdfsUtil.getFiles(input);
+		if (LocalEngine.isEnabled(context)) {
+			return runLocal(context, folder, input, output, logFolder, panel, map, phasing, population, rounds, window,
+					minimacBin);
+		}
 
-			context.beginTask("Start Imputation...");
+		PreferenceStore store = new PreferenceStore(new File(FileUtil.path(folder, "job.config")));
+		String parallelJobs = store.getString("minimac.parallel.jobs");
+		if (parallelJobs != null && !parallelJobs.trim().isEmpty()) {
+			setThreads(Integer.parseInt(parallelJobs.trim()));
+		}
+
+		if (ExportQueue.isEnabled(store)) {
+			exportQueue = new ExportQueue(ExportQueue.getThreads(store), context);
+			exportTemp = FileUtil.path(context.get("local"), "temp");
+			tabixCommand = FileUtil.path(folder, "bin", "tabix");
+		}
 
-			for (String chunkFile : chunkFiles) {
+		String attempts = store.getString(RETRY_ATTEMPTS);
+		if (attempts != null && !attempts.trim().isEmpty()) {
+			retryAttempts = Integer.parseInt(attempts.trim());
+		}
+		retryWindow = store.getString(RETRY_WINDOW);
+		retryMemory = store.getString(RETRY_MEMORY);
+
+		if (store.getString(CHROMOSOME_PHASING) != null && store.getString(CHROMOSOME_PHASING).trim().equals("true")) {
+			String vcores = store.getString(PHASING_VCORES);
+			phasingVcores = vcores != null && !vcores.trim().isEmpty() ? Integer.parseInt(vcores.trim())
+					: DEFAULT_PHASING_VCORES;
+			phasingMemory = store.getString(PHASING_MEMORY);
+		}
 
+		// execute one job per chromosome
+		try {
+			// submit most expensive chromosomes first
+			scheduler = new ChromosomeScheduler();
+			for (String chunkFile : HdfsUtil.getFiles(input)) {
 				String[] tiles = chunkFile.split("/");
 				String chr = tiles[tiles.length - 1];
-
-				ImputationJobMinimac3 job = new ImputationJobMinimac3(
-						context.getJobName() + "-chr-" + chr, new ContextLog(
-								context), queue);
-				job.setFolder(folder);
-				job.setRefPanelHdfs(panel.getHdfs());
-				job.setRefPanelPattern(panel.getPattern());
-				job.setChromosome(chr);
-				
-				
-				//shapeit
-				if(map.getMapShapeIT()!=null){
-				job.setMapShapeITHdfs(map.getMapShapeIT());
-				job.setMapShapeITPattern(map.getMapPatternShapeIT());
-				}
-				
-				//hapiur
-				if(map.getMapHapiUR()!=null){
-				job.setMapHapiURHdfs(map.getMapHapiUR());
-				job.setMapHapiURPattern(map.getMapPatternHapiUR());
+				chunkFiles.put(chr, chunkFile);
+				scheduler.add(chr, chunkFile);
+			}
+			dynamicPriorities = store.getString("minimac.scheduler.dynamic") != null
+					&& store.getString("minimac.scheduler.dynamic").trim().equals("true");
+
+			// one job for all chromosomes, progress by counters
+			singleJob = store.getString(SINGLE_JOB) != null && store.getString(SINGLE_JOB).trim().equals("true");
+			List<String> ids = scheduler.getOrder();
+			if (singleJob) {
+				for (String chr : ids) {
+					chromosomeStates.put(chr, WAIT);
 				}
+				ids = new Vector<String>();
+				ids.add(ALL_CHROMOSOMES);
+			}
+
+			context.beginTask("Start Imputation...");
+
+			for (String chr : ids) {
+
+				ImputationJobMinimac3 job = createJob(chr, singleJob ? input : chunkFiles.get(chr));
 
-				//eagle
-				if(map.getMapEagle()!=null){
-				job.setMapEagleHdfs(map.getMapEagle());
-				job.setRefEagleHdfs(map.getRefEagle());
-				job.setRefPatternEagle(map.getRefPatternEagle());;
+				if (!singleJob) {
+					String priority = scheduler.getPriority(chr);
+					job.set(ChromosomeScheduler.PRIORITY, priority);
+					scheduler.setPriority(chr, priority);
 				}
-				
-				job.setInput(chunkFile);
-				job.setOutput(HdfsUtil.path(output, chr));
-				job.setRefPanel(reference);
-				job.setLogFilename(FileUtil.path(log, "chr_" + chr + ".log"));
-				job.setPhasing(phasing);
-				job.setPopulation(population);
-				job.setRounds(rounds);
-				job.setWindow(window);
-				job.setNoCache(noCache);
-				job.setMinimacBin(minimacBin);
-				job.setJarByClass(ImputationJobMinimac3.class);
 
 				executeJarInBackground(chr, context, job);
 				jobs.put(chr, job);
@@ -173,6 +324,15 @@ public class ImputationMinimac3 extends ParallelHadoopJobStep {
 			running = false;
 			context.println("All jobs terminated.");
 
+			if (exportQueue != null) {
+				if (error || isCanceled()) {
+					exportQueue.cancel();
+				} else {
+					context.println("Wait for export of finished chromosomes...");
+					exportQueue.waitForAll();
+				}
+			}
+
 			// one job was failed
 			if (error) {
 				context.println("Imputation on chromosome " + errorChr
@@ -208,6 +368,26 @@ public class ImputationMinimac3 extends ParallelHadoopJobStep {
 
 			// everthing fine
 
+			// remove least recently used chunks
+			try {
+				ChunkResultCache resultCache = ChunkResultCache.create(store);
+				if (resultCache != null) {
+					int evicted = resultCache.evict(ChunkResultCache.getSize(store));
+					if (evicted > 0) {
+						context.println("Removed " + evicted + " chunks from cache.");
+					}
+				}
+				ChunkResultCache phasingCache = ChunkResultCache.create(store, ChunkResultCache.PHASING_FOLDER);
+				if (phasingCache != null) {
+					int evicted = phasingCache.evict(ChunkResultCache.getSize(store, ChunkResultCache.PHASING_SIZE));
+					if (evicted > 0) {
+						context.println("Removed " + evicted + " phased chunks from cache.");
+					}
+				}
+			} catch (IOException e) {
+				context.println("Cleanup of chunk cache failed: " + e.getMessage());
+			}
+
 			updateProgress();
 			printSummary();
 
@@ -220,6 +400,10 @@ public class ImputationMinimac3 extends ParallelHadoopJobStep {
 
 			// unexpected exception
 
+			if (exportQueue != null) {
+				exportQueue.cancel();
+			}
+
 			updateProgress();
 			printSummary();
 
@@ -230,6 +414,148 @@ public class ImputationMinimac3 extends ParallelHadoopJobStep {
 
 	}
 
+	// creates the job for one chromosome or for all chromosomes (single job)
+
+	private ImputationJobMinimac3 createJob(String chr, String chunkFile) {
+
+		ImputationJobMinimac3 job = new ImputationJobMinimac3(context.getJobName()
+				+ (singleJob ? "" : "-chr-" + chr), new ContextLog(context), queue);
+		job.setFolder(folder);
+		job.setRefPanelHdfs(panel.getHdfs());
+		job.setRefPanelPattern(panel.getPattern());
+		job.setRefPanelVersion(panel.getVersion());
+		for (RefPanel additionalPanel : additionalPanels) {
+			job.addPanel(additionalPanel.getId(), additionalPanel.getHdfs(), additionalPanel.getPattern());
+		}
+
+		// shapeit
+		if (map.getMapShapeIT() != null) {
+			job.setMapShapeITHdfs(map.getMapShapeIT());
+			job.setMapShapeITPattern(map.getMapPatternShapeIT());
+		}
+
+		// hapiur
+		if (map.getMapHapiUR() != null) {
+			job.setMapHapiURHdfs(map.getMapHapiUR());
+			job.setMapHapiURPattern(map.getMapPatternHapiUR());
+		}
+
+		// eagle
+		if (map.getMapEagle() != null) {
+			job.setMapEagleHdfs(map.getMapEagle());
+			job.setRefEagleHdfs(map.getRefEagle());
+			job.setRefPatternEagle(map.getRefPatternEagle());
+		}
+
+		if (singleJob) {
+			// chunk files of all chromosomes, output folder per
+			// chromosome is created by the mapper
+			job.setInput(chunkFile);
+			job.setOutput(output);
+			job.setLogFilename(FileUtil.path(logFolder, "chr_" + ALL_CHROMOSOMES + ".log"));
+		} else {
+			job.setChromosome(chr);
+			job.setInput(chunkFile);
+			job.setOutput(HdfsUtil.path(output, chr));
+			job.setLogFilename(FileUtil.path(logFolder, "chr_" + chr + ".log"));
+		}
+		job.setRefPanel(reference);
+		job.setPhasing(phasing);
+		job.setPopulation(population);
+		job.setRounds(rounds);
+		job.setWindow(window);
+		job.setNoCache(noCache);
+		job.setMinimacBin(minimacBin);
+		if (phasingVcores > 0 && ChromosomePhasing.isSupported(chr, phasing)) {
+			job.setChromosomePhasing(phasingVcores, phasingMemory);
+		}
+		job.setJarByClass(ImputationJobMinimac3.class);
+
+		return job;
+
+	}
+
+	// execute all chromosomes on the local machine
+
+	private boolean runLocal(WorkflowContext context, String folder, String input, String output, String log,
+			RefPanel panel, GeneticMap map, String phasing, String population, String rounds, String window,
+			String minimacBin) {
+
+		PreferenceStore store = new PreferenceStore(new File(FileUtil.path(folder, "job.config")));
+		ParallelBgzfOutputStream.configure(store);
+		int threads = LocalEngine.getThreads(store);
+
+		LocalImputation imputation = new LocalImputation();
+		imputation.setFolder(folder);
+		imputation.setTmp(FileUtil.path(context.getLocalTemp(), "imputation"));
+		imputation.setThreads(threads);
+		imputation.setRefPanelHdfs(panel.getHdfs());
+		imputation.setRefPanelPattern(panel.getPattern());
+		for (RefPanel additionalPanel : additionalPanels) {
+			imputation.addPanel(additionalPanel.getId(), additionalPanel.getHdfs(), additionalPanel.getPattern());
+		}
+
+		// shapeit
+		if (map.getMapShapeIT() != null) {
+			imputation.setMapShapeITHdfs(map.getMapShapeIT());
+			imputation.setMapShapeITPattern(map.getMapPatternShapeIT());
+		}
+
+		// hapiur
+		if (map.getMapHapiUR() != null) {
+			imputation.setMapHapiURHdfs(map.getMapHapiUR());
+			imputation.setMapHapiURPattern(map.getMapPatternHapiUR());
+		}
+
+		// eagle
+		if (map.getMapEagle() != null) {
+			imputation.setMapEagleHdfs(map.getMapEagle());
+			imputation.setRefEagleHdfs(map.getRefEagle());
+			imputation.setRefPatternEagle(map.getRefPatternEagle());
+		}
+
+		imputation.setPhasing(phasing);
+		imputation.setPopulation(population);
+		imputation.setRounds(rounds);
+		imputation.setWindow(window);
+		imputation.setPhasingWindow(Integer.parseInt(store.getString("phasing.window")));
+		imputation.setMinimacBin(minimacBin);
+		imputation.setStreaming(ImputationChunkProcessor.getStreaming(store));
+
+		try {
+			for (String chunkFile : HdfsUtil.getFiles(input)) {
+				String[] tiles = chunkFile.split("/");
+				String chr = tiles[tiles.length - 1];
+				imputation.addChromosome(chr, chunkFile, HdfsUtil.path(output, chr),
+						FileUtil.path(log, "chr_" + chr + ".log"));
+			}
+		} catch (IOException e) {
+			context.error("Chunk files not found: " + e.getMessage());
+			return false;
+		}
+
+		context.beginTask("Start Imputation on " + threads + " threads...");
+
+		if (!imputation.execute()) {
+			error = true;
+			errorChr = imputation.getFailedChromosome();
+			if (errorChr == null) {
+				context.endTask("Imputation failed. Please have a look at the logfile for details.",
+						WorkflowContext.ERROR);
+				context.error("Imputation failed.");
+				return false;
+			}
+			context.endTask("Imputation on chromosome " + errorChr + " failed. Imputation was stopped.",
+					WorkflowContext.ERROR);
+			context.error("Imputation on chromosome " + errorChr + " failed. Imputation was stopped.");
+			return false;
+		}
+
+		context.endTask("Imputation successful.", WorkflowContext.OK);
+		return true;
+
+	}
+
 	// print summary and download log files from tasktracker
 
 	private void printSummary() {
@@ -269,6 +595,66 @@ public class ImputationMinimac3 extends ParallelHadoopJobStep {
 
 		}
 
+		if (singleJob) {
+			for (String id : chromosomeStates.keySet()) {
+				Integer state = chromosomeStates.get(id);
+				context.println("    " + (state == OK ? "[OK]  " : "[" + state + "]   ") + " Chr " + id);
+			}
+		}
+
+	}
+
+	private Collection<String> getChromosomes() {
+		return singleJob ? chromosomeStates.keySet() : jobs.keySet();
+	}
+
+	private Integer getChromosomeState(String id) {
+		return singleJob ? chromosomeStates.get(id) : getState(jobs.get(id));
+	}
+
+	/**
+	 * updates the chromosome states of the single job by the number of
+	 * imputed chunks (counters of the job).
+	 */
+	private void updateChromosomeStates() {
+
+		HadoopJob job = jobs.get(ALL_CHROMOSOMES);
+		if (job == null) {
+			return;
+		}
+
+		Integer state = getState(job);
+		Counters counters = null;
+		if (job.getJobId() != null) {
+			try {
+				RunningJob hadoopJob = HadoopUtil.getInstance().getJob(job.getJobId());
+				if (hadoopJob != null) {
+					counters = hadoopJob.getCounters();
+				}
+			} catch (IOException e) {
+				// no counters available
+			}
+		}
+
+		for (String chr : chromosomeStates.keySet()) {
+			long chunks = 0;
+			if (counters != null) {
+				chunks = counters.getGroup(ImputationJobMinimac3.CHUNKS).getCounter(chr);
+			}
+			if (skippedChunks.containsKey(chr)) {
+				chunks += skippedChunks.get(chr);
+			}
+			if ((state != null && state == OK) || chunks >= scheduler.getChunks(chr)) {
+				chromosomeStates.put(chr, OK);
+			} else if (state != null && state == FAILED) {
+				chromosomeStates.put(chr, FAILED);
+			} else if (chunks > 0) {
+				chromosomeStates.put(chr, RUNNING);
+			} else {
+				chromosomeStates.put(chr, WAIT);
+			}
+		}
+
 	}
 
 	// update message
@@ -280,10 +666,9 @@ public class ImputationMinimac3 extends ParallelHadoopJobStep {
 
 		int i = 1;
 
-		for (String id : jobs.keySet()) {
+		for (String id : getChromosomes()) {
 
-			HadoopJob job = jobs.get(id);
-			Integer state = getState(job);
+			Integer state = getChromosomeState(id);
 
 			if (state != null) {
 
@@ -355,6 +740,24 @@ public class ImputationMinimac3 extends ParallelHadoopJobStep {
 
 			context.println("Job chr_" + id + " (" + job.getJobId()
 					+ ") executed sucessful.");
+
+			// merge and index while other chromosomes are running
+			if (exportQueue != null && !error && !isCanceled()) {
+				for (String chr : singleJob ? scheduler.getOrder() : Collections.singletonList(id)) {
+					try {
+						for (String folder : ChromosomeExport.getFolders(HdfsUtil.path(output, chr))) {
+							ChromosomeExport export = new ChromosomeExport(folder, FileUtil.path(exportTemp,
+									ChromosomeExport.getId(folder)));
+							export.setTabixCommand(tabixCommand);
+							exportQueue.add(export);
+						}
+					} catch (IOException e) {
+						// exported by CompressionEncryption
+						context.println("Export of chr_" + chr + " not prepared: " + e.getMessage());
+					}
+				}
+			}
+
 		} else {
 
 			// one job failed
@@ -362,11 +765,26 @@ public class ImputationMinimac3 extends ParallelHadoopJobStep {
 			context.println("Job chr_" + id + " (" + job.getJobId()
 					+ ") failed.");
 
+			// resubmit missing chunks, completed chunks are kept
+			if (!error && !isCanceled() && retry(id)) {
+				return;
+			}
+
 			// kill all running jobs
 
 			if (!error && !isCanceled()) {
 				error = true;
 				errorChr = id;
+				if (singleJob) {
+					// first chromosome with missing chunks
+					updateChromosomeStates();
+					for (String chr : scheduler.getOrder()) {
+						if (chromosomeStates.get(chr) != OK) {
+							errorChr = chr;
+							break;
+						}
+					}
+				}
 				context.println("Kill all running jobs...");
 				kill();
 			}
@@ -374,10 +792,99 @@ public class ImputationMinimac3 extends ParallelHadoopJobStep {
 
 	}
 
+	/**
+	 * resubmits the chunks of a failed job that have no completion marker
+	 * (see ImputationChunkProcessor). Returns false if no attempts are left.
+	 */
+	private boolean retry(String id) {
+
+		int attempt = retries.containsKey(id) ? retries.get(id) + 1 : 1;
+		if (attempt > retryAttempts) {
+			return false;
+		}
+		retries.put(id, attempt);
+
+		try {
+
+			String retryInput = HdfsUtil.path(context.getHdfsTemp(), "retry", id + "_" + attempt);
+			List<String> chromosomes = singleJob ? scheduler.getOrder() : Collections.singletonList(id);
+
+			int missing = 0;
+			for (String chr : chromosomes) {
+				missing += writeMissingChunks(chr, HdfsUtil.path(retryInput, chr));
+			}
+			if (missing == 0) {
+				return false;
+			}
+
+			ImputationJobMinimac3 job = createJob(id, singleJob ? retryInput : HdfsUtil.path(retryInput, id));
+			if (retryWindow != null && !retryWindow.trim().isEmpty()) {
+				job.setWindow(retryWindow.trim());
+			}
+			if (retryMemory != null && !retryMemory.trim().isEmpty()) {
+				job.set("mapred.job.map.memory.mb", retryMemory.trim());
+			}
+
+			// output directory of mapred has to be empty
+			HdfsUtil.delete(HdfsUtil.path(singleJob ? output : HdfsUtil.path(output, id), "temp"));
+
+			context.println("Retry " + missing + " chunks of chr_" + id + " (attempt " + attempt + " of "
+					+ retryAttempts + ")...");
+
+			jobs.put(id, job);
+			executeJarInBackground(id, context, job);
+			return true;
+
+		} catch (IOException e) {
+			context.println("Retry of chr_" + id + " failed: " + e.getMessage());
+			return false;
+		}
+
+	}
+
+	// writes all chunks without completion marker, returns their number
+
+	private int writeMissingChunks(String chr, String filename) throws IOException {
+
+		String chrOutput = HdfsUtil.path(output, chr);
+
+		int chunks = 0;
+		int missing = 0;
+		HdfsLineWriter writer = null;
+		LineReader reader = new LineReader(HdfsUtil.open(chunkFiles.get(chr)));
+		while (reader.next()) {
+			String line = reader.get();
+			if (line.isEmpty()) {
+				continue;
+			}
+			chunks++;
+			if (!ImputationChunkProcessor.isDone(chrOutput, new VcfChunk(line))) {
+				if (writer == null) {
+					writer = new HdfsLineWriter(filename);
+				}
+				writer.write(line);
+				missing++;
+			}
+		}
+		reader.close();
+		if (writer != null) {
+			writer.close();
+		}
+
+		skippedChunks.put(chr, chunks - missing);
+		return missing;
+
+	}
+
 	@Override
 	public void updateProgress() {
 
 		super.updateProgress();
+		if (singleJob) {
+			updateChromosomeStates();
+		} else if (running && dynamicPriorities && scheduler != null) {
+			scheduler.adjustPriorities(jobs);
+		}
 		if (running) {
 			String text = updateMessage();
 			context.updateTask(text, WorkflowContext.RUNNING);
@@ -5,10 +5,15 @@ import genepi.hadoop.PreferenceStore;
 import genepi.hadoop.common.ContextLog;
 import genepi.hadoop.common.WorkflowContext;
 import genepi.hadoop.io.HdfsLineWriter;
+import genepi.imputationserver.steps.qc.LocalQualityControl;
 import genepi.imputationserver.steps.qc.QualityControlJob;
+import genepi.imputationserver.steps.vcf.VcfChunk;
+import genepi.imputationserver.steps.vcf.VcfChunkPlanner;
 import genepi.imputationserver.steps.vcf.VcfFile;
 import genepi.imputationserver.steps.vcf.VcfFileUtil;
 import genepi.imputationserver.util.HadoopJobStep;
+import genepi.imputationserver.util.LocalEngine;
+import genepi.imputationserver.util.ParallelBgzfOutputStream;
 import genepi.imputationserver.util.RefPanel;
 import genepi.imputationserver.util.RefPanelList;
 import genepi.io.FileUtil;
@@ -41,6 +46,7 @@ public class QualityControl extends HadoopJobStep {
 
 		// read config
 		PreferenceStore store = new PreferenceStore(new File(FileUtil.path(folder, "job.config")));
+		ParallelBgzfOutputStream.configure(store);
 		String qcQueue ="default";
 		if(store.getString("minimac.qc.queue") != null && !store.getString("minimac.qc.queue").equals("")){
 			qcQueue = store.getString("minimac.qc.queue");
@@ -49,10 +55,24 @@ public class QualityControl extends HadoopJobStep {
 
 		int chunkSize = Integer.parseInt(context.get("chunksize"));
 
+		// variable chunks (bounded by snps and work) if configured
+		VcfChunkPlanner planner = null;
+		String maxSnps = store.getString("minimac.chunk.snps");
+		String maxWork = store.getString("minimac.chunk.work");
+		if ((maxSnps != null && !maxSnps.equals("")) || (maxWork != null && !maxWork.equals(""))) {
+			planner = new VcfChunkPlanner(chunkSize);
+			if (maxSnps != null && !maxSnps.equals("")) {
+				planner.setMaxSnps(Integer.parseInt(maxSnps));
+			}
+			if (maxWork != null && !maxWork.equals("")) {
+				planner.setMaxWork(Long.parseLong(maxWork));
+			}
+		}
+
 		int chunks = 0;
 		// create manifest file
 		try {
-			chunks = createChunkFile(context, files, chunkfile, chunkSize);
+			chunks = createChunkFile(context, files, chunkfile, chunkSize, planner);
 		} catch (Exception e) {
 			e.printStackTrace();
 			context.error(e.toString());
@@ -100,9 +120,18 @@ public class QualityControl extends HadoopJobStep {
 		job.setOutputManifest(outputManifest);
 		job.setOutputRemovedSnps(removedSnps);
 		job.setQcQueue(qcQueue);
+		if (store.getString("minimac.qc.threads") != null && !store.getString("minimac.qc.threads").equals("")) {
+			job.setThreads(Integer.parseInt(store.getString("minimac.qc.threads")));
+		}
 		job.setJarByClass(QualityControl.class);
 
-		boolean successful = executeHadoopJob(job, context);
+		boolean successful;
+		if (LocalEngine.isEnabled(context)) {
+			successful = executeLocal(job, panel, population, chunkfile, output, outputManifest, removedSnps, store,
+					context);
+		} else {
+			successful = executeHadoopJob(job, context);
+		}
 
 		if (successful) {
 
@@ -205,7 +234,39 @@ public class QualityControl extends HadoopJobStep {
 		}
 	}
 
-	private int createChunkFile(WorkflowContext context, String inputFiles, String chunkfile, int chunkSize) {
+	private boolean executeLocal(QualityControlJob job, RefPanel panel, String population, String chunkfile,
+			String output, String outputManifest, String removedSnps, PreferenceStore store, WorkflowContext context) {
+
+		int threads = LocalEngine.getThreads(store);
+		context.beginTask("Running Quality Control on " + threads + " threads...");
+
+		LocalQualityControl localJob = new LocalQualityControl();
+		localJob.setPanelId(panel.getId());
+		localJob.setLegendHdfs(panel.getLegend());
+		localJob.setLegendPattern(panel.getLegendPattern());
+		localJob.setPopulation(population);
+		localJob.setInput(chunkfile);
+		localJob.setOutputMaf(output);
+		localJob.setOutputManifest(outputManifest);
+		localJob.setOutputRemovedSnps(removedSnps);
+		localJob.setPhasingWindow(Integer.parseInt(store.getString("phasing.window")));
+		localJob.setFolder(FileUtil.path(context.getLocalTemp(), "quality-control"));
+		localJob.setThreads(threads);
+
+		if (localJob.execute()) {
+			job.setCounters(localJob.getResult());
+			context.endTask("Execution successful.", WorkflowContext.OK);
+			return true;
+		} else {
+			context.endTask("Execution failed. Please have a look at the logfile for details.",
+					WorkflowContext.ERROR);
+			return false;
+		}
+
+	}
+
+	private int createChunkFile(WorkflowContext context, String inputFiles, String chunkfile, int chunkSize,
+			VcfChunkPlanner planner) {
 
 		String folder = getFolder(QualityControl.class);
 		VcfFileUtil.setBinaries(FileUtil.path(folder, "bin"));
@@ -273,16 +334,30 @@ public class QualityControl extends HadoopJobStep {
 						i++;
 					}
 
-					for (int chunk : vcfFile.getChunks()) {
+					List<VcfChunk> plannedChunks = new Vector<VcfChunk>();
+					if (planner != null) {
+						plannedChunks = planner.plan(vcfFile);
+					} else {
+						for (int chunk : vcfFile.getChunks()) {
+							VcfChunk plannedChunk = new VcfChunk();
+							plannedChunk.setStart(chunk * chunkSize + 1);
+							plannedChunk.setEnd(chunk * chunkSize + chunkSize);
+							plannedChunk.setSnps(vcfFile.getSnps(chunk));
+							plannedChunk.setSamples(vcfFile.getNoSamples());
+							plannedChunks.add(plannedChunk);
+						}
+					}
 
-						int start = chunk * chunkSize + 1;
-						int end = start + chunkSize - 1;
+					for (VcfChunk chunk : plannedChunks) {
 
-						String value = chromosome + "\t" + start + "\t" + end + "\t" + type;
+						String value = chromosome + "\t" + chunk.getStart() + "\t" + chunk.getEnd() + "\t" + type;
 						for (String hdfsFile : hdfsFiles) {
 							value = value + "\t" + hdfsFile;
 						}
 
+						// used by ChunkInputFormat to group small chunks
+						value = value + "\t" + chunk.getSnps() + "\t0\t" + chunk.getSamples();
+
 						writer.write(value);
 						chunks++;
 					}
@@ -0,0 +1,288 @@
+package genepi.imputationserver.steps.export;
+
+import genepi.hadoop.HdfsUtil;
+import genepi.hadoop.command.Command;
+import genepi.imputationserver.steps.imputationMinimac3.ImputationChunkProcessor;
+import genepi.imputationserver.steps.vcf.MergedVcfFile;
+import genepi.imputationserver.util.FileMerger;
+import genepi.io.FileUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Vector;
+
+import net.lingala.zip4j.core.ZipFile;
+import net.lingala.zip4j.exception.ZipException;
+import net.lingala.zip4j.io.ZipOutputStream;
+import net.lingala.zip4j.model.ZipParameters;
+import net.lingala.zip4j.util.Zip4jConstants;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Export of one imputed chromosome. {@link #prepare()} merges the info files
+ * and the dose files (with index) of the chromosome folder into a local temp
+ * folder and marks the folder as ready when all files are complete.
+ * {@link #zip(String, String)} creates the encrypted zip file. A chromosome
+ * that was prepared by the {@link ExportQueue} is not merged again.
+ *
+ * If all chunks have an index, {@link #export(String, String)} writes the
+ * zip file directly from the HDFS streams without local copies.
+ *
+ * Results of additional reference panels are in the subfolders "panel_" + id
+ * of a chromosome folder (see ImputationChunkProcessor), their files have the
+ * same names as the files of the chromosome.
+ */
+public class ChromosomeExport {
+
+	public static final String READY = "export.ready";
+
+	private String name;
+
+	private String panel;
+
+	private String folder;
+
+	private String temp;
+
+	private String tabixCommand;
+
+	public ChromosomeExport(String folder, String temp) {
+		this.folder = folder;
+		this.temp = temp;
+		name = FileUtil.getFilename(folder);
+		if (name.startsWith(ImputationChunkProcessor.PANEL_PREFIX)) {
+			panel = name.substring(ImputationChunkProcessor.PANEL_PREFIX.length());
+			name = FileUtil.getFilename(getParent(folder));
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * returns the additional reference panel or null.
+	 */
+	public String getPanel() {
+		return panel;
+	}
+
+	/**
+	 * returns the name of the chromosome and the additional panel.
+	 */
+	public String getId() {
+		return panel == null ? name : name + "_" + panel;
+	}
+
+	/**
+	 * returns the id of the export of the given folder without creating it.
+	 */
+	public static String getId(String folder) {
+		return new ChromosomeExport(folder, null).getId();
+	}
+
+	/**
+	 * returns the chromosome folder and the folders of additional panels.
+	 */
+	public static List<String> getFolders(String folder) throws IOException {
+		List<String> folders = new Vector<String>();
+		folders.add(folder);
+		Path path = new Path(folder);
+		FileSystem fileSystem = path.getFileSystem(new Configuration());
+		for (FileStatus file : fileSystem.listStatus(path)) {
+			if (file.isDir() && file.getPath().getName().startsWith(ImputationChunkProcessor.PANEL_PREFIX)) {
+				folders.add(file.getPath().toString());
+			}
+		}
+		Collections.sort(folders);
+		return folders;
+	}
+
+	private static String getParent(String folder) {
+		String path = folder.endsWith("/") ? folder.substring(0, folder.length() - 1) : folder;
+		return path.substring(0, Math.max(0, path.lastIndexOf('/')));
+	}
+
+	public void setTabixCommand(String tabixCommand) {
+		this.tabixCommand = tabixCommand;
+	}
+
+	public String getInfoFilename() {
+		return FileUtil.path(temp, "chr" + name + ".info.gz");
+	}
+
+	public String getVcfFilename() {
+		return FileUtil.path(temp, "chr" + name + ".dose.vcf.gz");
+	}
+
+	/**
+	 * returns true if all data files have an index.
+	 */
+	public boolean isIndexed() throws IOException {
+		List<String> dataFiles = findFiles(folder, ".data.dose.vcf.gz");
+		for (String file : dataFiles) {
+			if (!HdfsUtil.exists(file + ".tbi")) {
+				return false;
+			}
+		}
+		return !dataFiles.isEmpty();
+	}
+
+	public boolean isPrepared() {
+		return new File(FileUtil.path(temp, READY)).exists();
+	}
+
+	/**
+	 * merges info files, dose files and their indexes.
+	 */
+	public void prepare() throws IOException {
+
+		// remove files of an incomplete run
+		FileUtil.deleteDirectory(temp);
+		FileUtil.createDirectory(temp);
+
+		String vcfOutput = getVcfFilename();
+
+		// merge all info files
+		FileMerger.mergeAndGz(getInfoFilename(), folder, true, ".info");
+
+		List<String> dataFiles = findFiles(folder, ".data.dose.vcf.gz");
+		List<String> headerFiles = findFiles(folder, ".header.dose.vcf.gz");
+
+		MergedVcfFile vcfFile = new MergedVcfFile(vcfOutput);
+
+		// add one header
+		// TODO: check number of samples per chunk....
+		String header = headerFiles.get(0);
+		vcfFile.addFile(HdfsUtil.open(header));
+
+		// stitch chunk indexes if all chunks have one
+		boolean indexed = isIndexed();
+
+		// add data files
+		for (String file : dataFiles) {
+			if (indexed) {
+				vcfFile.addFile(HdfsUtil.open(file), HdfsUtil.open(file + ".tbi"));
+			} else {
+				vcfFile.addFile(HdfsUtil.open(file));
+			}
+		}
+
+		vcfFile.close();
+
+		if (!indexed) {
+			Command tabix = new Command(tabixCommand);
+			tabix.setSilent(false);
+			tabix.setParams("-f", vcfOutput);
+			if (tabix.execute() != 0) {
+				throw new IOException("Error during index creation: " + tabix.getStdOut());
+			}
+		}
+
+		new File(FileUtil.path(temp, READY)).createNewFile();
+
+	}
+
+	/**
+	 * creates the encrypted zip file with dose file, index and info file.
+	 */
+	public void zip(String filename, String password) throws ZipException {
+
+		ZipParameters param = new ZipParameters();
+		param.setEncryptFiles(true);
+		param.setPassword(password);
+		param.setEncryptionMethod(Zip4jConstants.ENC_METHOD_STANDARD);
+
+		ArrayList<File> files = new ArrayList<File>();
+		files.add(new File(getVcfFilename()));
+		files.add(new File(getVcfFilename() + ".tbi"));
+		files.add(new File(getInfoFilename()));
+
+		ZipFile file = new ZipFile(new File(filename));
+		file.createZipFile(files, param);
+
+	}
+
+	/**
+	 * merges the dose files, the index and the info files into the
+	 * encrypted zip file. All chunks need an index (see {@link #isIndexed()}).
+	 */
+	public void export(String filename, String password) throws IOException, ZipException {
+
+		List<String> dataFiles = findFiles(folder, ".data.dose.vcf.gz");
+		List<String> headerFiles = findFiles(folder, ".header.dose.vcf.gz");
+
+		String vcfName = "chr" + name + ".dose.vcf.gz";
+
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(filename));
+
+		try {
+
+			// dose file, index is stitched on the fly
+			out.putNextEntry(null, createParameters(vcfName, password));
+			MergedVcfFile vcfFile = new MergedVcfFile(out);
+			vcfFile.addFile(HdfsUtil.open(headerFiles.get(0)));
+			for (String file : dataFiles) {
+				vcfFile.addFile(HdfsUtil.open(file), HdfsUtil.open(file + ".tbi"));
+			}
+			vcfFile.close();
+			out.closeEntry();
+
+			out.putNextEntry(null, createParameters(vcfName + ".tbi", password));
+			vcfFile.getIndex().write(out);
+			out.closeEntry();
+
+			out.putNextEntry(null, createParameters("chr" + name + ".info.gz", password));
+			FileMerger.mergeAndGz(out, folder, true, ".info");
+			out.closeEntry();
+
+			out.finish();
+
+		} finally {
+			out.close();
+		}
+
+	}
+
+	private ZipParameters createParameters(String filename, String password) {
+		ZipParameters param = new ZipParameters();
+		param.setEncryptFiles(true);
+		param.setPassword(password);
+		param.setEncryptionMethod(Zip4jConstants.ENC_METHOD_STANDARD);
+		param.setSourceExternalStream(true);
+		param.setFileNameInZip(filename);
+		return param;
+	}
+
+	public void cleanup() {
+		FileUtil.deleteDirectory(temp);
+	}
+
+	private static List<String> findFiles(String folder, String pattern) throws IOException {
+
+		Configuration conf = new Configuration();
+
+		FileSystem fileSystem = FileSystem.get(conf);
+		Path pathFolder = new Path(folder);
+		FileStatus[] files = fileSystem.listStatus(pathFolder);
+
+		List<String> dataFiles = new Vector<String>();
+		for (FileStatus file : files) {
+			if (!file.isDir() && !file.getPath().getName().startsWith("_")
+					&& file.getPath().getName().endsWith(pattern)) {
+				dataFiles.add(file.getPath().toString());
+			}
+		}
+		Collections.sort(dataFiles);
+		return dataFiles;
+	}
+
+}
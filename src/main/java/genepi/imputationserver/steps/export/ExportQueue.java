@@ -0,0 +1,86 @@
+package genepi.imputationserver.steps.export;
+
+import genepi.hadoop.PreferenceStore;
+import genepi.hadoop.common.WorkflowContext;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prepares the export of finished chromosomes in the background while other
+ * chromosomes are still imputed. A failed preparation is not an error, the
+ * chromosome is prepared again by CompressionEncryption.
+ *
+ * Incremental export is enabled by "minimac.export.incremental" in
+ * job.config, the number of threads is set by "minimac.export.threads"
+ * (default: number of cores, at most 4).
+ */
+public class ExportQueue {
+
+	public static final String INCREMENTAL = "minimac.export.incremental";
+
+	public static final String THREADS = "minimac.export.threads";
+
+	// export is limited by the local disk
+	public static final int DEFAULT_THREADS = 4;
+
+	private ExecutorService pool;
+
+	private WorkflowContext context;
+
+	public ExportQueue(int threads, WorkflowContext context) {
+		pool = Executors.newFixedThreadPool(threads);
+		this.context = context;
+	}
+
+	public static boolean isEnabled(PreferenceStore store) {
+		String incremental = store.getString(INCREMENTAL);
+		return incremental != null && incremental.trim().equals("true");
+	}
+
+	public static int getThreads(PreferenceStore store) {
+		String threads = store.getString(THREADS);
+		if (threads == null || threads.trim().isEmpty()) {
+			return Math.min(Runtime.getRuntime().availableProcessors(), DEFAULT_THREADS);
+		}
+		return Integer.parseInt(threads.trim());
+	}
+
+	public void add(final ChromosomeExport export) {
+		pool.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					long start = System.currentTimeMillis();
+					export.prepare();
+					long end = System.currentTimeMillis();
+					context.println("Prepared export of chromosome " + export.getName() + " in " + (end - start)
+							+ " ms");
+				} catch (Exception e) {
+					context.println("Export of chromosome " + export.getName() + " failed: " + e.getMessage());
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	/**
+	 * waits until all added chromosomes are prepared. If the waiting thread is
+	 * interrupted, all running preparations are canceled.
+	 */
+	public void waitForAll() throws InterruptedException {
+		pool.shutdown();
+		try {
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			pool.shutdownNow();
+			throw e;
+		}
+	}
+
+	public void cancel() {
+		pool.shutdownNow();
+	}
+
+}
@@ -0,0 +1,187 @@
+package genepi.imputationserver.steps.imputationMinimac3;
+
+import genepi.hadoop.HdfsUtil;
+import genepi.imputationserver.steps.vcf.VcfChunk;
+import genepi.imputationserver.steps.vcf.VcfChunkOutput;
+import genepi.io.FileUtil;
+import genepi.io.text.LineReader;
+import genepi.io.text.LineWriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Phases all chunks of a chromosome with one phasing run instead of one run
+ * per chunk. The chunk files (chunk +/- phasing window) are merged into one
+ * vcf file, overlapping records are written once. The phased file is sliced
+ * into the windows of the chunks again, so minimac sees the same flanks as
+ * with chunk-wise phasing.
+ *
+ * Supported for autosomes with eagle and shapeit, both run with the given
+ * number of threads.
+ */
+public class ChromosomePhasing {
+
+	private final ImputationPipelineMinimac3 pipeline;
+
+	private final String folder;
+
+	private final int threads;
+
+	public ChromosomePhasing(ImputationPipelineMinimac3 pipeline, String folder, int threads) {
+		this.pipeline = pipeline;
+		this.folder = folder;
+		this.threads = threads;
+	}
+
+	public static boolean isSupported(String chromosome, String phasing) {
+		return !chromosome.contains("X") && ("eagle".equals(phasing) || "shapeit".equals(phasing));
+	}
+
+	/**
+	 * phases the given chunks of one chromosome. Returns the phased vcf file
+	 * by chunk id or null if phasing failed.
+	 */
+	public Map<String, String> phase(List<VcfChunk> chunks) throws IOException {
+
+		List<VcfChunk> sorted = new Vector<VcfChunk>(chunks);
+		Collections.sort(sorted, new Comparator<VcfChunk>() {
+			@Override
+			public int compare(VcfChunk a, VcfChunk b) {
+				return Integer.valueOf(a.getStart()).compareTo(b.getStart());
+			}
+		});
+
+		VcfChunk first = sorted.get(0);
+		VcfChunk chromosome = new VcfChunk();
+		chromosome.setChromosome(first.getChromosome());
+		chromosome.setStart(first.getStart());
+		chromosome.setEnd(sorted.get(sorted.size() - 1).getEnd());
+		chromosome.setPhased(false);
+
+		FileUtil.createDirectory(folder);
+		VcfChunkOutput output = new VcfChunkOutput(chromosome, folder);
+
+		long time = System.currentTimeMillis();
+		int records = merge(sorted, output.getVcfFilename());
+		time = (System.currentTimeMillis() - time) / 1000;
+		System.out.println("  Merged " + sorted.size() + " chunks of chromosome " + chromosome.getChromosome() + ": "
+				+ records + " records [" + time + " sec]");
+
+		if (!pipeline.phaseChromosome(chromosome, output, threads)) {
+			return null;
+		}
+
+		Map<String, String> phased = split(output.getPhasedVcfFilename(), sorted);
+
+		FileUtil.deleteFile(output.getVcfFilename());
+		FileUtil.deleteFile(output.getPhasedVcfFilename());
+
+		return phased;
+
+	}
+
+	// chunks are sorted by start, records of the flanks are in two chunks
+	private int merge(List<VcfChunk> chunks, String filename) throws IOException {
+
+		LineWriter writer = new LineWriter(filename);
+		int lastPosition = 0;
+		int records = 0;
+
+		for (int i = 0; i < chunks.size(); i++) {
+
+			int previousChunks = lastPosition;
+			LineReader reader = new LineReader(HdfsUtil.open(chunks.get(i).getVcfFilename()));
+			while (reader.next()) {
+				String line = reader.get();
+				if (line.startsWith("#")) {
+					if (i == 0) {
+						writer.write(line);
+					}
+					continue;
+				}
+				int position = getPosition(line);
+				if (position > previousChunks) {
+					writer.write(line);
+					lastPosition = Math.max(lastPosition, position);
+					records++;
+				}
+			}
+			reader.close();
+
+		}
+
+		writer.close();
+
+		return records;
+
+	}
+
+	// writes header and records of chunk +/- phasing window
+	private Map<String, String> split(String filename, List<VcfChunk> chunks) throws IOException {
+
+		int window = pipeline.getPhasingWindow();
+
+		Map<String, String> filenames = new HashMap<String, String>();
+		LineWriter[] writers = new LineWriter[chunks.size()];
+		for (int i = 0; i < chunks.size(); i++) {
+			String chunkFilename = FileUtil.path(folder, chunks.get(i).getId() + ".phased.vcf");
+			writers[i] = new LineWriter(chunkFilename);
+			filenames.put(chunks.get(i).getId(), chunkFilename);
+		}
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(open(filename)));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.startsWith("#")) {
+				for (LineWriter writer : writers) {
+					writer.write(line);
+				}
+				continue;
+			}
+			int position = getPosition(line);
+			for (int i = 0; i < chunks.size(); i++) {
+				if (position >= chunks.get(i).getStart() - window && position <= chunks.get(i).getEnd() + window) {
+					writers[i].write(line);
+				}
+			}
+		}
+		reader.close();
+
+		for (LineWriter writer : writers) {
+			writer.close();
+		}
+
+		return filenames;
+
+	}
+
+	// eagle writes bgzip files, shapeit plain vcf files
+	private InputStream open(String filename) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(filename));
+		in.mark(2);
+		int magic = in.read() | (in.read() << 8);
+		in.reset();
+		if (magic == GZIPInputStream.GZIP_MAGIC) {
+			return new GZIPInputStream(in);
+		}
+		return in;
+	}
+
+	private static int getPosition(String line) {
+		String[] tiles = line.split("\t", 3);
+		return Integer.parseInt(tiles[1]);
+	}
+
+}
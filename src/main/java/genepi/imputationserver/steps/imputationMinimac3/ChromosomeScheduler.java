@@ -0,0 +1,203 @@
+package genepi.imputationserver.steps.imputationMinimac3;
+
+import genepi.hadoop.HadoopJob;
+import genepi.hadoop.HadoopUtil;
+import genepi.hadoop.HdfsUtil;
+import genepi.imputationserver.steps.vcf.VcfChunk;
+import genepi.imputationserver.util.ChunkInputFormat;
+import genepi.io.text.LineReader;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hadoop.mapred.RunningJob;
+
+/**
+ * Orders the chromosome jobs by their estimated cost (longest job first), so
+ * large chromosomes do not start last and define the runtime of the whole
+ * imputation. The cost of a chunk is the number of samples times the snps
+ * that are in the reference (doubled for unphased chunks, they are phased
+ * first) plus a fixed overhead per chunk.
+ *
+ * Jobs get a Hadoop priority by their rank (first third HIGH, last third
+ * LOW). {@link #adjustPriorities(Map)} updates the priorities of running jobs
+ * by their remaining cost (cost x (1 - map progress)), at most once every
+ * {@link #ADJUST_INTERVAL} ms because every update asks the job tracker for
+ * all running jobs.
+ */
+public class ChromosomeScheduler {
+
+	// setup of a chunk (reference panel, map files) in samples x snps
+	public static final long CHUNK_OVERHEAD = 10000000L;
+
+	public static final int PHASING_FACTOR = 2;
+
+	public static final String PRIORITY = "mapred.job.priority";
+
+	public static final String HIGH = "HIGH";
+
+	public static final String NORMAL = "NORMAL";
+
+	public static final String LOW = "LOW";
+
+	public static final long ADJUST_INTERVAL = 60 * 1000;
+
+	private Map<String, Long> costs = new HashMap<String, Long>();
+
+	private Map<String, Integer> chunks = new HashMap<String, Integer>();
+
+	// written by the submitting thread and the progress thread
+	private Map<String, String> priorities = new ConcurrentHashMap<String, String>();
+
+	private long lastAdjustment = 0;
+
+	/**
+	 * adds a chromosome and its chunk file (QC manifest).
+	 */
+	public void add(String chromosome, String chunkFile) throws IOException {
+		long cost = 0;
+		int count = 0;
+		LineReader reader = new LineReader(HdfsUtil.open(chunkFile));
+		while (reader.next()) {
+			String line = reader.get();
+			if (!line.isEmpty()) {
+				cost += getCost(new VcfChunk(line));
+				count++;
+			}
+		}
+		reader.close();
+		costs.put(chromosome, cost);
+		chunks.put(chromosome, count);
+	}
+
+	public void add(String chromosome, long cost) {
+		costs.put(chromosome, cost);
+	}
+
+	public static long getCost(VcfChunk chunk) {
+		if (chunk.getSamples() <= 0) {
+			return CHUNK_OVERHEAD + ChunkInputFormat.DEFAULT_MAX_WORK;
+		}
+		int snps = chunk.getInReference() > 0 ? chunk.getInReference() : chunk.getSnps();
+		long work = (long) snps * chunk.getSamples();
+		if (!chunk.isPhased()) {
+			work = work * PHASING_FACTOR;
+		}
+		return CHUNK_OVERHEAD + work;
+	}
+
+	public int getChunks(String chromosome) {
+		Integer count = chunks.get(chromosome);
+		return count == null ? 0 : count;
+	}
+
+	public long getCost(String chromosome) {
+		Long cost = costs.get(chromosome);
+		return cost == null ? 0 : cost;
+	}
+
+	/**
+	 * returns all chromosomes, most expensive first.
+	 */
+	public List<String> getOrder() {
+		return sort(costs);
+	}
+
+	/**
+	 * returns the initial priority of a chromosome.
+	 */
+	public String getPriority(String chromosome) {
+		return getPriority(getOrder().indexOf(chromosome), costs.size());
+	}
+
+	/**
+	 * sets the priority of running jobs by their remaining cost. Returns the
+	 * number of changed priorities, calls within {@link #ADJUST_INTERVAL} ms
+	 * after the last update change nothing.
+	 */
+	public synchronized int adjustPriorities(Map<String, HadoopJob> jobs) {
+
+		long now = System.currentTimeMillis();
+		if (now - lastAdjustment < ADJUST_INTERVAL) {
+			return 0;
+		}
+		lastAdjustment = now;
+
+		Map<String, Long> remaining = new HashMap<String, Long>();
+		Map<String, RunningJob> running = new HashMap<String, RunningJob>();
+
+		for (String chromosome : jobs.keySet()) {
+			HadoopJob job = jobs.get(chromosome);
+			if (job == null || job.getJobId() == null) {
+				continue;
+			}
+			RunningJob hadoopJob = HadoopUtil.getInstance().getJob(job.getJobId());
+			try {
+				if (hadoopJob == null || hadoopJob.isComplete()) {
+					continue;
+				}
+				float progress = hadoopJob.mapProgress();
+				remaining.put(chromosome, (long) (getCost(chromosome) * (1 - progress)));
+				running.put(chromosome, hadoopJob);
+			} catch (IOException e) {
+				// no progress available
+			}
+		}
+
+		int changed = 0;
+		List<String> order = sort(remaining);
+		for (int i = 0; i < order.size(); i++) {
+			String chromosome = order.get(i);
+			String priority = getPriority(i, order.size());
+			if (!priority.equals(priorities.get(chromosome))) {
+				try {
+					running.get(chromosome).setJobPriority(priority);
+					priorities.put(chromosome, priority);
+					changed++;
+				} catch (IOException e) {
+					// job finished in the meantime
+				}
+			}
+		}
+
+		return changed;
+
+	}
+
+	/**
+	 * remembers the priority a job was submitted with.
+	 */
+	public void setPriority(String chromosome, String priority) {
+		priorities.put(chromosome, priority);
+	}
+
+	private static String getPriority(int rank, int jobs) {
+		if (rank < jobs / 3) {
+			return HIGH;
+		}
+		if (rank < jobs - jobs / 3) {
+			return NORMAL;
+		}
+		return LOW;
+	}
+
+	// descending by cost, ties by name
+	private static List<String> sort(final Map<String, Long> costs) {
+		List<String> order = new Vector<String>(costs.keySet());
+		Collections.sort(order, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				int result = costs.get(b).compareTo(costs.get(a));
+				return result != 0 ? result : a.compareTo(b);
+			}
+		});
+		return order;
+	}
+
+}
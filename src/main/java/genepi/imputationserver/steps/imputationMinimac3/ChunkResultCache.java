@@ -0,0 +1,360 @@
+package genepi.imputationserver.steps.imputationMinimac3;
+
+import genepi.hadoop.PreferenceStore;
+import genepi.imputationserver.steps.vcf.VcfChunk;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.Vector;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Cache of imputed chunks on hdfs. The key of a chunk is the md5 hash of its
+ * vcf file (after QC), its region and of all parameters that change the
+ * result (panel, phasing, rounds, window, ...). An entry is a folder with the
+ * output files of the chunk and a marker file with the number of snps in the
+ * info file. Files are stored without the name of the chunk and restored
+ * with the name of the current chunk. Entries are written to a temp folder
+ * and renamed when complete, an entry is only used if it contains the
+ * marker.
+ * {@link #putFile(String, String)} and {@link #restoreFile(String, String)}
+ * cache a single local file (e.g. phased chunks).
+ *
+ * {@link #evict(long)} removes least recently used entries (modification
+ * time of the marker, rewritten on every hit) until the cache fits into the
+ * given size.
+ */
+public class ChunkResultCache {
+
+	public static final String FOLDER = "minimac.cache.folder";
+
+	public static final String SIZE = "minimac.cache.size";
+
+	// 1 TB
+	public static final long DEFAULT_SIZE = 1024L * 1024L * 1024L * 1024L;
+
+	// phased chunks (see ImputationPipelineMinimac3)
+	public static final String PHASING_FOLDER = "minimac.phasing.cache.folder";
+
+	public static final String PHASING_SIZE = "minimac.phasing.cache.size";
+
+	public static final String READY = "cache.ready";
+
+	private static final String TEMP = ".tmp-";
+
+	// replaces the chunk name in cached file names
+	private static final String CHUNK = "chunk";
+
+	private String folder;
+
+	private String parameters = "";
+
+	private FileSystem fileSystem;
+
+	public ChunkResultCache(String folder) throws IOException {
+		this.folder = folder;
+		fileSystem = FileSystem.get(new Configuration());
+	}
+
+	/**
+	 * returns the cache configured in job.config or null if the cache is
+	 * disabled.
+	 */
+	public static ChunkResultCache create(PreferenceStore store) throws IOException {
+		return create(store, FOLDER);
+	}
+
+	public static ChunkResultCache create(PreferenceStore store, String property) throws IOException {
+		String folder = store.getString(property);
+		if (folder == null || folder.trim().isEmpty()) {
+			return null;
+		}
+		return new ChunkResultCache(folder.trim());
+	}
+
+	public static long getSize(PreferenceStore store) {
+		return getSize(store, SIZE);
+	}
+
+	public static long getSize(PreferenceStore store, String property) {
+		String size = store.getString(property);
+		if (size == null || size.trim().isEmpty()) {
+			return DEFAULT_SIZE;
+		}
+		return Long.parseLong(size.trim());
+	}
+
+	/**
+	 * sets the parameters that are part of every key.
+	 */
+	public void setParameters(String... values) {
+		StringBuilder builder = new StringBuilder();
+		for (String value : values) {
+			builder.append(value).append("\t");
+		}
+		parameters = builder.toString();
+	}
+
+	/**
+	 * returns the key of a chunk. vcfFilename is the local copy of the chunk.
+	 * The key is computed before the pipeline renames the chunk (chrX).
+	 */
+	public String getKey(String vcfFilename, VcfChunk chunk) throws IOException {
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+
+		InputStream in = new FileInputStream(vcfFilename);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		// region (chromosome, start, end), chunks with the same snps can
+		// have different outputs
+		digest.update((chunk.toString() + "\t").getBytes("UTF-8"));
+		digest.update(parameters.getBytes("UTF-8"));
+
+		StringBuilder key = new StringBuilder();
+		for (byte value : digest.digest()) {
+			key.append(String.format("%02x", value));
+		}
+		return key.toString();
+
+	}
+
+	/**
+	 * copies the files of a cached chunk to the output folder, the chunk name
+	 * of the files is replaced by the given name. Returns the number of snps
+	 * in the info file or -1 if the chunk is not cached.
+	 */
+	public int restore(String key, String output, String chunkName) {
+
+		Path entry = new Path(folder, key);
+		Path marker = new Path(entry, READY);
+
+		try {
+
+			if (!fileSystem.exists(marker)) {
+				return -1;
+			}
+
+			InputStream in = fileSystem.open(marker);
+			int snpInfo = Integer.parseInt(IOUtils.toString(in).trim());
+			in.close();
+
+			for (FileStatus file : getFiles(entry)) {
+				String name = chunkName + file.getPath().getName().substring(CHUNK.length());
+				FileUtil.copy(fileSystem, file.getPath(), fileSystem, new Path(output, name), false,
+						fileSystem.getConf());
+			}
+
+			// last access for eviction (setTimes is not supported by all
+			// file systems)
+			writeMarker(marker, snpInfo);
+
+			return snpInfo;
+
+		} catch (Exception e) {
+			// evicted in the meantime or incomplete copy
+			System.out.println("Chunk " + key + " not restored from cache: " + e.getMessage());
+			return -1;
+		}
+
+	}
+
+	/**
+	 * stores the given output files of a chunk. chunkName is the prefix of
+	 * the file names that is replaced on restore.
+	 */
+	public void put(String key, String chunkName, List<String> files, int snpInfo) throws IOException {
+
+		Path entry = new Path(folder, key);
+		if (fileSystem.exists(entry)) {
+			return;
+		}
+
+		Path temp = new Path(folder, TEMP + UUID.randomUUID().toString());
+		fileSystem.mkdirs(temp);
+
+		try {
+
+			for (String file : files) {
+				Path source = new Path(file);
+				String name = source.getName();
+				if (!name.startsWith(chunkName)) {
+					throw new IOException("File " + name + " does not belong to chunk " + chunkName + ".");
+				}
+				FileUtil.copy(getFileSystem(source), source, fileSystem,
+						new Path(temp, CHUNK + name.substring(chunkName.length())), false, fileSystem.getConf());
+			}
+
+			writeMarker(new Path(temp, READY), snpInfo);
+
+			// the return value is not reliable: if another task stored the
+			// same chunk in the meantime, hdfs moves temp into its entry
+			fileSystem.rename(temp, entry);
+
+		} catch (IOException e) {
+			fileSystem.delete(temp, true);
+			throw e;
+		}
+
+		// the complete entry of another task is kept
+		fileSystem.delete(temp, true);
+		fileSystem.delete(new Path(entry, temp.getName()), true);
+
+		if (!fileSystem.exists(new Path(entry, READY))) {
+			throw new IOException("Entry " + key + " incomplete after rename.");
+		}
+
+	}
+
+	/**
+	 * stores a local file.
+	 */
+	public void putFile(String key, String filename) throws IOException {
+		List<String> files = new Vector<String>();
+		files.add(new File(filename).toURI().toString());
+		put(key, "", files, 0);
+	}
+
+	/**
+	 * copies a cached file to a local file. Returns false if the file is not
+	 * cached.
+	 */
+	public boolean restoreFile(String key, String filename) {
+
+		Path entry = new Path(folder, key);
+		Path marker = new Path(entry, READY);
+
+		try {
+
+			if (!fileSystem.exists(marker)) {
+				return false;
+			}
+
+			for (FileStatus file : getFiles(entry)) {
+				Path target = new Path(new File(filename).toURI());
+				FileUtil.copy(fileSystem, file.getPath(), getFileSystem(target), target, false, fileSystem.getConf());
+				writeMarker(marker, 0);
+				return true;
+			}
+
+			return false;
+
+		} catch (Exception e) {
+			System.out.println("File " + key + " not restored from cache: " + e.getMessage());
+			return false;
+		}
+
+	}
+
+	// cached files of an entry without marker and temp folders of other tasks
+	private List<FileStatus> getFiles(Path entry) throws IOException {
+		List<FileStatus> files = new Vector<FileStatus>();
+		for (FileStatus file : fileSystem.listStatus(entry)) {
+			String name = file.getPath().getName();
+			if (!file.isDir() && !name.equals(READY) && !name.startsWith(TEMP)) {
+				files.add(file);
+			}
+		}
+		return files;
+	}
+
+	// local files without checksums
+	private FileSystem getFileSystem(Path path) throws IOException {
+		if ("file".equals(path.toUri().getScheme())) {
+			return FileSystem.getLocal(fileSystem.getConf()).getRaw();
+		}
+		return path.getFileSystem(fileSystem.getConf());
+	}
+
+	private void writeMarker(Path marker, int snpInfo) throws IOException {
+		OutputStream out = fileSystem.create(marker, true);
+		out.write(Integer.toString(snpInfo).getBytes("UTF-8"));
+		out.close();
+	}
+
+	/**
+	 * deletes least recently used entries until the cache is not larger than
+	 * maxSize. Returns the number of deleted entries.
+	 */
+	public int evict(long maxSize) throws IOException {
+
+		Path path = new Path(folder);
+		if (!fileSystem.exists(path)) {
+			return 0;
+		}
+
+		final List<FileStatus> entries = new Vector<FileStatus>();
+		final List<Long> sizes = new Vector<Long>();
+		long size = 0;
+
+		for (FileStatus entry : fileSystem.listStatus(path)) {
+			long entrySize = fileSystem.getContentSummary(entry.getPath()).getLength();
+			size += entrySize;
+			// entries are written by running tasks
+			if (entry.getPath().getName().startsWith(TEMP)) {
+				continue;
+			}
+			Path marker = new Path(entry.getPath(), READY);
+			if (fileSystem.exists(marker)) {
+				entries.add(fileSystem.getFileStatus(marker));
+			} else {
+				entries.add(entry);
+			}
+			sizes.add(entrySize);
+		}
+
+		// oldest access first
+		List<Integer> order = new Vector<Integer>();
+		for (int i = 0; i < entries.size(); i++) {
+			order.add(i);
+		}
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.valueOf(entries.get(a).getModificationTime()).compareTo(
+						entries.get(b).getModificationTime());
+			}
+		});
+
+		int deleted = 0;
+		for (int i = 0; i < order.size() && size > maxSize; i++) {
+			FileStatus entry = entries.get(order.get(i));
+			Path entryPath = entry.getPath().getName().equals(READY) ? entry.getPath().getParent() : entry
+					.getPath();
+			fileSystem.delete(entryPath, true);
+			size -= sizes.get(order.get(i));
+			deleted++;
+		}
+
+		return deleted;
+
+	}
+
+}
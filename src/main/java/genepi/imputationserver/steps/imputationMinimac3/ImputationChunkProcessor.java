@@ -0,0 +1,343 @@
+package genepi.imputationserver.steps.imputationMinimac3;
+
+import genepi.hadoop.HdfsUtil;
+import genepi.hadoop.PreferenceStore;
+import genepi.imputationserver.steps.vcf.VcfChunk;
+import genepi.imputationserver.steps.vcf.VcfChunkOutput;
+import genepi.imputationserver.util.FileMerger;
+import genepi.imputationserver.util.FileMerger.BgzipSplitOutputStream;
+import genepi.imputationserver.util.StreamingStage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * Imputes one chunk and stores the info file and the dose file (split into
+ * header and data) in the output folder. Used by ImputationMapperMinimac3 and
+ * LocalImputation. Every chunk gets its own copy of the pipeline, so one
+ * processor can be used by several threads.
+ *
+ * A marker file (chunk id + {@link #DONE}) is written after all files of a
+ * chunk are stored, so a retried job can skip completed chunks.
+ *
+ * With a {@link ChunkResultCache} the output files of a chunk are restored
+ * from the cache instead of running the pipeline.
+ *
+ * Additional reference panels (see {@link #addPanel(String, String, String)})
+ * impute the phased chunk again, their files are stored in the subfolder
+ * {@link #PANEL_PREFIX} + id of the output folder. The cache is only used
+ * without additional panels.
+ *
+ * With streaming (see {@link #setStreaming(String)}) header/data split and
+ * upload of the dose file run while minimac is writing it (see
+ * {@link StreamingStage}): {@link #FIFO} replaces the dose file by a named
+ * pipe, {@link #TAIL} follows the growing dose file.
+ */
+public class ImputationChunkProcessor {
+
+	public static final String DONE = ".done";
+
+	public static final String PANEL_PREFIX = "panel_";
+
+	// job.config: false, fifo (or true) or tail
+	public static final String STREAMING = "minimac.pipeline.streaming";
+
+	public static final String FIFO = "fifo";
+
+	public static final String TAIL = "tail";
+
+	private final ImputationPipelineMinimac3 pipeline;
+
+	private final String output;
+
+	private final boolean keepFiles;
+
+	private ChunkResultCache cache;
+
+	private boolean readCache = true;
+
+	private List<String[]> panels = new Vector<String[]>();
+
+	private String streaming = null;
+
+	public ImputationChunkProcessor(ImputationPipelineMinimac3 pipeline, String output, boolean keepFiles) {
+		this.pipeline = pipeline;
+		this.output = output;
+		this.keepFiles = keepFiles;
+	}
+
+	/**
+	 * sets the cache for imputed chunks. If readCache is false, chunks are
+	 * only stored.
+	 */
+	public void setCache(ChunkResultCache cache, boolean readCache) {
+		this.cache = cache;
+		this.readCache = readCache;
+	}
+
+	/**
+	 * streams the dose files to hdfs ({@link #FIFO}, {@link #TAIL} or null).
+	 * Named pipes are not used if files are kept (debugging).
+	 */
+	public void setStreaming(String streaming) {
+		this.streaming = streaming;
+	}
+
+	/**
+	 * returns the streaming mode of job.config or null.
+	 */
+	public static String getStreaming(PreferenceStore store) {
+		String value = store.getString(STREAMING);
+		if (value == null) {
+			return null;
+		}
+		value = value.trim();
+		if (value.equals("true") || value.equals(FIFO)) {
+			return FIFO;
+		}
+		if (value.equals(TAIL)) {
+			return TAIL;
+		}
+		return null;
+	}
+
+	public ImputationPipelineMinimac3 getPipeline() {
+		return pipeline;
+	}
+
+	/**
+	 * adds a reference panel. refFilename is the extracted panel archive.
+	 */
+	public void addPanel(String id, String refFilename, String pattern) {
+		panels.add(new String[] { id, refFilename, pattern });
+	}
+
+	/**
+	 * returns the number of snps in the info file or -1 if imputation failed.
+	 */
+	public int process(VcfChunk chunk, String folder) throws IOException, InterruptedException {
+		return process(chunk, folder, null);
+	}
+
+	/**
+	 * imputes an unphased chunk with the given phased vcf file (see
+	 * {@link ChromosomePhasing}), phasing of the chunk is skipped.
+	 */
+	public int process(VcfChunk chunk, String folder, String phasedVcfFilename) throws IOException,
+			InterruptedException {
+
+		// chunk is renamed by the pipeline (chrX)
+		String id = chunk.getId();
+		String chromosome = chunk.getChromosome();
+
+		VcfChunkOutput outputChunk = new VcfChunkOutput(chunk, folder);
+
+		HdfsUtil.get(chunk.getVcfFilename(), outputChunk.getVcfFilename());
+
+		String key = null;
+		boolean useCache = cache != null && panels.isEmpty();
+		if (useCache) {
+			key = cache.getKey(outputChunk.getVcfFilename(), chunk);
+			int snpInfo = readCache ? cache.restore(key, output, pipeline.getOutputName(chunk)) : -1;
+			if (snpInfo != -1) {
+				System.out.println("Chunk " + id + " restored from cache.");
+				HdfsUtil.create(HdfsUtil.path(output, id + DONE)).close();
+				if (!keepFiles) {
+					deleteChunkFiles(folder, id);
+				}
+				return snpInfo;
+			}
+		}
+
+		ImputationPipelineMinimac3 chunkPipeline = new ImputationPipelineMinimac3(pipeline);
+		chunkPipeline.setPhasedVcfFilename(phasedVcfFilename);
+
+		DoseUpload upload = startUpload(chunk, outputChunk, output);
+		boolean succesful = chunkPipeline.execute(chunk, outputChunk);
+		if (upload != null) {
+			finishUpload(upload, succesful);
+		}
+		if (!succesful) {
+			return -1;
+		}
+
+		// fix window bug in minimac
+		int snpInfo = chunkPipeline.fixInfoFile(chunk, outputChunk);
+
+		storeOutput(chunk, outputChunk, output, upload, snpInfo);
+
+		if (useCache) {
+			List<String> files = new Vector<String>();
+			files.add(HdfsUtil.path(output, chunk + ".info"));
+			files.add(HdfsUtil.path(output, chunk + ".data.dose.vcf.gz"));
+			files.add(HdfsUtil.path(output, chunk + ".header.dose.vcf.gz"));
+			files.add(HdfsUtil.path(output, chunk + ".data.dose.vcf.gz.tbi"));
+			try {
+				cache.put(key, chunk.toString(), files, snpInfo);
+			} catch (IOException e) {
+				// imputation is still successful
+				System.out.println("Chunk " + id + " not cached: " + e.getMessage());
+			}
+		}
+
+		// same phased chunk, other reference panels
+		for (String[] panel : panels) {
+			String refPanelFilename = ImputationPipelineMinimac3.getRefPanelFilename(panel[1], panel[2], chromosome);
+			String panelOutput = HdfsUtil.path(output, PANEL_PREFIX + panel[0]);
+			DoseUpload panelUpload = startUpload(chunk, outputChunk, panelOutput);
+			succesful = chunkPipeline.imputeVCF(outputChunk, refPanelFilename);
+			if (panelUpload != null) {
+				finishUpload(panelUpload, succesful);
+			}
+			if (!succesful) {
+				return -1;
+			}
+			int panelSnpInfo = chunkPipeline.fixInfoFile(chunk, outputChunk);
+			storeOutput(chunk, outputChunk, panelOutput, panelUpload, panelSnpInfo);
+		}
+
+		// chunk is complete
+		HdfsUtil.create(HdfsUtil.path(output, id + DONE)).close();
+
+		// a split can contain several chunks (see ChunkInputFormat)
+		if (!keepFiles) {
+			deleteChunkFiles(folder, id);
+		}
+
+		return snpInfo;
+
+	}
+
+	// returns null if streaming is disabled or not supported
+	private DoseUpload startUpload(VcfChunk chunk, VcfChunkOutput outputChunk, String output) throws IOException,
+			InterruptedException {
+
+		if (streaming == null || (streaming.equals(FIFO) && keepFiles)) {
+			return null;
+		}
+
+		// chunk is renamed by the pipeline (chrX), files get the final name
+		DoseUpload upload = new DoseUpload(pipeline.getOutputName(chunk), outputChunk.getImputedVcfFilename(), output);
+		upload.setTail(streaming.equals(TAIL));
+		if (!upload.start()) {
+			return null;
+		}
+		return upload;
+
+	}
+
+	// rest of the dose file after minimac has finished
+	private void finishUpload(DoseUpload upload, boolean successful) throws IOException, InterruptedException {
+		long start = System.currentTimeMillis();
+		upload.finish(successful);
+		long end = System.currentTimeMillis();
+		System.out.println("Time final flush: " + (end - start) + " ms");
+	}
+
+	// stores info file and dose file (split into header and data) of a chunk
+	private void storeOutput(VcfChunk chunk, VcfChunkOutput outputChunk, String output, DoseUpload upload,
+			int snpInfo) throws IOException {
+
+		// store info file
+		HdfsUtil.put(outputChunk.getInfoFixedFilename(), HdfsUtil.path(output, chunk + ".info"));
+
+		// dose file is already stored
+		if (upload != null) {
+			// minimac writes the file once, otherwise data is missing
+			if (upload.getLines() < snpInfo) {
+				throw new IOException("Dose file of chunk " + chunk + " incomplete: " + upload.getLines()
+						+ " lines, " + snpInfo + " snps in info file.");
+			}
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+
+		// store vcf file (remove header) and the index of the data part
+		BgzipSplitOutputStream outData = new BgzipSplitOutputStream(
+				HdfsUtil.create(HdfsUtil.path(output, chunk + ".data.dose.vcf.gz")));
+
+		BgzipSplitOutputStream outHeader = new BgzipSplitOutputStream(
+				HdfsUtil.create(HdfsUtil.path(output, chunk + ".header.dose.vcf.gz")));
+
+		FileMerger.splitIntoHeaderAndData(outputChunk.getImputedVcfFilename(), outHeader, outData,
+				HdfsUtil.create(HdfsUtil.path(output, chunk + ".data.dose.vcf.gz.tbi")));
+		long end = System.currentTimeMillis();
+
+		System.out.println("Time filter and put: " + (end - start) + " ms");
+
+	}
+
+	/**
+	 * splits the dose file into header and data while minimac writes it.
+	 */
+	public static class DoseUpload extends StreamingStage {
+
+		private String name;
+
+		private String output;
+
+		private volatile int lines = 0;
+
+		/**
+		 * name is the output name of the chunk (see
+		 * {@link ImputationPipelineMinimac3#getOutputName(VcfChunk)}).
+		 */
+		public DoseUpload(String name, String filename, String output) {
+			super(filename);
+			this.name = name;
+			this.output = output;
+		}
+
+		@Override
+		protected void consume(InputStream in) throws IOException {
+
+			long start = System.currentTimeMillis();
+
+			BgzipSplitOutputStream outData = new BgzipSplitOutputStream(
+					HdfsUtil.create(HdfsUtil.path(output, name + ".data.dose.vcf.gz")));
+
+			BgzipSplitOutputStream outHeader = new BgzipSplitOutputStream(
+					HdfsUtil.create(HdfsUtil.path(output, name + ".header.dose.vcf.gz")));
+
+			lines = FileMerger.splitIntoHeaderAndData(in, outHeader, outData,
+					HdfsUtil.create(HdfsUtil.path(output, name + ".data.dose.vcf.gz.tbi")));
+			long end = System.currentTimeMillis();
+
+			System.out.println("Time filter and put (streamed): " + (end - start) + " ms");
+
+		}
+
+		public int getLines() {
+			return lines;
+		}
+
+	}
+
+	/**
+	 * returns true if the chunk was imputed by a previous attempt.
+	 */
+	public boolean isDone(VcfChunk chunk) {
+		return isDone(output, chunk);
+	}
+
+	public static boolean isDone(String output, VcfChunk chunk) {
+		return HdfsUtil.exists(HdfsUtil.path(output, chunk.getId() + DONE));
+	}
+
+	private void deleteChunkFiles(String folder, String id) {
+		File[] files = new File(folder).listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			if (file.isFile() && file.getName().startsWith(id)) {
+				file.delete();
+			}
+		}
+	}
+
+}
@@ -4,15 +4,24 @@ import genepi.hadoop.CacheStore;
 import genepi.hadoop.HadoopJob;
 import genepi.hadoop.HdfsUtil;
 import genepi.hadoop.log.LogCollector;
+import genepi.imputationserver.util.ChunkInputFormat;
 import genepi.io.FileUtil;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Vector;
 
 import org.apache.commons.logging.Log;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
-import org.apache.hadoop.mapreduce.lib.input.NLineInputFormat;
 
+/**
+ * Imputation job for the chunks of one chromosome. If no chromosome is set,
+ * the job imputes the chunks of all chromosome files in the input folder:
+ * eagle reference panels are then downloaded by the mapper for the
+ * chromosomes of its split and every imputed chunk increments the counter of
+ * its chromosome in the group {@link #CHUNKS}.
+ */
 public class ImputationJobMinimac3 extends HadoopJob {
 
 	public static final String REF_PANEL = "MINIMAC_REFPANEL";
@@ -49,6 +58,27 @@ public class ImputationJobMinimac3 extends HadoopJob {
 
 	public static final String CHROMOSOME = "CHROMOSOME";
 
+	public static final String REF_PANEL_VERSION = "MINIMAC_REFPANEL_VERSION";
+
+	public static final String NO_CACHE = "MINIMAC_NO_CACHE";
+
+	// additional reference panels, hdfs and pattern by REF_PANEL_HDFS + "_" +
+	// id and REF_PANEL_PATTERN + "_" + id
+	public static final String PANELS = "MINIMAC_PANELS";
+
+	// counter group with imputed chunks per chromosome
+	public static final String CHUNKS = "IMPUTED_CHUNKS";
+
+	// one split per chromosome, phased once with the vcores of the task
+	public static final String CHROMOSOME_PHASING = "MINIMAC_CHROMOSOME_PHASING";
+
+	public static final String VCORES = "mapreduce.map.cpu.vcores";
+
+	// chunks of a chromosome that are imputed in parallel by a map task
+	public static final String PARALLEL_CHUNKS = "MINIMAC_PARALLEL_CHUNKS";
+
+	public static final String MAP_MEMORY = "mapred.job.map.memory.mb";
+
 	private String refPanelHdfs;
 
 	private String logFilename;
@@ -69,6 +99,10 @@ public class ImputationJobMinimac3 extends HadoopJob {
 
 	private String chr;
 
+	private List<String> panelsHdfs = new Vector<String>();
+
+	private String panels = "";
+
 	public ImputationJobMinimac3(String name, Log log, String queue) {
 		super(name, log);
 		set("mapred.task.timeout", "720000000");
@@ -82,10 +116,8 @@ public class ImputationJobMinimac3 extends HadoopJob {
 	@Override
 	public void setupJob(Job job) {
 
-		NLineInputFormat.setNumLinesPerSplit(job, 1);
-
 		job.setMapperClass(ImputationMapperMinimac3.class);
-		job.setInputFormatClass(NLineInputFormat.class);
+		job.setInputFormatClass(ChunkInputFormat.class);
 
 		job.setMapOutputKeyClass(Text.class);
 		job.setMapOutputValueClass(Text.class);
@@ -107,6 +139,10 @@ public class ImputationJobMinimac3 extends HadoopJob {
 
 		cache.addArchive(name, refPanelHdfs);
 
+		for (String panelHdfs : panelsHdfs) {
+			cache.addArchive(FileUtil.getFilename(panelHdfs), panelHdfs);
+		}
+
 		// add ShapeIT Map File to cache
 
 		if (mapShapeITHDFS != null) {
@@ -138,10 +174,11 @@ public class ImputationJobMinimac3 extends HadoopJob {
 			}
 		}
 
-		// add Eagle Refpanel File for this chromosome to cache
+		// add Eagle Refpanel File for this chromosome to cache (all
+		// chromosomes: mappers download the files they need)
 		if (refPanelEagleHDFS != null) {
 			if (HdfsUtil.exists(refPanelEagleHDFS)) {
-				if (!chr.contains("X")) {
+				if (chr != null && !chr.contains("X")) {
 					String chrFilename = refPanelEaglePattern.replaceAll("\\$chr", chr);
 					String refFilePath = HdfsUtil.path(refPanelEagleHDFS, chrFilename);
 					if (!HdfsUtil.exists(refFilePath)) {
@@ -180,6 +217,11 @@ public class ImputationJobMinimac3 extends HadoopJob {
 		// delete temp directory for mapred output
 		HdfsUtil.delete(HdfsUtil.path(getOutput(), "temp"));
 
+		// all chromosomes: temp directory is next to the chromosome folders
+		if (chr == null) {
+			HdfsUtil.delete(HdfsUtil.path(get(OUTPUT), "temp"));
+		}
+
 	}
 
 	@Override
@@ -207,6 +249,23 @@ public class ImputationJobMinimac3 extends HadoopJob {
 		set(REF_PANEL_PATTERN, refPanelPattern);
 	}
 
+	/**
+	 * adds a reference panel that imputes the phased chunks again.
+	 */
+	public void addPanel(String id, String hdfs, String pattern) {
+		panelsHdfs.add(hdfs);
+		panels += (panels.isEmpty() ? "" : ",") + id;
+		set(PANELS, panels);
+		set(REF_PANEL_HDFS + "_" + id, hdfs);
+		set(REF_PANEL_PATTERN + "_" + id, pattern);
+	}
+
+	public void setRefPanelVersion(String version) {
+		if (version != null) {
+			set(REF_PANEL_VERSION, version);
+		}
+	}
+
 	public void setRefPanelHdfs(String refPanelHdfs) {
 		this.refPanelHdfs = refPanelHdfs;
 		set(REF_PANEL_HDFS, refPanelHdfs);
@@ -234,6 +293,7 @@ public class ImputationJobMinimac3 extends HadoopJob {
 
 	public void setNoCache(boolean noCache) {
 		this.noCache = noCache;
+		set(NO_CACHE, noCache);
 	}
 
 	public void setMinimacBin(String minimacBin) {
@@ -273,6 +333,28 @@ public class ImputationJobMinimac3 extends HadoopJob {
 		set(REF_PANEL_EAGLE_PATTERN, refPanelPattern);
 	}
 
+	/**
+	 * phases each chromosome once (see ChromosomePhasing). A map task gets all
+	 * chunks of a chromosome and phases them with the given number of threads.
+	 *
+	 * Vcores are only reserved by YARN, on MR1 a map task uses one slot. There
+	 * the task reserves memory (in MB) instead: with memory based scheduling
+	 * it occupies memory / mapred.cluster.map.memory.mb slots. Chunks are
+	 * imputed in parallel (vcores minimac processes) only if memory is set,
+	 * otherwise one after the other. Phasing still runs with vcores threads.
+	 */
+	public void setChromosomePhasing(int vcores, String memory) {
+		set(CHROMOSOME_PHASING, true);
+		set(ChunkInputFormat.PER_CHROMOSOME, true);
+		set(VCORES, vcores);
+		if (memory != null && !memory.trim().isEmpty()) {
+			set(MAP_MEMORY, memory.trim());
+			set(PARALLEL_CHUNKS, vcores);
+		} else {
+			set(PARALLEL_CHUNKS, 1);
+		}
+	}
+
 	public void setChromosome(String chr) {
 		this.chr = chr;
 		set(CHROMOSOME, chr);
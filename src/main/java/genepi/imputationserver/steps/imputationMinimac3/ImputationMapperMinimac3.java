@@ -6,9 +6,7 @@ import genepi.hadoop.ParameterStore;
 import genepi.hadoop.PreferenceStore;
 import genepi.hadoop.log.Log;
 import genepi.imputationserver.steps.vcf.VcfChunk;
-import genepi.imputationserver.steps.vcf.VcfChunkOutput;
-import genepi.imputationserver.util.FileMerger;
-import genepi.imputationserver.util.FileMerger.BgzipSplitOutputStream;
+import genepi.imputationserver.util.ParallelBgzfOutputStream;
 import genepi.io.FileUtil;
 import genepi.io.text.LineReader;
 
@@ -16,6 +14,16 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
 import org.apache.hadoop.io.LongWritable;
@@ -26,6 +34,21 @@ public class ImputationMapperMinimac3 extends Mapper<LongWritable, Text, Text, T
 
 	private ImputationPipelineMinimac3 pipeline;
 
+	private Map<String, ImputationChunkProcessor> processors = new HashMap<String, ImputationChunkProcessor>();
+
+	private CacheStore cache;
+
+	private ChunkResultCache resultCache;
+
+	private boolean readResultCache;
+
+	private List<String[]> panels = new Vector<String[]>();
+
+	// null if the job imputes all chromosomes
+	private String chromosome;
+
+	private String refEagleHdfs;
+
 	public String folder;
 
 	private String pattern;
@@ -52,12 +75,21 @@ public class ImputationMapperMinimac3 extends Mapper<LongWritable, Text, Text, T
 
 	private String mapEagleFilename = "";
 
-	private String refEagleFilename = "";
-
 	private String refEaglePattern = "";
 
 	private boolean debugging;
 
+	// all chunks of a chromosome in one split, phased once
+	private boolean chromosomePhasing;
+
+	// phasing threads (vcores of the task)
+	private int threads = 1;
+
+	// chunks imputed in parallel
+	private int parallelChunks = 1;
+
+	private String streaming;
+
 	private Log log;
 
 	protected void setup(Context context) throws IOException, InterruptedException {
@@ -97,18 +129,26 @@ public class ImputationMapperMinimac3 extends Mapper<LongWritable, Text, Text, T
 		String minimacBin = parameters.get(ImputationJobMinimac3.MINIMAC_BIN);
 
 		// get cached files
-		CacheStore cache = new CacheStore(context.getConfiguration());
+		cache = new CacheStore(context.getConfiguration());
 		refFilename = cache.getArchive(referencePanel);
 
+		// additional reference panels
+		String panelIds = parameters.get(ImputationJobMinimac3.PANELS);
+		if (panelIds != null && !panelIds.isEmpty()) {
+			for (String id : panelIds.split(",")) {
+				String panelHdfs = parameters.get(ImputationJobMinimac3.REF_PANEL_HDFS + "_" + id);
+				String panelPattern = parameters.get(ImputationJobMinimac3.REF_PANEL_PATTERN + "_" + id);
+				panels.add(new String[] { id, cache.getArchive(FileUtil.getFilename(panelHdfs)), panelPattern });
+			}
+		}
+
 		mapShapeITFilename = cache.getArchive(mapShapeIT);
 		mapHapiURFilename = cache.getArchive(mapHapiUR);
 		mapEagleFilename = cache.getFile(mapEagle);
 
 		refEaglePattern = parameters.get(ImputationJobMinimac3.REF_PANEL_EAGLE_PATTERN);
-		String chr = parameters.get(ImputationJobMinimac3.CHROMOSOME);
-		String chrFilename = refEaglePattern.replaceAll("\\$chr", chr);
-		refEagleFilename = cache.getFile(FileUtil.getFilename(chrFilename));
-		String indexFilename = cache.getFile(FileUtil.getFilename(chrFilename + ".csi"));
+		refEagleHdfs = parameters.get(ImputationJobMinimac3.REF_PANEL_EAGLE_HDFS);
+		chromosome = parameters.get(ImputationJobMinimac3.CHROMOSOME);
 
 		String minimacCommand = cache.getFile(minimacBin);
 		String hapiUrCommand = cache.getFile("hapi-ur");
@@ -122,21 +162,11 @@ public class ImputationMapperMinimac3 extends Mapper<LongWritable, Text, Text, T
 
 		// create temp directory
 		PreferenceStore store = new PreferenceStore(context.getConfiguration());
+		ParallelBgzfOutputStream.configure(store);
 		folder = store.getString("minimac.tmp");
 		folder = FileUtil.path(folder, context.getTaskAttemptID().toString());
 		FileUtil.createDirectory(folder);
 
-		// create symbolic link --> index file is in the same folder as data
-
-		if (!chr.startsWith("X")) {
-			Files.createSymbolicLink(Paths.get(FileUtil.path(folder, "ref_" + chr + ".bcf")),
-					Paths.get(refEagleFilename));
-			Files.createSymbolicLink(Paths.get(FileUtil.path(folder, "ref_" + chr + ".bcf.csi")),
-					Paths.get(indexFilename));
-			// update reference path to symbolic link
-			refEagleFilename = FileUtil.path(folder, "ref_" + chr + ".bcf");
-		}
-
 		// read debugging flag
 		String debuggingString = store.getString("debugging");
 		if (debuggingString == null || debuggingString.equals("false")) {
@@ -147,6 +177,11 @@ public class ImputationMapperMinimac3 extends Mapper<LongWritable, Text, Text, T
 
 		int phasingWindow = Integer.parseInt(store.getString("phasing.window"));
 
+		chromosomePhasing = "true".equals(parameters.get(ImputationJobMinimac3.CHROMOSOME_PHASING));
+		streaming = ImputationChunkProcessor.getStreaming(store);
+		threads = context.getConfiguration().getInt(ImputationJobMinimac3.VCORES, 1);
+		parallelChunks = context.getConfiguration().getInt(ImputationJobMinimac3.PARALLEL_CHUNKS, 1);
+
 		// config pipeline
 		pipeline = new ImputationPipelineMinimac3();
 		pipeline.setMinimacCommand(minimacCommand);
@@ -164,6 +199,89 @@ public class ImputationMapperMinimac3 extends Mapper<LongWritable, Text, Text, T
 		pipeline.setRounds(Integer.parseInt(rounds));
 		pipeline.setMinimacWindow(Integer.parseInt(window));
 
+		pipeline.setRefFilename(refFilename);
+		pipeline.setPattern(pattern);
+		pipeline.setMapShapeITPattern(mapShapeITPattern);
+		pipeline.setMapShapeITFilename(mapShapeITFilename);
+		pipeline.setMapHapiURFilename(mapHapiURFilename);
+		pipeline.setMapHapiURPattern(mapHapiURPattern);
+		pipeline.setMapEagleFilename(mapEagleFilename);
+		pipeline.setRefEaglePattern(refEaglePattern);
+		pipeline.setPhasing(phasing);
+		pipeline.setPopulation(population);
+
+		// imputed chunks of previous jobs
+		resultCache = ChunkResultCache.create(store);
+		if (resultCache != null) {
+			// chromosome phasing changes the phased haplotypes
+			resultCache.setParameters(parameters.get(ImputationJobMinimac3.REF_PANEL), hdfsPath,
+					parameters.get(ImputationJobMinimac3.REF_PANEL_VERSION), pattern, phasing, population, rounds,
+					window, minimacBin, phasingWindow + (chromosomePhasing ? ":chromosome" : ""));
+			readResultCache = !"true".equals(parameters.get(ImputationJobMinimac3.NO_CACHE));
+		}
+
+		// phased chunks of previous jobs, independent of the reference panel.
+		// The population sets the effective size of shapeit, the region of
+		// the chunk is part of the key (see ChunkResultCache)
+		ChunkResultCache phasingCache = ChunkResultCache.create(store, ChunkResultCache.PHASING_FOLDER);
+		if (phasingCache != null) {
+			phasingCache.setParameters(phasing, population, hdfsPathMapEagle, refEagleHdfs, refEaglePattern,
+					hdfsPathShapeITMap, mapShapeITPattern, hdfsPathHapiURMap, mapHapiURPattern, phasingWindow + "");
+			pipeline.setPhasingCache(phasingCache,
+					!"true".equals(parameters.get(ImputationJobMinimac3.NO_CACHE)));
+		}
+
+	}
+
+	/**
+	 * returns the processor of a chromosome. Eagle reference panels are taken
+	 * from the distributed cache (one chromosome per job) or downloaded from
+	 * hdfs (all chromosomes in one job).
+	 */
+	private synchronized ImputationChunkProcessor getProcessor(String chr) throws IOException {
+
+		ImputationChunkProcessor processor = processors.get(chr);
+		if (processor != null) {
+			return processor;
+		}
+
+		ImputationPipelineMinimac3 chrPipeline = new ImputationPipelineMinimac3(pipeline);
+
+		if (refEaglePattern != null && refEagleHdfs != null && !chr.startsWith("X")) {
+
+			String chrFilename = refEaglePattern.replaceAll("\\$chr", chr);
+			String refEagleFilename = FileUtil.path(folder, "ref_" + chr + ".bcf");
+
+			if (chromosome != null) {
+				// create symbolic link --> index file is in the same folder as
+				// data
+				Files.createSymbolicLink(Paths.get(refEagleFilename),
+						Paths.get(cache.getFile(FileUtil.getFilename(chrFilename))));
+				Files.createSymbolicLink(Paths.get(refEagleFilename + ".csi"),
+						Paths.get(cache.getFile(FileUtil.getFilename(chrFilename + ".csi"))));
+			} else {
+				String refFilePath = HdfsUtil.path(refEagleHdfs, chrFilename);
+				HdfsUtil.get(refFilePath, refEagleFilename);
+				HdfsUtil.get(refFilePath + ".csi", refEagleFilename + ".csi");
+			}
+
+			chrPipeline.setRefEagleFilename(refEagleFilename);
+
+		}
+
+		// one output folder per chromosome
+		String chrOutput = chromosome != null ? output : HdfsUtil.path(output, chr);
+		processor = new ImputationChunkProcessor(chrPipeline, chrOutput, debugging);
+		processor.setStreaming(streaming);
+		for (String[] panel : panels) {
+			processor.addPanel(panel[0], panel[1], panel[2]);
+		}
+		if (resultCache != null) {
+			processor.setCache(resultCache, readResultCache);
+		}
+		processors.put(chr, processor);
+		return processor;
+
 	}
 
 	@Override
@@ -174,60 +292,172 @@ public class ImputationMapperMinimac3 extends Mapper<LongWritable, Text, Text, T
 		System.out.println("Delete temp folder.");
 	}
 
-	public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+	@Override
+	public void run(Context context) throws IOException, InterruptedException {
+
+		setup(context);
+
+		if (!chromosomePhasing) {
+			while (context.nextKeyValue()) {
+				map(context.getCurrentKey(), context.getCurrentValue(), context);
+			}
+			cleanup(context);
+			return;
+		}
 
 		try {
 
-			if (value.toString() == null || value.toString().isEmpty()) {
-				return;
+			// all chunks of the split (one chromosome, see ChunkInputFormat)
+			Map<String, List<VcfChunk>> chromosomes = new LinkedHashMap<String, List<VcfChunk>>();
+			while (context.nextKeyValue()) {
+				String line = context.getCurrentValue().toString();
+				if (line.isEmpty()) {
+					continue;
+				}
+				VcfChunk chunk = new VcfChunk(line);
+				List<VcfChunk> chunks = chromosomes.get(chunk.getChromosome());
+				if (chunks == null) {
+					chunks = new Vector<VcfChunk>();
+					chromosomes.put(chunk.getChromosome(), chunks);
+				}
+				chunks.add(chunk);
 			}
 
-			VcfChunk chunk = new VcfChunk(value.toString());
+			for (String chr : chromosomes.keySet()) {
+				if (!processChromosome(chr, chromosomes.get(chr), context)) {
+					break;
+				}
+			}
+
+		} catch (IOException e) {
+			if (!debugging) {
+				System.out.println("Mapper Task failed.");
+				cleanup(context);
+			}
+			throw e;
+		}
+
+		cleanup(context);
 
-			VcfChunkOutput outputChunk = new VcfChunkOutput(chunk, folder);
+	}
 
-			HdfsUtil.get(chunk.getVcfFilename(), outputChunk.getVcfFilename());
+	/**
+	 * phases the unphased chunks of a chromosome once and imputes all chunks
+	 * in parallel (one thread per vcore).
+	 */
+	private boolean processChromosome(String chr, List<VcfChunk> chunks, final Context context) throws IOException,
+			InterruptedException {
 
-			pipeline.setRefFilename(refFilename);
-			pipeline.setPattern(pattern);
-			pipeline.setMapShapeITPattern(mapShapeITPattern);
-			pipeline.setMapShapeITFilename(mapShapeITFilename);
-			pipeline.setMapHapiURFilename(mapHapiURFilename);
-			pipeline.setMapHapiURPattern(mapHapiURPattern);
-			pipeline.setMapEagleFilename(mapEagleFilename);
-			pipeline.setRefEagleFilename(refEagleFilename);
-			pipeline.setRefEaglePattern(refEaglePattern);
-			pipeline.setPhasing(phasing);
-			pipeline.setPopulation(population);
+		ImputationChunkProcessor processor = getProcessor(chr);
 
-			boolean succesful = pipeline.execute(chunk, outputChunk);
-			if (succesful) {
-				log.info("Imputation for chunk " + chunk + " successful.");
-			} else {
+		List<VcfChunk> unphased = new Vector<VcfChunk>();
+		for (VcfChunk chunk : chunks) {
+			if (!chunk.isPhased() && !processor.isDone(chunk)) {
+				unphased.add(chunk);
+			}
+		}
+
+		Map<String, String> phased = new HashMap<String, String>();
+		if (!unphased.isEmpty() && ChromosomePhasing.isSupported(chr, phasing)) {
+			ChromosomePhasing chromosomePhasing = new ChromosomePhasing(processor.getPipeline(), FileUtil.path(
+					folder, "chr_" + chr), threads);
+			phased = chromosomePhasing.phase(unphased);
+			if (phased == null) {
+				log.stop("Phasing of chromosome " + chr + " failed!", "");
+				return false;
+			}
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(parallelChunks);
+		try {
+
+			List<Future<Boolean>> results = new Vector<Future<Boolean>>();
+			for (final VcfChunk chunk : chunks) {
+				final String phasedVcfFilename = phased.get(chunk.getId());
+				results.add(pool.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception {
+						String chunkFolder = FileUtil.path(folder, chunk.getId());
+						FileUtil.createDirectory(chunkFolder);
+						try {
+							return process(chunk, chunkFolder, phasedVcfFilename, context);
+						} finally {
+							if (!debugging) {
+								FileUtil.deleteDirectory(chunkFolder);
+							}
+						}
+					}
+				}));
+			}
+
+			boolean successful = true;
+			for (Future<Boolean> result : results) {
+				if (!result.get()) {
+					successful = false;
+				}
+			}
+			return successful;
+
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+			if (!debugging) {
+				FileUtil.deleteDirectory(FileUtil.path(folder, "chr_" + chr));
+			}
+		}
+
+	}
+
+	// imputes one chunk, returns false if imputation failed
+	private boolean process(VcfChunk chunk, String chunkFolder, String phasedVcfFilename, Context context)
+			throws IOException, InterruptedException {
+
+		// chunk is renamed by the pipeline (chrX)
+		String chr = chunk.getChromosome();
+
+		// imputed by a previous attempt
+		ImputationChunkProcessor processor = getProcessor(chr);
+		if (processor.isDone(chunk)) {
+			synchronized (log) {
+				log.info("Chunk " + chunk + " already imputed.");
+			}
+			context.getCounter(ImputationJobMinimac3.CHUNKS, chr).increment(1);
+			return true;
+		}
+
+		int snpInfo = processor.process(chunk, chunkFolder, phasedVcfFilename);
+
+		synchronized (log) {
+
+			if (snpInfo == -1) {
 				log.stop("Imputation failed!", "");
-				return;
+				return false;
 			}
 
-			// fix window bug in minimac
-			int snpInfo = pipeline.fixInfoFile(chunk, outputChunk);
+			context.getCounter(ImputationJobMinimac3.CHUNKS, chr).increment(1);
+
+			log.info("Imputation for chunk " + chunk + " successful.");
 			log.info("  " + chunk.toString() + " Snps in info chunk: " + snpInfo);
 
-			// store info file
-			HdfsUtil.put(outputChunk.getInfoFixedFilename(), HdfsUtil.path(output, chunk + ".info"));
+		}
 
-			long start = System.currentTimeMillis();
+		return true;
 
-			// store vcf file (remove header)
-			BgzipSplitOutputStream outData = new BgzipSplitOutputStream(
-					HdfsUtil.create(HdfsUtil.path(output, chunk + ".data.dose.vcf.gz")));
+	}
 
-			BgzipSplitOutputStream outHeader = new BgzipSplitOutputStream(
-					HdfsUtil.create(HdfsUtil.path(output, chunk + ".header.dose.vcf.gz")));
+	public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
 
-			FileMerger.splitIntoHeaderAndData(outputChunk.getImputedVcfFilename(), outHeader, outData);
-			long end = System.currentTimeMillis();
+		try {
+
+			if (value.toString() == null || value.toString().isEmpty()) {
+				return;
+			}
 
-			System.out.println("Time filter and put: " + (end - start) + " ms");
+			process(new VcfChunk(value.toString()), folder, null, context);
 
 		} catch (Exception e) {
 			if (!debugging) {
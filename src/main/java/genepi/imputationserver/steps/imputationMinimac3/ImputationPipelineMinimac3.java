@@ -4,15 +4,19 @@ import genepi.hadoop.command.Command;
 import genepi.imputationserver.steps.vcf.VcfChunk;
 import genepi.imputationserver.steps.vcf.VcfChunkOutput;
 import genepi.imputationserver.util.GenomicTools;
+import genepi.imputationserver.util.ParallelBgzfOutputStream;
 import genepi.io.FileUtil;
 import genepi.io.plink.MapFileReader;
 import genepi.io.plink.Snp;
 import genepi.io.text.LineReader;
 import genepi.io.text.LineWriter;
-import htsjdk.samtools.util.BlockCompressedOutputStream;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Vector;
 
 import org.apache.commons.io.FileUtils;
 
@@ -30,6 +34,7 @@ public class ImputationPipelineMinimac3 {
 	private String refPanelFilename;
 	private int minimacWindow;
 	private int phasingWindow;
+	private int phasingThreads = 1;
 	private int rounds;
 
 	private String refFilename;
@@ -49,25 +54,93 @@ public class ImputationPipelineMinimac3 {
 	private String population;
 	private String phasing;
 
-	public boolean execute(VcfChunk chunk, VcfChunkOutput output) throws InterruptedException, IOException {
-
-		System.out.println("Starting pipeline for chunk " + chunk + "...");
-
-		String chrFilename = "";
+	private ChunkResultCache phasingCache;
+	private boolean readPhasingCache = true;
+
+	// slice of a phased chromosome (see ChromosomePhasing)
+	private String phasedVcfFilename;
+
+	public ImputationPipelineMinimac3() {
+
+	}
+
+	/**
+	 * creates a pipeline with the same settings. A pipeline is not
+	 * thread-safe, parallel chunks need their own copy.
+	 */
+	public ImputationPipelineMinimac3(ImputationPipelineMinimac3 pipeline) {
+		minimacCommand = pipeline.minimacCommand;
+		hapiUrCommand = pipeline.hapiUrCommand;
+		hapiUrPreprocessCommand = pipeline.hapiUrPreprocessCommand;
+		shapeItCommand = pipeline.shapeItCommand;
+		eagleCommand = pipeline.eagleCommand;
+		tabixCommand = pipeline.tabixCommand;
+		vcfCookerCommand = pipeline.vcfCookerCommand;
+		vcf2HapCommand = pipeline.vcf2HapCommand;
+		bgzipCommand = pipeline.bgzipCommand;
+		refPanelFilename = pipeline.refPanelFilename;
+		minimacWindow = pipeline.minimacWindow;
+		phasingWindow = pipeline.phasingWindow;
+		rounds = pipeline.rounds;
+		refFilename = pipeline.refFilename;
+		pattern = pipeline.pattern;
+		mapShapeITPattern = pipeline.mapShapeITPattern;
+		mapShapeITFilename = pipeline.mapShapeITFilename;
+		mapHapiURFilename = pipeline.mapHapiURFilename;
+		mapHapiURPattern = pipeline.mapHapiURPattern;
+		mapEagleFilename = pipeline.mapEagleFilename;
+		refEagleFilename = pipeline.refEagleFilename;
+		refEaglePattern = pipeline.refEaglePattern;
+		population = pipeline.population;
+		phasing = pipeline.phasing;
+		phasingCache = pipeline.phasingCache;
+		readPhasingCache = pipeline.readPhasingCache;
+	}
+
+	/**
+	 * sets the cache for phased chunks. If readCache is false, phased chunks
+	 * are only stored.
+	 */
+	public void setPhasingCache(ChunkResultCache phasingCache, boolean readCache) {
+		this.phasingCache = phasingCache;
+		this.readPhasingCache = readCache;
+	}
+
+	/**
+	 * sets the phased vcf file of an unphased chunk. Phasing is skipped.
+	 */
+	public void setPhasedVcfFilename(String phasedVcfFilename) {
+		this.phasedVcfFilename = phasedVcfFilename;
+	}
+
+	/**
+	 * returns the name of the output files of a chunk. As in execute, chrX
+	 * chunks are renamed to X, only unphased chunks phased with eagle keep
+	 * their name.
+	 */
+	public String getOutputName(VcfChunk chunk) {
+
+		String chromosome = chunk.getChromosome();
+		boolean eagle = !chunk.isPhased() && !chromosome.equals("X.no.auto_male") && phasing.equals("eagle");
+		if (!chromosome.contains("X") || eagle) {
+			return chunk.toString();
+		}
 
-		if (chunk.getChromosome().startsWith("X.no.auto")) {
+		VcfChunk renamed = new VcfChunk();
+		renamed.setChromosome("X");
+		renamed.setStart(chunk.getStart());
+		renamed.setEnd(chunk.getEnd());
+		return renamed.toString();
 
-			chrFilename = pattern.replaceAll("\\$chr", "X.Non.Pseudo.Auto");
+	}
 
-		} else if (chunk.getChromosome().equals("X.auto")) {
+	public boolean execute(VcfChunk chunk, VcfChunkOutput output) throws InterruptedException, IOException {
 
-			chrFilename = pattern.replaceAll("\\$chr", "X.Pseudo.Auto");
+		System.out.println("Starting pipeline for chunk " + chunk + "...");
 
-		} else {
-			chrFilename = pattern.replaceAll("\\$chr", chunk.getChromosome());
-		}
+		String chrFilename = "";
 
-		String refPanelFilename = FileUtil.path(refFilename, chrFilename);
+		String refPanelFilename = getRefPanelFilename(refFilename, pattern, chunk.getChromosome());
 
 		if (!new File(refPanelFilename).exists()) {
 			System.out.println("ReferencePanel '" + refPanelFilename + "' not found.");
@@ -89,7 +162,7 @@ public class ImputationPipelineMinimac3 {
 				output.setChromosome("X");
 			}
 
-			FileUtil.copy(output.getVcfFilename(), output.getPhasedVcfFilename());
+			link(output.getVcfFilename(), output.getPhasedVcfFilename());
 
 			long time = System.currentTimeMillis();
 			boolean successful = imputeVCF(output);
@@ -105,7 +178,31 @@ public class ImputationPipelineMinimac3 {
 
 		} else {
 
-			if (phasing.equals("eagle")) {
+			// phased chunk of a previous job (other panel or re-run)
+			String phasingKey = null;
+			boolean phased = false;
+			if (phasedVcfFilename != null) {
+				link(phasedVcfFilename, output.getPhasedVcfFilename());
+				System.out.println("  Chunk phased with its chromosome.");
+				phased = true;
+			} else if (phasingCache != null) {
+				phasingKey = phasingCache.getKey(output.getVcfFilename(), chunk);
+				if (readPhasingCache && phasingCache.restoreFile(phasingKey, output.getPhasedVcfFilename())) {
+					System.out.println("  Phased chunk restored from cache.");
+					phased = true;
+					// replace X.nonpar / X.par with X (see vcfToBed)
+					if (!phasing.equals("eagle") && chunk.getChromosome().contains("X")) {
+						chunk.setChromosome("X");
+						output.setChromosome("X");
+					}
+				}
+			}
+
+			if (phased) {
+
+				// phasing is skipped
+
+			} else if (phasing.equals("eagle")) {
 
 				// eagle
 				long time = System.currentTimeMillis();
@@ -206,6 +303,14 @@ public class ImputationPipelineMinimac3 {
 				}
 			}
 
+			if (phasingCache != null && !phased) {
+				try {
+					phasingCache.putFile(phasingKey, output.getPhasedVcfFilename());
+				} catch (IOException e) {
+					System.out.println("  Phased chunk not cached: " + e.getMessage());
+				}
+			}
+
 			long time = System.currentTimeMillis();
 			boolean successful = imputeVCF(output);
 			time = (System.currentTimeMillis() - time) / 1000;
@@ -224,6 +329,51 @@ public class ImputationPipelineMinimac3 {
 		}
 	}
 
+	/**
+	 * phases the merged chunks of a chromosome with eagle or shapeit and the
+	 * given number of threads (see ChromosomePhasing). The phased file is
+	 * output.getPhasedVcfFilename().
+	 */
+	public boolean phaseChromosome(VcfChunk chunk, VcfChunkOutput output, int threads) {
+
+		// only phasing of the whole chromosome is multithreaded, chunks are
+		// phased with one thread
+		ImputationPipelineMinimac3 pipeline = new ImputationPipelineMinimac3(this);
+		pipeline.phasingThreads = threads;
+
+		long time = System.currentTimeMillis();
+		boolean successful = false;
+
+		if (phasing.equals("eagle")) {
+
+			if (!new File(refEagleFilename).exists()) {
+				System.out.println("Eagle: Reference '" + refEagleFilename + "' not found.");
+				return false;
+			}
+			successful = pipeline.phaseWithEagle(chunk, output, refEagleFilename, mapEagleFilename);
+
+		} else if (phasing.equals("shapeit")) {
+
+			String mapfilePath = FileUtil.path(mapShapeITFilename,
+					mapShapeITPattern.replaceAll("\\$chr", chunk.getChromosome()));
+			if (!new File(mapfilePath).exists()) {
+				System.out.println("Map '" + mapfilePath + "' not found.");
+				return false;
+			}
+			successful = pipeline.vcfToBed(output) && pipeline.phaseWithShapeIt(chunk, output, false, mapfilePath);
+
+		} else {
+			System.out.println("Phasing of whole chromosomes is not supported by " + phasing + ".");
+			return false;
+		}
+
+		time = (System.currentTimeMillis() - time) / 1000;
+		System.out.println("  Phasing of chromosome " + chunk.getChromosome() + (successful ? " successful" : " failed")
+				+ " [" + time + " sec, " + threads + " threads]");
+		return successful;
+
+	}
+
 	public boolean vcfToBed(VcfChunkOutput output) {
 
 		Command vcfCooker = new Command(vcfCookerCommand);
@@ -365,15 +515,20 @@ public class ImputationPipelineMinimac3 {
 
 		Command shapeIt = new Command(shapeItCommand);
 		shapeIt.setSilent(false);
+		List<String> params = new Vector<String>();
 		if (chrX) {
-			shapeIt.setParams("--input-bed", output.getBedFilename(), output.getBimFilename(), output.getFamFilename(),
+			addParams(params, "--input-bed", output.getBedFilename(), output.getBimFilename(), output.getFamFilename(),
 					"--input-map", mapFilename, "--output-max", output.getPrefix(), "--input-from", start + "",
 					"--input-to", end + "", "--chrX", "--effective-size", GenomicTools.getPopSize(population) + "");
 		} else {
-			shapeIt.setParams("--input-bed", output.getBedFilename(), output.getBimFilename(), output.getFamFilename(),
+			addParams(params, "--input-bed", output.getBedFilename(), output.getBimFilename(), output.getFamFilename(),
 					"--input-map", mapFilename, "--output-max", output.getPrefix(), "--input-from", start + "",
 					"--input-to", end + "", "--effective-size", GenomicTools.getPopSize(population) + "");
 		}
+		if (phasingThreads > 1) {
+			addParams(params, "--thread", phasingThreads + "");
+		}
+		shapeIt.setParams(params);
 		shapeIt.saveStdOut(output.getPrefix() + ".shapeit.out");
 		shapeIt.saveStdErr(output.getPrefix() + ".shapeit.err");
 		System.out.println("Command: " + shapeIt.getExecutedCommand());
@@ -417,7 +572,7 @@ public class ImputationPipelineMinimac3 {
 		try {
 			boolean first = true;
 			LineReader reader = new LineReader(output.getVcfFilename());
-			BlockCompressedOutputStream out = new BlockCompressedOutputStream(output.getVcfFilename() + ".gz");
+			ParallelBgzfOutputStream out = new ParallelBgzfOutputStream(output.getVcfFilename() + ".gz");
 			while (reader.next()) {
 				if (!first) {
 					out.write("\n".getBytes());
@@ -453,10 +608,15 @@ public class ImputationPipelineMinimac3 {
 		Command eagle = new Command(eagleCommand);
 		eagle.setSilent(false);
 
-		eagle.setParams("--vcfRef", reference, "--vcfTarget", output.getVcfFilename() + ".gz", "--geneticMapFile",
+		List<String> params = new Vector<String>();
+		addParams(params, "--vcfRef", reference, "--vcfTarget", output.getVcfFilename() + ".gz", "--geneticMapFile",
 				mapFilename, "--outPrefix", output.getPrefix(), "--chrom",
 				input.getChromosome().equals("X") ? "23" : input.getChromosome(), "--bpStart", start + "", "--bpEnd",
 				end + "", "--allowRefAltSwap");
+		if (phasingThreads > 1) {
+			addParams(params, "--numThreads", phasingThreads + "");
+		}
+		eagle.setParams(params);
 		eagle.saveStdOut(output.getPrefix() + ".eagle.out");
 		eagle.saveStdErr(output.getPrefix() + ".eagle.err");
 		System.out.println("Command: " + eagle.getExecutedCommand());
@@ -471,6 +631,75 @@ public class ImputationPipelineMinimac3 {
 		return true;
 	}
 
+	// input of the next stage without a copy, files are not modified
+	private static void link(String source, String target) {
+		try {
+			Files.deleteIfExists(Paths.get(target));
+			Files.createLink(Paths.get(target), Paths.get(source));
+		} catch (Exception e) {
+			FileUtil.copy(source, target);
+		}
+	}
+
+	private static void addParams(List<String> params, String... values) {
+		for (String value : values) {
+			params.add(value);
+		}
+	}
+
+	/**
+	 * returns the file of a chromosome in an extracted reference panel.
+	 * chromosome is the name before X is renamed (X.auto, X.no.auto_*).
+	 */
+	public static String getRefPanelFilename(String refFilename, String pattern, String chromosome) {
+
+		String chrFilename = "";
+
+		if (chromosome.startsWith("X.no.auto")) {
+
+			chrFilename = pattern.replaceAll("\\$chr", "X.Non.Pseudo.Auto");
+
+		} else if (chromosome.equals("X.auto")) {
+
+			chrFilename = pattern.replaceAll("\\$chr", "X.Pseudo.Auto");
+
+		} else {
+			chrFilename = pattern.replaceAll("\\$chr", chromosome);
+		}
+
+		return FileUtil.path(refFilename, chrFilename);
+
+	}
+
+	/**
+	 * imputes the phased chunk of a previous {@link #execute(VcfChunk, VcfChunkOutput)}
+	 * with another reference panel. Output files are overwritten.
+	 */
+	public boolean imputeVCF(VcfChunkOutput output, String refPanelFilename) throws InterruptedException,
+			IOException {
+
+		if (!new File(refPanelFilename).exists()) {
+			System.out.println("ReferencePanel '" + refPanelFilename + "' not found.");
+			return false;
+		}
+
+		setReferencePanel(refPanelFilename);
+
+		long time = System.currentTimeMillis();
+		boolean successful = imputeVCF(output);
+		time = (System.currentTimeMillis() - time) / 1000;
+
+		if (successful) {
+			System.out.println("  Minimac3 successful (" + FileUtil.getFilename(refPanelFilename) + ") [" + time
+					+ " sec]");
+		} else {
+			System.out.println("  Minimac3 failed (" + FileUtil.getFilename(refPanelFilename) + ") [" + time
+					+ " sec]");
+		}
+		return successful;
+
+	}
+
 	public boolean imputeVCF(VcfChunkOutput output) throws InterruptedException, IOException {
 
 		// mini-mac
@@ -654,6 +883,10 @@ public class ImputationPipelineMinimac3 {
 		this.phasingWindow = phasingWindow;
 	}
 
+	public int getPhasingWindow() {
+		return phasingWindow;
+	}
+
 	public void setReferencePanel(String refPanelFilename) {
 		this.refPanelFilename = refPanelFilename;
 	}
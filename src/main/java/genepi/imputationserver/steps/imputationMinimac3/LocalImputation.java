@@ -0,0 +1,400 @@
+package genepi.imputationserver.steps.imputationMinimac3;
+
+import genepi.hadoop.HdfsUtil;
+import genepi.imputationserver.steps.vcf.VcfChunk;
+import genepi.imputationserver.util.LocalCache;
+import genepi.io.FileUtil;
+import genepi.io.text.LineReader;
+import genepi.io.text.LineWriter;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Executes the imputation of several chromosomes without a Hadoop cluster.
+ * The chunks of all chromosomes are processed by one work-stealing thread
+ * pool with the same {@link ImputationChunkProcessor} as
+ * ImputationMapperMinimac3. Reference panels, maps and binaries are provided
+ * by a {@link LocalCache} instead of the distributed cache. The execution
+ * stops after the first failed chunk.
+ */
+public class LocalImputation {
+
+	private String folder;
+
+	private String tmp;
+
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	private String refPanelHdfs;
+
+	private String refPanelPattern;
+
+	private String mapShapeITHdfs;
+
+	private String mapShapeITPattern;
+
+	private String mapHapiURHdfs;
+
+	private String mapHapiURPattern;
+
+	private String mapEagleHdfs;
+
+	private String refEagleHdfs;
+
+	private String refPatternEagle;
+
+	private String population;
+
+	private String phasing;
+
+	private String rounds;
+
+	private String window;
+
+	private int phasingWindow;
+
+	private String minimacBin = "minimac";
+
+	private String streaming = null;
+
+	// additional reference panels: id, hdfs, pattern
+	private List<String[]> panels = new Vector<String[]>();
+
+	private Map<String, Chromosome> chromosomes = new LinkedHashMap<String, Chromosome>();
+
+	private volatile String failedChromosome;
+
+	public void addPanel(String id, String hdfs, String pattern) {
+		panels.add(new String[] { id, hdfs, pattern });
+	}
+
+	public void addChromosome(String chr, String input, String output, String logFilename) {
+		chromosomes.put(chr, new Chromosome(chr, input, output, logFilename));
+	}
+
+	public boolean execute() {
+
+		LocalCache cache = new LocalCache(FileUtil.path(tmp, "cache"));
+		ForkJoinPool pool = new ForkJoinPool(threads);
+
+		try {
+
+			setupCache(cache);
+
+			// submit all chunks of all chromosomes
+			CompletionService<Boolean> service = new ExecutorCompletionService<Boolean>(pool);
+			int tasks = 0;
+			for (Chromosome chromosome : chromosomes.values()) {
+				final Chromosome chr = chromosome;
+				chr.processor = new ImputationChunkProcessor(createPipeline(cache, chr.id),
+						chr.output, false);
+				chr.processor.setStreaming(streaming);
+				for (String[] panel : panels) {
+					chr.processor.addPanel(panel[0], cache.getArchive(FileUtil.getFilename(panel[1])), panel[2]);
+				}
+				LineReader reader = new LineReader(HdfsUtil.open(chr.input));
+				while (reader.next()) {
+					String line = reader.get();
+					if (line.isEmpty()) {
+						continue;
+					}
+					final VcfChunk chunk = new VcfChunk(line);
+					service.submit(new Callable<Boolean>() {
+						@Override
+						public Boolean call() throws Exception {
+							return process(chr, chunk);
+						}
+					});
+					tasks++;
+				}
+				reader.close();
+			}
+
+			// wait for all chunks, stop after the first failure
+			for (int i = 0; i < tasks; i++) {
+				if (!service.take().get()) {
+					return false;
+				}
+			}
+
+			return true;
+
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+			return false;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			pool.shutdownNow();
+			for (Chromosome chromosome : chromosomes.values()) {
+				chromosome.writeLog();
+			}
+			cache.close();
+		}
+
+	}
+
+	private boolean process(Chromosome chr, VcfChunk chunk) throws IOException, InterruptedException {
+
+		if (failedChromosome != null) {
+			return false;
+		}
+
+		String chunkFolder = FileUtil.path(tmp, chunk.getId());
+		FileUtil.createDirectory(chunkFolder);
+
+		try {
+
+			int snpInfo = chr.processor.process(chunk, chunkFolder);
+			if (snpInfo == -1) {
+				chr.log("Imputation for chunk " + chunk + " failed.");
+				setFailed(chr.id);
+				return false;
+			}
+
+			chr.log("Imputation for chunk " + chunk + " successful.");
+			chr.log("  " + chunk.toString() + " Snps in info chunk: " + snpInfo);
+			return true;
+
+		} catch (IOException e) {
+			chr.log("Imputation for chunk " + chunk + " failed: " + e.getMessage());
+			setFailed(chr.id);
+			throw e;
+		} finally {
+			FileUtil.deleteDirectory(chunkFolder);
+		}
+
+	}
+
+	private synchronized void setFailed(String chr) {
+		if (failedChromosome == null) {
+			failedChromosome = chr;
+		}
+	}
+
+	private void setupCache(LocalCache cache) throws IOException {
+
+		// binaries
+		for (String file : FileUtil.getFiles(FileUtil.path(folder, "bin"), "")) {
+			cache.addLocalFile(file);
+		}
+
+		cache.addArchive(FileUtil.getFilename(refPanelHdfs), refPanelHdfs);
+		for (String[] panel : panels) {
+			cache.addArchive(FileUtil.getFilename(panel[1]), panel[1]);
+		}
+
+		if (mapShapeITHdfs != null) {
+			if (!HdfsUtil.exists(mapShapeITHdfs)) {
+				throw new IOException("Map " + mapShapeITHdfs + " not found.");
+			}
+			cache.addArchive(FileUtil.getFilename(mapShapeITHdfs), mapShapeITHdfs);
+		}
+
+		if (mapHapiURHdfs != null) {
+			if (!HdfsUtil.exists(mapHapiURHdfs)) {
+				throw new IOException("Map " + mapHapiURHdfs + " not found.");
+			}
+			cache.addArchive(FileUtil.getFilename(mapHapiURHdfs), mapHapiURHdfs);
+		}
+
+		if (mapEagleHdfs != null) {
+			if (!HdfsUtil.exists(mapEagleHdfs)) {
+				throw new IOException("Map " + mapEagleHdfs + " not found.");
+			}
+			cache.addFile(mapEagleHdfs);
+		}
+
+		// eagle reference panels, index file is in the same folder as data
+		if (refEagleHdfs != null) {
+			if (!HdfsUtil.exists(refEagleHdfs)) {
+				throw new IOException("Eagle Reference Panel Folder " + refEagleHdfs + " not found.");
+			}
+			for (String chr : chromosomes.keySet()) {
+				if (!chr.contains("X")) {
+					String refFilePath = HdfsUtil.path(refEagleHdfs, refPatternEagle.replaceAll("\\$chr", chr));
+					if (!HdfsUtil.exists(refFilePath)) {
+						throw new IOException("Eagle Reference Panel " + refFilePath + " not found.");
+					}
+					cache.addFile(refFilePath);
+					cache.addFile(refFilePath + ".csi");
+				}
+			}
+		}
+
+	}
+
+	private ImputationPipelineMinimac3 createPipeline(LocalCache cache, String chr) {
+
+		ImputationPipelineMinimac3 pipeline = new ImputationPipelineMinimac3();
+		pipeline.setMinimacCommand(cache.getFile(minimacBin));
+		pipeline.setHapiUrCommand(cache.getFile("hapi-ur"));
+		pipeline.setVcfCookerCommand(cache.getFile("vcfCooker"));
+		pipeline.setVcf2HapCommand(cache.getFile("vcf2hap"));
+		pipeline.setShapeItCommand(cache.getFile("shapeit"));
+		pipeline.setEagleCommand(cache.getFile("eagle"));
+		pipeline.setTabixCommand(cache.getFile("tabix"));
+		pipeline.setBgzipCommand(cache.getFile("bgzip"));
+		pipeline.setHapiUrPreprocessCommand(cache.getFile("insert-map.pl"));
+		pipeline.setPhasingWindow(phasingWindow);
+
+		// Minimac3
+		pipeline.setRounds(Integer.parseInt(rounds));
+		pipeline.setMinimacWindow(Integer.parseInt(window));
+
+		pipeline.setRefFilename(cache.getArchive(FileUtil.getFilename(refPanelHdfs)));
+		pipeline.setPattern(refPanelPattern);
+		if (mapShapeITHdfs != null) {
+			pipeline.setMapShapeITFilename(cache.getArchive(FileUtil.getFilename(mapShapeITHdfs)));
+			pipeline.setMapShapeITPattern(mapShapeITPattern);
+		}
+		if (mapHapiURHdfs != null) {
+			pipeline.setMapHapiURFilename(cache.getArchive(FileUtil.getFilename(mapHapiURHdfs)));
+			pipeline.setMapHapiURPattern(mapHapiURPattern);
+		}
+		if (mapEagleHdfs != null) {
+			pipeline.setMapEagleFilename(cache.getFile(FileUtil.getFilename(mapEagleHdfs)));
+		}
+		if (refEagleHdfs != null && !chr.contains("X")) {
+			String chrFilename = refPatternEagle.replaceAll("\\$chr", chr);
+			pipeline.setRefEagleFilename(cache.getFile(FileUtil.getFilename(chrFilename)));
+			pipeline.setRefEaglePattern(refPatternEagle);
+		}
+		pipeline.setPhasing(phasing);
+		pipeline.setPopulation(population);
+
+		return pipeline;
+
+	}
+
+	public String getFailedChromosome() {
+		return failedChromosome;
+	}
+
+	public void setFolder(String folder) {
+		this.folder = folder;
+	}
+
+	public void setTmp(String tmp) {
+		this.tmp = tmp;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public void setRefPanelHdfs(String refPanelHdfs) {
+		this.refPanelHdfs = refPanelHdfs;
+	}
+
+	public void setRefPanelPattern(String refPanelPattern) {
+		this.refPanelPattern = refPanelPattern;
+	}
+
+	public void setMapShapeITHdfs(String mapShapeITHdfs) {
+		this.mapShapeITHdfs = mapShapeITHdfs;
+	}
+
+	public void setMapShapeITPattern(String mapShapeITPattern) {
+		this.mapShapeITPattern = mapShapeITPattern;
+	}
+
+	public void setMapHapiURHdfs(String mapHapiURHdfs) {
+		this.mapHapiURHdfs = mapHapiURHdfs;
+	}
+
+	public void setMapHapiURPattern(String mapHapiURPattern) {
+		this.mapHapiURPattern = mapHapiURPattern;
+	}
+
+	public void setMapEagleHdfs(String mapEagleHdfs) {
+		this.mapEagleHdfs = mapEagleHdfs;
+	}
+
+	public void setRefEagleHdfs(String refEagleHdfs) {
+		this.refEagleHdfs = refEagleHdfs;
+	}
+
+	public void setRefPatternEagle(String refPatternEagle) {
+		this.refPatternEagle = refPatternEagle;
+	}
+
+	public void setPopulation(String population) {
+		this.population = population;
+	}
+
+	public void setPhasing(String phasing) {
+		this.phasing = phasing;
+	}
+
+	public void setRounds(String rounds) {
+		this.rounds = rounds;
+	}
+
+	public void setWindow(String window) {
+		this.window = window;
+	}
+
+	public void setPhasingWindow(int phasingWindow) {
+		this.phasingWindow = phasingWindow;
+	}
+
+	public void setMinimacBin(String minimacBin) {
+		this.minimacBin = minimacBin;
+	}
+
+	public void setStreaming(String streaming) {
+		this.streaming = streaming;
+	}
+
+	class Chromosome {
+
+		private String id;
+
+		private String input;
+
+		private String output;
+
+		private String logFilename;
+
+		private ImputationChunkProcessor processor;
+
+		private List<String> messages = new Vector<String>();
+
+		public Chromosome(String id, String input, String output, String logFilename) {
+			this.id = id;
+			this.input = input;
+			this.output = output;
+			this.logFilename = logFilename;
+		}
+
+		public void log(String message) {
+			System.out.println("chr_" + id + ": " + message);
+			messages.add(message);
+		}
+
+		public void writeLog() {
+			try {
+				LineWriter writer = new LineWriter(logFilename);
+				for (String message : messages) {
+					writer.write(message);
+				}
+				writer.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,104 @@
+package genepi.imputationserver.steps.qc;
+
+import genepi.hadoop.HdfsUtil;
+import genepi.imputationserver.steps.vcf.VcfChunk;
+import genepi.imputationserver.util.HdfsSeekableStream;
+import htsjdk.tribble.readers.LineIteratorImpl;
+import htsjdk.tribble.readers.SynchronousLineReader;
+import htsjdk.tribble.readers.TabixReader;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFCodec;
+import htsjdk.variant.vcf.VCFHeader;
+import htsjdk.variant.vcf.VCFHeaderVersion;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Vector;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Reads the region of a chunk from a bgzipped vcf file. Only the tabix index
+ * is copied to local disk, the vcf file is read directly from hdfs. Not
+ * thread-safe, every thread needs its own reader.
+ */
+public class ChunkReader {
+
+	private String vcfFilename;
+
+	private TabixReader reader;
+
+	private List<String> headerLines;
+
+	private VCFCodec codec;
+
+	private VCFHeader header;
+
+	public ChunkReader(String vcfFilename, String indexFilename, String localIndexFilename) throws IOException {
+
+		HdfsUtil.get(indexFilename, localIndexFilename);
+
+		reader = new TabixReader(vcfFilename, localIndexFilename, new HdfsSeekableStream(vcfFilename));
+
+		headerLines = new Vector<String>();
+		String line = reader.readLine();
+		while (line != null && line.startsWith("#")) {
+			headerLines.add(line);
+			line = reader.readLine();
+		}
+
+		codec = new VCFCodec();
+		header = (VCFHeader) codec.readActualHeader(new LineIteratorImpl(
+				new SynchronousLineReader(new StringReader(StringUtils.join(headerLines, "\n")))));
+		codec.setVCFHeader(header, VCFHeaderVersion.VCF4_1);
+
+		this.vcfFilename = vcfFilename;
+
+	}
+
+	/**
+	 * returns all lines between start and end (1-based, inclusive).
+	 */
+	public TabixReader.Iterator query(VcfChunk chunk, int start, int end) {
+		// tabix uses 0-based start positions
+		return reader.query(getSequenceName(chunk), start - 1, end);
+	}
+
+	public VariantContext decode(String line) {
+		return codec.decode(line);
+	}
+
+	public List<String> getHeaderLines() {
+		return headerLines;
+	}
+
+	public VCFHeader getHeader() {
+		return header;
+	}
+
+	public String getVcfFilename() {
+		return vcfFilename;
+	}
+
+	public void close() {
+		reader.close();
+	}
+
+	private String getSequenceName(VcfChunk chunk) {
+
+		if (reader.getChromosomes().contains(chunk.getChromosome())) {
+			return chunk.getChromosome();
+		}
+
+		// chrX chunks are renamed (e.g. X.no.auto_male), but each file
+		// contains only one chromosome
+		for (String chromosome : reader.getChromosomes()) {
+			return chromosome;
+		}
+
+		return chunk.getChromosome();
+
+	}
+
+}
@@ -0,0 +1,194 @@
+package genepi.imputationserver.steps.qc;
+
+import genepi.hadoop.HdfsUtil;
+import genepi.imputationserver.steps.vcf.VcfChunk;
+import genepi.imputationserver.util.LocalCache;
+import genepi.io.FileUtil;
+import genepi.io.text.LineReader;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Executes the quality control without a Hadoop cluster. All chunks are
+ * processed by a work-stealing thread pool with the same
+ * {@link QualityControlProcessor} as QualityControlMapper, the manifest files
+ * are written like in QualityControlReducer.
+ */
+public class LocalQualityControl {
+
+	private String panelId;
+
+	private String legendHdfs;
+
+	private String legendPattern;
+
+	private String population;
+
+	private String input;
+
+	private String outputMaf;
+
+	private String outputManifest;
+
+	private String outputRemovedSnps;
+
+	private int phasingWindow;
+
+	private String folder;
+
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	private QualityControlResult result;
+
+	public boolean execute() {
+
+		LocalCache cache = new LocalCache(FileUtil.path(folder, "cache"));
+		PanelContext panel = null;
+		ForkJoinPool pool = new ForkJoinPool(threads);
+
+		try {
+
+			String legendFilename = FileUtil.getFilename(legendHdfs);
+			cache.addArchive(legendFilename, legendHdfs);
+
+			panel = new PanelContext(panelId, population, cache.getArchive(legendFilename), legendPattern,
+					phasingWindow);
+			final QualityControlProcessor processor = new QualityControlProcessor(panel, outputMaf,
+					outputRemovedSnps);
+
+			// submit all chunks
+			List<Future<QualityControlResult>> futures = new Vector<Future<QualityControlResult>>();
+			for (String chunkFile : HdfsUtil.getFiles(input)) {
+				LineReader reader = new LineReader(HdfsUtil.open(chunkFile));
+				while (reader.next()) {
+					String line = reader.get();
+					if (line.isEmpty()) {
+						continue;
+					}
+					final VcfChunk chunk = new VcfChunk(line);
+					futures.add(pool.submit(new Callable<QualityControlResult>() {
+						@Override
+						public QualityControlResult call() throws Exception {
+							return process(processor, chunk);
+						}
+					}));
+				}
+				reader.close();
+			}
+
+			// collect results (in chunk order)
+			result = new QualityControlResult();
+			Map<String, List<VcfChunk>> manifest = new LinkedHashMap<String, List<VcfChunk>>();
+			for (Future<QualityControlResult> future : futures) {
+				QualityControlResult chunkResult = future.get();
+				for (Map.Entry<String, Long> counter : chunkResult.getCounters().entrySet()) {
+					result.addCounter(counter.getKey(), counter.getValue());
+				}
+				VcfChunk chunk = chunkResult.getChunk();
+				if (chunk != null) {
+					List<VcfChunk> chunks = manifest.get(chunk.getChromosome());
+					if (chunks == null) {
+						chunks = new Vector<VcfChunk>();
+						manifest.put(chunk.getChromosome(), chunks);
+					}
+					chunks.add(chunk);
+				}
+			}
+
+			for (String chromosome : manifest.keySet()) {
+				QualityControlReducer.writeManifest(outputManifest, chromosome, manifest.get(chromosome));
+			}
+
+			return true;
+
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+			return false;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			pool.shutdownNow();
+			if (panel != null) {
+				try {
+					panel.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			cache.close();
+		}
+
+	}
+
+	private QualityControlResult process(QualityControlProcessor processor, VcfChunk chunk)
+			throws IOException, InterruptedException {
+
+		String index = FileUtil.path(folder, chunk.getId() + ".vcf.gz.tbi");
+		ChunkReader reader = new ChunkReader(chunk.getVcfFilename(), chunk.getIndexFilename(), index);
+		try {
+			return processor.process(chunk, reader);
+		} finally {
+			reader.close();
+			FileUtil.deleteFile(index);
+		}
+
+	}
+
+	public QualityControlResult getResult() {
+		return result;
+	}
+
+	public void setPanelId(String panelId) {
+		this.panelId = panelId;
+	}
+
+	public void setLegendHdfs(String legendHdfs) {
+		this.legendHdfs = legendHdfs;
+	}
+
+	public void setLegendPattern(String legendPattern) {
+		this.legendPattern = legendPattern;
+	}
+
+	public void setPopulation(String population) {
+		this.population = population;
+	}
+
+	public void setInput(String input) {
+		this.input = input;
+	}
+
+	public void setOutputMaf(String outputMaf) {
+		this.outputMaf = outputMaf;
+	}
+
+	public void setOutputManifest(String outputManifest) {
+		this.outputManifest = outputManifest;
+	}
+
+	public void setOutputRemovedSnps(String outputRemovedSnps) {
+		this.outputRemovedSnps = outputRemovedSnps;
+	}
+
+	public void setPhasingWindow(int phasingWindow) {
+		this.phasingWindow = phasingWindow;
+	}
+
+	public void setFolder(String folder) {
+		this.folder = folder;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+}
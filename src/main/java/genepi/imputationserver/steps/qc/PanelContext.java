@@ -0,0 +1,105 @@
+package genepi.imputationserver.steps.qc;
+
+import genepi.imputationserver.util.BinaryLegendIndex;
+import genepi.imputationserver.util.GenomicTools;
+import genepi.imputationserver.util.LegendIndex;
+import genepi.imputationserver.util.TextLegendIndex;
+import genepi.io.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reference panel settings of a qc job. The settings are immutable and the
+ * legend indices are opened once per chromosome and shared, so one context
+ * can be used by several threads at the same time.
+ */
+public class PanelContext {
+
+	private final String panelId;
+
+	private final int panelSize;
+
+	private final String population;
+
+	private final String legendFolder;
+
+	private final String legendPattern;
+
+	private final int phasingWindow;
+
+	private final Map<String, LegendIndex> indices = new HashMap<String, LegendIndex>();
+
+	public PanelContext(String panelId, String population, String legendFolder, String legendPattern,
+			int phasingWindow) {
+		this.panelId = panelId;
+		this.panelSize = GenomicTools.getPanelSize(panelId);
+		this.population = population;
+		this.legendFolder = legendFolder;
+		this.legendPattern = legendPattern;
+		this.phasingWindow = phasingWindow;
+	}
+
+	public String getPanelId() {
+		return panelId;
+	}
+
+	public int getPanelSize() {
+		return panelSize;
+	}
+
+	public String getPopulation() {
+		return population;
+	}
+
+	public int getPhasingWindow() {
+		return phasingWindow;
+	}
+
+	public synchronized LegendIndex getLegendIndex(String chromosome) throws IOException, InterruptedException {
+
+		LegendIndex index = indices.get(chromosome);
+		if (index != null) {
+			return index;
+		}
+
+		String chrFilename = legendPattern.replaceAll("\\$chr", chromosome);
+		String legendFile = FileUtil.path(legendFolder, chrFilename);
+
+		// use binary legend file (memory-mapped) if available
+		if (BinaryLegendIndex.exists(legendFile)) {
+			BinaryLegendIndex binaryIndex = new BinaryLegendIndex(BinaryLegendIndex.getFilename(legendFile),
+					population);
+			if (binaryIndex.hasPopulation(population)) {
+				index = binaryIndex;
+			} else {
+				binaryIndex.close();
+			}
+		}
+
+		if (index == null) {
+
+			if (!new File(legendFile).exists()) {
+				throw new InterruptedException("ReferencePanel '" + legendFile + "' not found.");
+			}
+
+			index = new TextLegendIndex(legendFile, population);
+
+		}
+
+		indices.put(chromosome, index);
+
+		return index;
+
+	}
+
+	public synchronized void close() throws IOException {
+		for (LegendIndex index : indices.values()) {
+			index.close();
+		}
+		indices.clear();
+	}
+
+}
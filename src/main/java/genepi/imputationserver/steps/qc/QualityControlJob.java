@@ -3,15 +3,17 @@ package genepi.imputationserver.steps.qc;
 import genepi.hadoop.CacheStore;
 import genepi.hadoop.HadoopJob;
 import genepi.hadoop.HdfsUtil;
+import genepi.imputationserver.util.ChunkInputFormat;
 import genepi.io.FileUtil;
 
 import java.io.IOException;
 
 import org.apache.commons.logging.Log;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.CounterGroup;
 import org.apache.hadoop.mapreduce.Job;
-import org.apache.hadoop.mapreduce.lib.input.NLineInputFormat;
+import org.apache.hadoop.mapreduce.lib.map.MultithreadedMapper;
 
 public class QualityControlJob extends HadoopJob {
 
@@ -32,6 +34,8 @@ public class QualityControlJob extends HadoopJob {
 	private String refPanelHdfs;
 	private String qcQueue;
 
+	private int threads = 1;
+
 	private long monomorphic;
 	private long alternativeAlleles;
 	private long noSnps;
@@ -68,10 +72,17 @@ public class QualityControlJob extends HadoopJob {
 	@Override
 	public void setupJob(Job job) {
 
-		NLineInputFormat.setNumLinesPerSplit(job, 1);
-		job.setMapperClass(QualityControlMapper.class);
+		// chunks of a split are processed in parallel, all threads share
+		// the legend files
+		if (threads > 1) {
+			job.setMapperClass(MultithreadedMapper.class);
+			MultithreadedMapper.setMapperClass(job, QualityControlMapper.class);
+			MultithreadedMapper.setNumberOfThreads(job, threads);
+		} else {
+			job.setMapperClass(QualityControlMapper.class);
+		}
 		job.setMapOutputKeyClass(Text.class);
-		job.setInputFormatClass(NLineInputFormat.class);
+		job.setInputFormatClass(ChunkInputFormat.class);
 		job.setReducerClass(QualityControlReducer.class);
 		job.setNumReduceTasks(22);
 
@@ -100,26 +111,11 @@ public class QualityControlJob extends HadoopJob {
 
 			CounterGroup counters = job.getCounters().getGroup("minimac");
 
-			monomorphic = counters.findCounter("monomorphic").getValue();
-			alternativeAlleles = counters.findCounter("alternativeAlleles").getValue();
-			noSnps = counters.findCounter("noSnps").getValue();
-			duplicates = counters.findCounter("duplicates").getValue();
-			filtered = counters.findCounter("filtered").getValue();
-			foundInLegend = counters.findCounter("foundInLegend").getValue();
-			notFoundInLegend = counters.findCounter("notFoundInLegend").getValue();
-			alleleMismatch = counters.findCounter("alleleMismatch").getValue();
-			toLessSamples = counters.findCounter("toLessSamples").getValue();
-			filterFlag = counters.findCounter("filterFlag").getValue();
-			invalidAlleles = counters.findCounter("invalidAlleles").getValue();
-			remainingSnps = counters.findCounter("remainingSnps").getValue();
-			removedChunksSnps = counters.findCounter("removedChunksSnps").getValue();
-			removedChunksOverlap = counters.findCounter("removedChunksOverlap").getValue();
-			removedChunksCallRate = counters.findCounter("removedChunksCallRate").getValue();
-			strandSwitch1 = counters.findCounter("strandSwitch1").getValue();
-			strandSwitch2 = counters.findCounter("strandSwitch2").getValue();
-			strandSwitch3 = counters.findCounter("strandSwitch3").getValue();
-			alleleSwitch = counters.findCounter("alleleSwitch").getValue();
-			match = counters.findCounter("match").getValue();
+			QualityControlResult result = new QualityControlResult();
+			for (Counter counter : counters) {
+				result.addCounter(counter.getName(), counter.getValue());
+			}
+			setCounters(result);
 
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -127,6 +123,34 @@ public class QualityControlJob extends HadoopJob {
 
 	}
 
+	/**
+	 * updates the statistics from the counters of a hadoop or local run.
+	 */
+	public void setCounters(QualityControlResult counters) {
+
+		monomorphic = counters.getCounter("monomorphic");
+		alternativeAlleles = counters.getCounter("alternativeAlleles");
+		noSnps = counters.getCounter("noSnps");
+		duplicates = counters.getCounter("duplicates");
+		filtered = counters.getCounter("filtered");
+		foundInLegend = counters.getCounter("foundInLegend");
+		notFoundInLegend = counters.getCounter("notFoundInLegend");
+		alleleMismatch = counters.getCounter("alleleMismatch");
+		toLessSamples = counters.getCounter("toLessSamples");
+		filterFlag = counters.getCounter("filterFlag");
+		invalidAlleles = counters.getCounter("invalidAlleles");
+		remainingSnps = counters.getCounter("remainingSnps");
+		removedChunksSnps = counters.getCounter("removedChunksSnps");
+		removedChunksOverlap = counters.getCounter("removedChunksOverlap");
+		removedChunksCallRate = counters.getCounter("removedChunksCallRate");
+		strandSwitch1 = counters.getCounter("strandSwitch1");
+		strandSwitch2 = counters.getCounter("strandSwitch2");
+		strandSwitch3 = counters.getCounter("strandSwitch3");
+		alleleSwitch = counters.getCounter("alleleSwitch");
+		match = counters.getCounter("match");
+
+	}
+
 	public void setLegendPattern(String refPanelPattern) {
 		set(LEGEND_PATTERN, refPanelPattern);
 	}
@@ -268,4 +292,12 @@ public class QualityControlJob extends HadoopJob {
 		this.qcQueue = qcQueue;
 	}
 
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,497 @@
+package genepi.imputationserver.steps.qc;
+
+import genepi.hadoop.HdfsUtil;
+import genepi.hadoop.io.HdfsLineWriter;
+import genepi.imputationserver.steps.vcf.VcfChunk;
+import genepi.imputationserver.util.AlleleCheck;
+import genepi.imputationserver.util.ChiSquareObject;
+import genepi.imputationserver.util.GenomicTools;
+import genepi.imputationserver.util.GenotypeCounts;
+import genepi.io.legend.LegendEntry;
+import htsjdk.tribble.readers.TabixReader;
+import htsjdk.variant.variantcontext.VariantContext;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Quality control of a single chunk. The processor has no mutable state, all
+ * per-chunk values are local to {@link #process(VcfChunk, ChunkReader)}, so
+ * one instance can be used by several threads as long as every thread uses
+ * its own {@link ChunkReader}.
+ */
+public class QualityControlProcessor {
+
+	private static final double CALL_RATE = 0.5;
+
+	private static final int MIN_SNPS = 3;
+
+	private static final double OVERLAP = 0.5;
+
+	private final PanelContext panel;
+
+	private final String output;
+
+	private final String outputRemovedSnps;
+
+	public QualityControlProcessor(PanelContext panel, String output, String outputRemovedSnps) {
+		this.panel = panel;
+		this.output = output;
+		this.outputRemovedSnps = outputRemovedSnps;
+	}
+
+	public QualityControlResult process(VcfChunk chunk, ChunkReader reader) throws IOException, InterruptedException {
+
+		QualityControlResult result = new QualityControlResult();
+
+		HdfsLineWriter statisticWriter = new HdfsLineWriter(HdfsUtil.path(output, chunk.toString()));
+
+		HdfsLineWriter logWriter = new HdfsLineWriter(HdfsUtil.path(outputRemovedSnps, chunk.toString()));
+
+		HdfsLineWriter chunkWriter = new HdfsLineWriter(
+				HdfsUtil.path(outputRemovedSnps, "exlcude" + chunk.toString()));
+
+		String hdfsFilename = chunk.getVcfFilename() + "_" + chunk.getId();
+
+		HdfsLineWriter newFileWriter = new HdfsLineWriter(hdfsFilename);
+		// +/- phasingWindow (1 Mbases default)
+		int start = chunk.getStart() - panel.getPhasingWindow();
+		if (start < 1) {
+			start = 1;
+		}
+
+		int end = chunk.getEnd() + panel.getPhasingWindow();
+
+		// copy header
+		for (String headerLine : reader.getHeaderLines()) {
+			newFileWriter.write(headerLine);
+		}
+
+		// seek to chunk start - phasingWindow and stop at chunk end +
+		// phasingWindow
+		TabixReader.Iterator records = reader.query(chunk, start, end);
+		String line;
+
+		int lastPos = 0;
+
+		int notFoundInLegend = 0;
+		int foundInLegend = 0;
+		int alleleMismatch = 0;
+		int alleleSwitch = 0;
+		int strandSwitch1 = 0;
+		int strandSwitch2 = 0;
+		int strandSwitch3 = 0;
+		int match = 0;
+
+		int lowCallRate = 0;
+		int filtered = 0;
+		int overallSnps = 0;
+		int validSnps = 0;
+		int monomorphic = 0;
+		int alternativeAlleles = 0;
+		int noSnps = 0;
+		int duplicates = 0;
+		int filterFlag = 0;
+		int invalidAlleles = 0;
+
+		int removedChunksSnps = 0;
+		int removedChunksOverlap = 0;
+		int removedChunksCallRate = 0;
+
+		int[] snpsPerSampleCount = new int[reader.getHeader().getNGenotypeSamples()];
+
+		// genotypes are counted directly on the line, VCFCodec is only
+		// used for records the scanner cannot handle
+		GenotypeCounts snp = new GenotypeCounts(reader.getHeader().getNGenotypeSamples());
+
+		while ((line = records.next()) != null) {
+
+			String tiles[] = splitSite(line);
+			String chromosome = tiles[0];
+			int position = Integer.parseInt(tiles[1]);
+			String id = tiles[2];
+			String ref = tiles[3];
+			String alt = tiles[4];
+			String filter = tiles[6];
+
+			boolean insideChunk = position >= chunk.getStart() && position <= chunk.getEnd();
+
+			// filter invalid alleles
+			if (!GenomicTools.isValid(ref) || !GenomicTools.isValid(alt)) {
+				if (insideChunk) {
+					logWriter.write("Invalid Alleles: " + tiles[0] + " (" + ref + "/" + alt + ")");
+					invalidAlleles++;
+					filtered++;
+				}
+				continue;
+			}
+
+			// count duplicates
+			if ((lastPos == position && lastPos > 0)) {
+
+				if (insideChunk) {
+					duplicates++;
+					logWriter.write("FILTER - Duplicate: " + id + " - pos: " + position);
+					// logWriter.write("COPY OF: " + tmp);
+					filtered++;
+				}
+
+				lastPos = position;
+				continue;
+
+			}
+
+			boolean isFiltered = !filter.equals(".") && !filter.equals("PASS");
+
+			// update last pos only when not filtered
+			if (!isFiltered) {
+				lastPos = position;
+			}
+
+			// filter flag
+			if (isFiltered) {
+				if (insideChunk) {
+
+					if (Arrays.asList(filter.split(";")).contains("DUP")) {
+						duplicates++;
+						logWriter.write("FILTER - Duplicate " + id + " - pos: " + position);
+						filtered++;
+					} else {
+
+						logWriter.write("FILTER - Flag is set: " + id + " - pos: " + position);
+						filterFlag++;
+						filtered++;
+					}
+				}
+				continue;
+			}
+
+			if (!snp.scan(line)) {
+				VariantContext variant = reader.decode(line);
+				snp.count(variant);
+			}
+
+			// alternative allele frequency
+			int hetVarOnes = snp.getHetCount();
+			int homVarOnes = snp.getHomVarCount() * 2;
+			double af = (double) ((hetVarOnes + homVarOnes)
+					/ (double) (((snp.getSamples() - snp.getNoCallCount()) * 2)));
+
+			if (af > 0.5) {
+				if (insideChunk) {
+					alternativeAlleles++;
+				}
+			}
+
+			// indels are already removed by the allele check above
+
+			// remove monomorphic snps
+			// monomorphic only exclude 0/0;
+			if (snp.isMonomorphic()
+					|| snp.getHetCount() == 2 * (snp.getSamples() - snp.getNoCallCount())) {
+				if (insideChunk) {
+					logWriter.write("FILTER - Monomorphic: " + id + " - pos: " + position);
+					monomorphic++;
+					filtered++;
+				}
+				continue;
+			}
+
+			LegendEntry refSnp = panel.getLegendIndex(chromosome).findByPosition(position);
+
+			// update Jul 8 2016: dont filter and add "allTypedSites"
+			// minimac3 option
+			if (refSnp == null) {
+
+				if (insideChunk) {
+
+					// overallSnps++;
+					notFoundInLegend++;
+
+					if (position >= start && position <= end) {
+						newFileWriter.write(line);
+					}
+				}
+
+				// continue;
+
+			} else {
+
+				if (insideChunk) {
+					foundInLegend++;
+				}
+
+				char legendRef = refSnp.getAlleleA();
+				char legendAlt = refSnp.getAlleleB();
+				char studyRef = Character.toUpperCase(ref.charAt(0));
+				char studyAlt = Character.toUpperCase(alt.charAt(0));
+
+				AlleleCheck check = GenomicTools.classify(studyRef, studyAlt, legendRef, legendAlt);
+
+				switch (check) {
+
+				/** simple match of ref/alt in study and legend file **/
+				case MATCH:
+
+					if (insideChunk) {
+						match++;
+					}
+					break;
+
+				/** count A/T C/G genotypes **/
+				case AMBIGUOUS:
+
+					if (insideChunk) {
+
+						strandSwitch2++;
+
+					}
+					break;
+
+				/**
+				 * simple allele switch check; ignore A/T C/G from above
+				 **/
+				case ALLELE_SWITCH:
+
+					if (insideChunk) {
+
+						alleleSwitch++;
+						logWriter.write("INFO - Allele switch: " + id + " - pos: " + position
+								+ " (ref: " + legendRef + "/" + legendAlt + ", data: " + studyRef + "/"
+								+ studyAlt + ")");
+					}
+					break;
+
+				/** simple strand swaps **/
+				case STRAND_SWAP:
+
+					if (insideChunk) {
+
+						strandSwitch1++;
+						filtered++;
+						logWriter.write("FILTER - Strand switch: " + id + " - pos: " + position
+								+ " (ref: " + legendRef + "/" + legendAlt + ", data: " + studyRef + "/"
+								+ studyAlt + ")");
+
+					}
+					continue;
+
+				case STRAND_SWAP_ALLELE_SWITCH:
+
+					if (insideChunk) {
+
+						filtered++;
+						strandSwitch3++;
+						logWriter.write("FILTER - Strand switch and Allele switch: " + id + " - pos: "
+								+ position + " (ref: " + legendRef + "/" + legendAlt + ", data: "
+								+ studyRef + "/" + studyAlt + ")");
+
+					}
+
+					continue;
+
+				// filter allele mismatches
+				default:
+
+					if (insideChunk) {
+						logWriter.write("FILTER - Allele mismatch: " + id + " - pos: " + position
+								+ " (ref: " + legendRef + "/" + legendAlt + ", data: " + studyRef + "/"
+								+ studyAlt + ")");
+						alleleMismatch++;
+						filtered++;
+					}
+					continue;
+				}
+
+				// filter low call rate
+				if (snp.getNoCallCount() / (double) snp.getSamples() > 0.10) {
+					if (insideChunk) {
+						logWriter.write("FILTER - Low call rate: " + id + " - pos: " + position + " ("
+								+ (1.0 - snp.getNoCallCount() / (double) snp.getSamples()) + ")");
+						lowCallRate++;
+						filtered++;
+					}
+					continue;
+				}
+
+				// allele-frequency check
+				if (insideChunk) {
+					if (!panel.getPopulation().equals("mixed")) {
+						SnpStats statistics;
+
+						// strand swaps are already filtered, A/T C/G snps can be switched
+						if (GenomicTools.alleleSwitch(studyRef, studyAlt, legendRef, legendAlt)) {
+
+							// swap alleles
+							statistics = calculateAlleleFreq(chromosome, position, studyRef, studyAlt, snp, refSnp,
+									true);
+						}
+
+						else {
+							statistics = calculateAlleleFreq(chromosome, position, studyRef, studyAlt, snp, refSnp,
+									false);
+						}
+
+						statisticWriter.write(id + "\t" + statistics.toString());
+					}
+					overallSnps++;
+				}
+
+				// write only SNPs into minimac file
+				// which came up to this point
+				if (position >= start && position <= end) {
+
+					newFileWriter.write(line);
+					validSnps++;
+
+					// check if all samples have
+					// enough SNPs
+					if (insideChunk) {
+						for (int i = 0; i < snpsPerSampleCount.length; i++) {
+							if (snp.isCalled(i)) {
+								snpsPerSampleCount[i] += 1;
+							}
+						}
+					}
+				}
+
+			}
+
+		}
+		newFileWriter.close();
+
+		// this checks if enough SNPs are included in each sample
+		boolean lowSampleCallRate = false;
+		for (int i = 0; i < snpsPerSampleCount.length; i++) {
+			int snps = snpsPerSampleCount[i];
+			double sampleCallRate = snps / (double) overallSnps;
+
+			if (sampleCallRate < CALL_RATE) {
+				lowSampleCallRate = true;
+				chunkWriter.write(
+						chunk.toString() + " Sample " + reader.getHeader().getSampleNamesInOrder().get(i)
+								+ ": call rate: " + sampleCallRate);
+			}
+
+		}
+
+		// this checks if the amount of not found SNPs in the reference
+		// panel is
+		// smaller than 50 %. At least 3 SNPs must be included in each chunk
+
+		double overlap = foundInLegend / (double) (foundInLegend + notFoundInLegend);
+
+		if (overlap >= OVERLAP && foundInLegend >= MIN_SNPS && !lowSampleCallRate && validSnps >= MIN_SNPS) {
+
+			// update chunk
+			chunk.setSnps(overallSnps);
+			chunk.setInReference(foundInLegend);
+			chunk.setSamples(reader.getHeader().getNGenotypeSamples());
+			chunk.setVcfFilename(hdfsFilename);
+			result.setChunk(chunk);
+		} else {
+
+			chunkWriter.write(chunk.toString() + " (Snps: " + overallSnps + ", Reference overlap: " + overlap
+					+ ", low sample call rates: " + lowSampleCallRate + ")");
+
+			if (overlap < OVERLAP) {
+				removedChunksOverlap++;
+			} else if (foundInLegend < MIN_SNPS || validSnps < MIN_SNPS) {
+				removedChunksSnps++;
+			} else if (lowSampleCallRate) {
+				removedChunksCallRate++;
+			}
+
+		}
+
+		statisticWriter.write("");
+		statisticWriter.close();
+
+		logWriter.write("");
+		logWriter.close();
+
+		chunkWriter.write("");
+		chunkWriter.close();
+
+		result.addCounter("alternativeAlleles", alternativeAlleles);
+		result.addCounter("monomorphic", monomorphic);
+		result.addCounter("noSnps", noSnps);
+		result.addCounter("duplicates", duplicates);
+		result.addCounter("foundInLegend", foundInLegend);
+		result.addCounter("notFoundInLegend", notFoundInLegend);
+
+		result.addCounter("alleleMismatch", alleleMismatch);
+		result.addCounter("strandSwitch1", strandSwitch1);
+		result.addCounter("strandSwitch2", strandSwitch2);
+		result.addCounter("strandSwitch3", strandSwitch3);
+		result.addCounter("match", match);
+		result.addCounter("alleleSwitch", alleleSwitch);
+
+		result.addCounter("toLessSamples", lowCallRate);
+		result.addCounter("filtered", filtered);
+		result.addCounter("removedChunksCallRate", removedChunksCallRate);
+		result.addCounter("removedChunksOverlap", removedChunksOverlap);
+		result.addCounter("removedChunksSnps", removedChunksSnps);
+		result.addCounter("filterFlag", filterFlag);
+		result.addCounter("invalidAlleles", invalidAlleles);
+		result.addCounter("remainingSnps", overallSnps);
+
+		return result;
+
+	}
+
+	private SnpStats calculateAlleleFreq(String chromosome, int position, char studyRef, char studyAlt,
+			GenotypeCounts snp, LegendEntry refSnp, boolean strandSwap) throws IOException, InterruptedException {
+
+		// calculate allele frequency
+		SnpStats output = new SnpStats();
+
+		ChiSquareObject chiObj = GenomicTools.chiSquare(snp, refSnp, strandSwap, panel.getPanelSize());
+
+		char majorAllele;
+		char minorAllele;
+
+		if (!strandSwap) {
+			majorAllele = studyRef;
+			minorAllele = studyAlt;
+
+		} else {
+			majorAllele = studyAlt;
+			minorAllele = studyRef;
+		}
+
+		output.setType("SNP");
+		output.setPosition(position);
+		output.setChromosome(chromosome);
+		output.setRefFrequencyA(refSnp.getFrequencyA());
+		output.setRefFrequencyB(refSnp.getFrequencyB());
+		output.setFrequencyA((float) chiObj.getP());
+		output.setFrequencyB((float) chiObj.getQ());
+		output.setChisq(chiObj.getChisq());
+		output.setAlleleA(majorAllele);
+		output.setAlleleB(minorAllele);
+		output.setRefAlleleA(refSnp.getAlleleA());
+		output.setRefAlleleB(refSnp.getAlleleB());
+		output.setOverlapWithReference(true);
+
+		return output;
+	}
+
+	// splits CHROM - FILTER without copying INFO and genotypes
+	private static String[] splitSite(String line) throws IOException {
+
+		String[] tiles = new String[7];
+		int start = 0;
+		for (int i = 0; i < tiles.length; i++) {
+			int end = line.indexOf('\t', start);
+			if (end == -1) {
+				throw new IOException("The provided VCF file is not tab-delimited");
+			}
+			tiles[i] = line.substring(start, end);
+			start = end + 1;
+		}
+		return tiles;
+
+	}
+
+}
@@ -39,7 +39,13 @@ public class QualityControlReducer extends Reducer<Text, Text, Text, Text> {
 		//VcfChunkUtil.mergeExcludedChunks(chunks);
 
 		// write merged chunks to manifest file
-		String filename = HdfsUtil.path(output, key.toString());
+		writeManifest(output, key.toString(), chunks);
+
+	}
+
+	public static void writeManifest(String output, String chromosome, List<VcfChunk> chunks) throws IOException {
+
+		String filename = HdfsUtil.path(output, chromosome);
 		HdfsLineWriter writer = new HdfsLineWriter(filename);
 		for (VcfChunk chunk : chunks) {
 			writer.write(chunk.serialize());
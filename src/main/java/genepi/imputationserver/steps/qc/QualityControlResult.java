@@ -0,0 +1,40 @@
+package genepi.imputationserver.steps.qc;
+
+import genepi.imputationserver.steps.vcf.VcfChunk;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Result of the quality control of one chunk: the updated chunk (null if the
+ * chunk was excluded) and the values of all qc counters.
+ */
+public class QualityControlResult {
+
+	private VcfChunk chunk;
+
+	private Map<String, Long> counters = new LinkedHashMap<String, Long>();
+
+	public VcfChunk getChunk() {
+		return chunk;
+	}
+
+	public void setChunk(VcfChunk chunk) {
+		this.chunk = chunk;
+	}
+
+	public void addCounter(String name, long value) {
+		Long oldValue = counters.get(name);
+		counters.put(name, oldValue == null ? value : oldValue + value);
+	}
+
+	public long getCounter(String name) {
+		Long value = counters.get(name);
+		return value == null ? 0 : value;
+	}
+
+	public Map<String, Long> getCounters() {
+		return counters;
+	}
+
+}
@@ -0,0 +1,424 @@
+package genepi.imputationserver.steps.vcf;
+
+import genepi.imputationserver.util.ParallelBgzfOutputStream;
+import genepi.io.text.LineReader;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.tribble.SimpleFeature;
+import htsjdk.tribble.index.Index;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+
+/**
+ * Splits a chromosome X file into males (non-PAR), females (non-PAR) and the
+ * PAR region without external tools. The input is read once: PAR sites are
+ * written directly, non-PAR sites are written to a bgzipped temp file while
+ * the sex of every sample is estimated like plink --check-sex (inbreeding
+ * coefficient F on non-PAR sites, F &gt; 0.8 male, F &lt; 0.2 female). A
+ * second pass over the non-PAR file writes the male and female files and
+ * checks that males have no heterozygous genotypes. All files are bgzipped
+ * and indexed, the returned VcfFiles contain the same statistics as
+ * {@link VcfFileUtil#load(String, int, boolean)}.
+ */
+public class ChrXPreparation {
+
+	public static final int NON_PAR_START = 2699520;
+
+	public static final int NON_PAR_END = 154931043;
+
+	public static final double MALE_F = 0.8;
+
+	public static final double FEMALE_F = 0.2;
+
+	private VcfFile file;
+
+	private String[] samples;
+
+	// sex check: observed and expected homozygous sites per sample
+	private int[] observed;
+
+	private double[] expected;
+
+	private int[] called;
+
+	private byte[] genotypes;
+
+	public ChrXPreparation(VcfFile file) {
+		this.file = file;
+	}
+
+	/**
+	 * returns males (non-PAR), females (non-PAR) and PAR.
+	 */
+	public List<VcfFile> execute() throws IOException {
+
+		String vcfFilename = file.getVcfFilename();
+		String nonParFilename = vcfFilename + ".no.auto.vcf.gz";
+
+		ParallelBgzfOutputStream nonPar = new ParallelBgzfOutputStream(nonParFilename);
+		IndexedVcfWriter par = new IndexedVcfWriter(vcfFilename + ".auto.vcf.gz", file.getChunkSize());
+		List<String> header = new Vector<String>();
+
+		LineReader reader = new LineReader(vcfFilename);
+		while (reader.next()) {
+
+			String line = reader.get();
+
+			if (line.startsWith("#")) {
+				if (line.startsWith("#CHROM")) {
+					String[] tiles = line.split("\t");
+					samples = Arrays.copyOfRange(tiles, 9, tiles.length);
+					observed = new int[samples.length];
+					expected = new double[samples.length];
+					called = new int[samples.length];
+					genotypes = new byte[samples.length];
+				}
+				header.add(line);
+				writeLine(nonPar, line);
+				par.writeHeader(line, samples != null ? samples.length : 0);
+				continue;
+			}
+
+			int tab1 = line.indexOf('\t');
+			int tab2 = tab1 == -1 ? -1 : line.indexOf('\t', tab1 + 1);
+			if (tab2 == -1) {
+				reader.close();
+				nonPar.close();
+				par.close();
+				throw new IOException("The provided VCF file is not tab-delimited");
+			}
+
+			if (!line.substring(0, tab1).equals("X")) {
+				reader.close();
+				nonPar.close();
+				par.close();
+				throw new IOException("The provided VCF file is not for chromosome X");
+			}
+
+			int position = Integer.parseInt(line.substring(tab1 + 1, tab2));
+			if (NON_PAR_START <= position && position <= NON_PAR_END) {
+				writeLine(nonPar, line);
+				checkSex(line);
+			} else {
+				par.write(line, position);
+			}
+
+		}
+		reader.close();
+		nonPar.close();
+		par.close();
+
+		// split non-PAR by sex
+		boolean[] males = new boolean[samples.length];
+		boolean[] females = new boolean[samples.length];
+		for (int i = 0; i < samples.length; i++) {
+			double f = getF(i);
+			males[i] = f > MALE_F;
+			females[i] = f < FEMALE_F;
+		}
+
+		IndexedVcfWriter male = new IndexedVcfWriter(vcfFilename + "-m.vcf.gz", file.getChunkSize());
+		IndexedVcfWriter female = new IndexedVcfWriter(vcfFilename + "-f.vcf.gz", file.getChunkSize());
+		StringBuilder doubleHaplotypes = new StringBuilder();
+
+		for (String line : header) {
+			if (line.startsWith("#CHROM")) {
+				male.writeHeader(select(line, males, null), count(males));
+				female.writeHeader(select(line, females, null), count(females));
+			} else {
+				male.writeHeader(line, count(males));
+				female.writeHeader(line, count(females));
+			}
+		}
+
+		BufferedReader nonParReader = new BufferedReader(new InputStreamReader(
+				new BlockCompressedInputStream(new FileInputStream(nonParFilename))));
+		String line;
+		while ((line = nonParReader.readLine()) != null) {
+			if (line.startsWith("#")) {
+				continue;
+			}
+			int tab1 = line.indexOf('\t');
+			int position = Integer.parseInt(line.substring(tab1 + 1, line.indexOf('\t', tab1 + 1)));
+			male.write(select(line, males, doubleHaplotypes), position);
+			female.write(select(line, females, null), position);
+		}
+		nonParReader.close();
+		male.close();
+		female.close();
+
+		if (doubleHaplotypes.length() > 0) {
+			throw new IOException(doubleHaplotypes.toString());
+		}
+
+		List<VcfFile> files = new Vector<VcfFile>();
+		files.add(male.getVcfFile("X.no.auto_male"));
+		files.add(female.getVcfFile("X.no.auto_female"));
+		files.add(par.getVcfFile("X.auto"));
+		return files;
+
+	}
+
+	/**
+	 * returns the inbreeding coefficient of a sample (NaN if no informative
+	 * sites).
+	 */
+	public double getF(int sample) {
+		if (called[sample] == 0 || called[sample] == expected[sample]) {
+			return Double.NaN;
+		}
+		return (observed[sample] - expected[sample]) / (called[sample] - expected[sample]);
+	}
+
+	public String[] getSamples() {
+		return samples;
+	}
+
+	private void checkSex(String line) {
+
+		// 0: hom-ref, 1: het, 2: hom-alt, 3: missing
+		int alleles = 0;
+		int calledSamples = 0;
+
+		int pos = nthTab(line, 9);
+		for (int i = 0; i < samples.length && pos != -1; i++) {
+			int end = line.indexOf('\t', pos + 1);
+			byte genotype = parseGenotype(line, pos + 1, end == -1 ? line.length() : end);
+			genotypes[i] = genotype;
+			if (genotype != 3) {
+				alleles += genotype;
+				calledSamples++;
+			}
+			pos = end;
+		}
+
+		if (calledSamples == 0) {
+			return;
+		}
+
+		double q = alleles / (2.0 * calledSamples);
+		if (q == 0 || q == 1) {
+			// monomorphic sites are not informative
+			return;
+		}
+		double expectedHom = 1 - 2 * q * (1 - q);
+
+		for (int i = 0; i < samples.length; i++) {
+			if (genotypes[i] != 3) {
+				called[i]++;
+				expected[i] += expectedHom;
+				if (genotypes[i] != 1) {
+					observed[i]++;
+				}
+			}
+		}
+
+	}
+
+	// haploid calls are homozygous
+	static byte parseGenotype(String line, int start, int end) {
+		int alt = 0;
+		int alleles = 0;
+		for (int i = start; i < end; i++) {
+			char c = line.charAt(i);
+			if (c == ':') {
+				break;
+			}
+			if (c == '/' || c == '|') {
+				continue;
+			}
+			if (c == '.') {
+				return 3;
+			}
+			if (c != '0') {
+				alt++;
+			}
+			alleles++;
+		}
+		if (alleles == 0) {
+			return 3;
+		}
+		if (alt == 0) {
+			return 0;
+		}
+		return alt == alleles ? (byte) 2 : (byte) 1;
+	}
+
+	// keeps the first 9 columns and the selected samples
+	private String select(String line, boolean[] selected, StringBuilder doubleHaplotypes) {
+
+		int pos = nthTab(line, 9);
+		if (pos == -1) {
+			return line;
+		}
+
+		StringBuilder result = new StringBuilder(line.length());
+		result.append(line, 0, pos);
+
+		for (int i = 0; i < samples.length && pos != -1; i++) {
+			int end = line.indexOf('\t', pos + 1);
+			if (end == -1) {
+				end = line.length();
+			}
+			if (selected[i]) {
+				result.append(line, pos, end);
+				if (doubleHaplotypes != null) {
+					String column = line.substring(pos + 1, end);
+					if (column.contains("1/0") || column.contains("0/1")) {
+						int tab1 = line.indexOf('\t');
+						doubleHaplotypes.append("Found haplotype " + column + " at pos "
+								+ line.substring(tab1 + 1, line.indexOf('\t', tab1 + 1)) + " for male proband "
+								+ samples[i] + "\n");
+					}
+				}
+			}
+			pos = end < line.length() ? end : -1;
+		}
+
+		return result.toString();
+
+	}
+
+	private static int nthTab(String line, int n) {
+		int pos = -1;
+		for (int i = 0; i < n; i++) {
+			pos = line.indexOf('\t', pos + 1);
+			if (pos == -1) {
+				return -1;
+			}
+		}
+		return pos;
+	}
+
+	private static int count(boolean[] values) {
+		int count = 0;
+		for (boolean value : values) {
+			if (value) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static void writeLine(OutputStream out, String line) throws IOException {
+		out.write(line.getBytes());
+		out.write('\n');
+	}
+
+	/**
+	 * Writes a bgzipped vcf file, creates its tabix index on the fly and
+	 * collects the statistics of VcfFileUtil.load.
+	 */
+	static class IndexedVcfWriter {
+
+		private String filename;
+
+		private int chunkSize;
+
+		private BlockCompressedOutputStream out;
+
+		private TabixIndexCreator indexCreator = new TabixIndexCreator(TabixFormat.VCF);
+
+		private int samples;
+
+		private int snps = 0;
+
+		private int[] positions = new int[1 << 12];
+
+		private Set<Integer> chunks = new HashSet<Integer>();
+
+		private Map<Integer, Integer> chunkSnps = new HashMap<Integer, Integer>();
+
+		private boolean phased = true;
+
+		private boolean phasedAutodetect = true;
+
+		public IndexedVcfWriter(String filename, int chunkSize) {
+			this.filename = filename;
+			this.chunkSize = chunkSize;
+			out = new BlockCompressedOutputStream(filename);
+		}
+
+		public void writeHeader(String line, int samples) throws IOException {
+			this.samples = samples;
+			writeLine(out, line);
+		}
+
+		public void write(String line, int position) throws IOException {
+
+			long filePointer = out.getFilePointer();
+			writeLine(out, line);
+			indexCreator.addFeature(new SimpleFeature("X", position, position), filePointer);
+
+			// files without samples get no chunks
+			if (samples == 0) {
+				return;
+			}
+
+			String genotypes = line.substring(nthTab(line, 9) + 1);
+			if (phased && genotypes.contains("/")) {
+				phased = false;
+			}
+			if (snps == 0) {
+				phasedAutodetect = !(genotypes.contains("/") || genotypes.contains("."));
+			}
+
+			int chunk = position / chunkSize;
+			if (position % chunkSize == 0) {
+				chunk = chunk - 1;
+			}
+			chunks.add(chunk);
+			Integer count = chunkSnps.get(chunk);
+			chunkSnps.put(chunk, count == null ? 1 : count + 1);
+
+			if (snps == positions.length) {
+				positions = Arrays.copyOf(positions, positions.length * 2);
+			}
+			positions[snps] = position;
+			snps++;
+
+		}
+
+		public void close() throws IOException {
+			out.flush();
+			Index index = indexCreator.finalizeIndex(out.getFilePointer());
+			out.close();
+			index.writeBasedOnFeatureFile(new File(filename));
+		}
+
+		public VcfFile getVcfFile(String chromosome) {
+			Set<String> chromosomes = new HashSet<String>();
+			chromosomes.add(chromosome);
+
+			VcfFile vcfFile = new VcfFile();
+			vcfFile.setVcfFilename(filename);
+			vcfFile.setIndexFilename(filename + ".tbi");
+			vcfFile.setNoSnps(snps);
+			vcfFile.setNoSamples(samples);
+			vcfFile.setChunks(chunks);
+			vcfFile.setChunkSnps(chunkSnps);
+			vcfFile.setPositions(Arrays.copyOf(positions, snps));
+			vcfFile.setChromosomes(chromosomes);
+			vcfFile.setPhased(phased);
+			vcfFile.setPhasedAutodetect(phasedAutodetect);
+			vcfFile.setChunkSize(chunkSize);
+			return vcfFile;
+		}
+
+	}
+
+}
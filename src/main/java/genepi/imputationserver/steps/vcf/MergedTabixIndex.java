@@ -0,0 +1,204 @@
+package genepi.imputationserver.steps.vcf;
+
+import genepi.imputationserver.util.ParallelBgzfOutputStream;
+import htsjdk.samtools.Bin;
+import htsjdk.samtools.BinningIndexContent;
+import htsjdk.samtools.BinningIndexContent.BinList;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.LinearIndex;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndex;
+import htsjdk.tribble.util.LittleEndianOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Vector;
+
+/**
+ * Tabix index of concatenated bgzipped files, created from the tabix indexes
+ * of the parts. All virtual offsets of a part are shifted by the compressed
+ * size of the preceding parts, so the merged file is never read again. Parts
+ * have to be added in the order of the merged file.
+ */
+public class MergedTabixIndex {
+
+	// pseudo bin with meta data written by samtools
+	public static final int META_BIN = 37450;
+
+	private static final int MAGIC = 0x01494254;
+
+	private Map<String, Sequence> sequences = new LinkedHashMap<String, Sequence>();
+
+	/**
+	 * adds the index (.tbi) of a part that starts at the given compressed
+	 * offset in the merged file.
+	 */
+	public void add(InputStream index, long offset) throws IOException {
+
+		DataInputStream in = new DataInputStream(new BlockCompressedInputStream(index));
+
+		try {
+
+			if (readInt(in) != MAGIC) {
+				throw new IOException("Invalid tabix index.");
+			}
+
+			int references = readInt(in);
+			// format, col_seq, col_beg, col_end, meta, skip
+			for (int i = 0; i < 6; i++) {
+				readInt(in);
+			}
+
+			byte[] names = new byte[readInt(in)];
+			in.readFully(names);
+			String[] referenceNames = new String(names).split("\0");
+			if (referenceNames.length != references) {
+				throw new IOException("Invalid tabix index.");
+			}
+
+			long shift = offset << 16;
+
+			for (String name : referenceNames) {
+
+				Sequence sequence = sequences.get(name);
+				if (sequence == null) {
+					sequence = new Sequence();
+					sequences.put(name, sequence);
+				}
+
+				int bins = readInt(in);
+				for (int i = 0; i < bins; i++) {
+					int bin = readInt(in);
+					int chunks = readInt(in);
+					for (int j = 0; j < chunks; j++) {
+						long start = readLong(in) + shift;
+						long end = readLong(in) + shift;
+						if (bin != META_BIN) {
+							sequence.addChunk(bin, new Chunk(start, end));
+						}
+					}
+				}
+
+				int intervals = readInt(in);
+				for (int i = 0; i < intervals; i++) {
+					long value = readLong(in);
+					if (value != 0) {
+						// first part wins, it has the smaller offset
+						sequence.setLinear(i, value + shift);
+					}
+				}
+
+			}
+
+		} finally {
+			in.close();
+		}
+
+	}
+
+	public TabixIndex getIndex() {
+
+		List<String> names = new Vector<String>(sequences.keySet());
+		BinningIndexContent[] contents = new BinningIndexContent[names.size()];
+
+		for (int i = 0; i < names.size(); i++) {
+			contents[i] = sequences.get(names.get(i)).getContent(i);
+		}
+
+		return new TabixIndex(TabixFormat.VCF, names, contents);
+
+	}
+
+	/**
+	 * writes the index to vcfFilename + ".tbi".
+	 */
+	public void write(String vcfFilename) throws IOException {
+		getIndex().writeBasedOnFeatureFile(new File(vcfFilename));
+	}
+
+	/**
+	 * writes the bgzipped index (.tbi format) to a stream. The stream is not
+	 * closed.
+	 */
+	public void write(OutputStream out) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		LittleEndianOutputStream writer = new LittleEndianOutputStream(new ParallelBgzfOutputStream(bytes));
+		getIndex().write(writer);
+		writer.close();
+		bytes.writeTo(out);
+	}
+
+	private static int readInt(DataInputStream in) throws IOException {
+		return Integer.reverseBytes(in.readInt());
+	}
+
+	private static long readLong(DataInputStream in) throws IOException {
+		return Long.reverseBytes(in.readLong());
+	}
+
+	static class Sequence {
+
+		private TreeMap<Integer, List<Chunk>> bins = new TreeMap<Integer, List<Chunk>>();
+
+		private long[] linear = new long[0];
+
+		public void addChunk(int bin, Chunk chunk) {
+			List<Chunk> chunks = bins.get(bin);
+			if (chunks == null) {
+				chunks = new Vector<Chunk>();
+				bins.put(bin, chunks);
+			}
+			chunks.add(chunk);
+		}
+
+		public void setLinear(int window, long value) {
+			if (window >= linear.length) {
+				linear = Arrays.copyOf(linear, Math.max(window + 1, linear.length * 2));
+			}
+			if (linear[window] == 0) {
+				linear[window] = value;
+			}
+		}
+
+		public BinningIndexContent getContent(int reference) {
+
+			Bin[] binArray = new Bin[bins.isEmpty() ? 0 : bins.lastKey() + 1];
+			for (Map.Entry<Integer, List<Chunk>> entry : bins.entrySet()) {
+				Bin bin = new Bin(reference, entry.getKey());
+				bin.setChunkList(entry.getValue());
+				binArray[entry.getKey()] = bin;
+			}
+
+			// windows between two parts get the offset of the previous window
+			int size = linear.length;
+			while (size > 0 && linear[size - 1] == 0) {
+				size--;
+			}
+			long[] entries = Arrays.copyOf(linear, size);
+			long previous = 0;
+			for (int i = 0; i < size; i++) {
+				if (entries[i] == 0) {
+					entries[i] = previous;
+				} else {
+					previous = entries[i];
+				}
+			}
+
+			return new BinningIndexContent(reference, new BinList(binArray, bins.size()),
+					new LinearIndex(reference, 0, entries));
+
+		}
+
+	}
+
+}
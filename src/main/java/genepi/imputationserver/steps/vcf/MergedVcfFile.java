@@ -9,26 +9,65 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 
 import org.apache.commons.compress.utils.IOUtils;
 
 public class MergedVcfFile {
 
-	private FileOutputStream output;
+	private String filename;
+
+	private OutputStream output;
+
+	private long offset = 0;
+
+	private MergedTabixIndex index = null;
 
 	public MergedVcfFile(String filename) throws FileNotFoundException {
+		this.filename = filename;
 		output = new FileOutputStream(filename);
 	}
 
+	/**
+	 * writes the merged file to a stream. The stream is not closed and no
+	 * index file is written, see {@link #getIndex()}.
+	 */
+	public MergedVcfFile(OutputStream output) {
+		this.output = output;
+	}
+
 	public void addFile(InputStream input) throws IOException {
-		IOUtils.copy(input, output);
+		offset += IOUtils.copy(input, output);
 		input.close();
 	}
 
+	/**
+	 * adds a file and its tabix index. The index of the merged file is
+	 * written on close.
+	 */
+	public void addFile(InputStream input, InputStream inputIndex) throws IOException {
+		if (index == null) {
+			index = new MergedTabixIndex();
+		}
+		index.add(inputIndex, offset);
+		addFile(input);
+	}
+
 	public void close() throws IOException {
 		output.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+		if (filename == null) {
+			output.flush();
+			return;
+		}
 		output.close();
+		if (index != null) {
+			index.write(filename);
+		}
+	}
+
+	public MergedTabixIndex getIndex() {
+		return index;
 	}
 
 }
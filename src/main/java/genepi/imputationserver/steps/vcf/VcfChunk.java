@@ -22,6 +22,8 @@ public class VcfChunk {
 
 	private int inReference = 0;;
 
+	private int samples = 0;
+
 	public VcfChunk() {
 
 	}
@@ -40,6 +42,10 @@ public class VcfChunk {
 			snps = Integer.parseInt(tiles[6]);
 			inReference = Integer.parseInt(tiles[7]);
 		}
+
+		if (tiles.length > 8) {
+			samples = Integer.parseInt(tiles[8]);
+		}
 	}
 
 	public String getChromosome() {
@@ -110,11 +116,20 @@ public class VcfChunk {
 		this.inReference = inReference;
 	}
 
+	public int getSamples() {
+		return samples;
+	}
+
+	public void setSamples(int samples) {
+		this.samples = samples;
+	}
+
 
 	public String serialize() {
 		return chromosome + "\t" + start + "\t" + end + "\t"
 				+ (phased ? "VCF-PHASED" : "VCF-UNPHASED") + "\t" + vcfFilename
-				+ "\t" + indexFilename + "\t" + snps + "\t" + inReference;
+				+ "\t" + indexFilename + "\t" + snps + "\t" + inReference + "\t"
+				+ samples;
 	}
 
 	public String getId() {
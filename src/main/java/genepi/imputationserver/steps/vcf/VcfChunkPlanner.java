@@ -0,0 +1,147 @@
+package genepi.imputationserver.steps.vcf;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * Splits the snps of a vcf file into chunks of variable width. A chunk ends
+ * after maxWidth bases, after maxSnps snps or when the expected imputation
+ * runtime (snps x samples) exceeds maxWork, whatever comes first. Snps on the
+ * same position are never split. Chunks with less than minSnps snps (e.g.
+ * next to a centromere) are merged with their neighbour if the merged chunk
+ * is not wider than maxWidth, so they are not excluded by the quality
+ * control.
+ *
+ * Chunks are contiguous: the first chunk starts at the boundary of its
+ * maxWidth window (as the fixed chunks) and every chunk ends before the
+ * next one starts, so all reference sites between the snps are imputed.
+ * Only gaps wider than maxWidth without any snp are not covered.
+ *
+ * If maxSnps and maxWork are 0, chunks are only limited by their width.
+ */
+public class VcfChunkPlanner {
+
+	public static final int MIN_SNPS = 100;
+
+	private int maxWidth;
+
+	private int maxSnps = 0;
+
+	private long maxWork = 0;
+
+	private int minSnps = MIN_SNPS;
+
+	public VcfChunkPlanner(int maxWidth) {
+		this.maxWidth = maxWidth;
+	}
+
+	public void setMaxSnps(int maxSnps) {
+		this.maxSnps = maxSnps;
+	}
+
+	public int getMaxSnps() {
+		return maxSnps;
+	}
+
+	public void setMaxWork(long maxWork) {
+		this.maxWork = maxWork;
+	}
+
+	public long getMaxWork() {
+		return maxWork;
+	}
+
+	public void setMinSnps(int minSnps) {
+		this.minSnps = minSnps;
+	}
+
+	public int getMinSnps() {
+		return minSnps;
+	}
+
+	/**
+	 * returns the chunks (start, end, snps and samples are set).
+	 */
+	public List<VcfChunk> plan(VcfFile vcfFile) {
+		return plan(vcfFile.getPositions(), vcfFile.getNoSamples());
+	}
+
+	public List<VcfChunk> plan(int[] positions, int samples) {
+
+		int[] sorted = Arrays.copyOf(positions, positions.length);
+		Arrays.sort(sorted);
+
+		List<VcfChunk> chunks = new Vector<VcfChunk>();
+
+		int i = 0;
+		while (i < sorted.length) {
+
+			VcfChunk prev = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+
+			int start;
+			if (prev == null || (long) sorted[i] - prev.getEnd() > maxWidth) {
+				start = getWindowStart(sorted[i]);
+			} else {
+				start = prev.getEnd() + 1;
+			}
+			int limit = (int) Math.min((long) start + maxWidth - 1, Integer.MAX_VALUE);
+
+			int snps = 0;
+			while (i < sorted.length && sorted[i] <= limit) {
+				boolean samePosition = snps > 0 && sorted[i] == sorted[i - 1];
+				if (snps > 0 && !samePosition && isFull(snps, samples)) {
+					break;
+				}
+				snps++;
+				i++;
+			}
+			int last = sorted[i - 1];
+
+			int end = limit;
+			if (i < sorted.length && sorted[i] <= limit) {
+				// closed by snps or work, next chunk starts at the next snp
+				end = sorted[i] - 1;
+			}
+
+			if (prev != null) {
+				// may exceed maxSnps and maxWork by less than minSnps snps
+				boolean narrow = (long) last - prev.getStart() < maxWidth;
+				if (snps < minSnps && narrow) {
+					// the next chunk starts after the merged one
+					prev.setEnd((int) Math.min(end, (long) prev.getStart() + maxWidth - 1));
+					prev.setSnps(prev.getSnps() + snps);
+					continue;
+				}
+			}
+
+			VcfChunk chunk = new VcfChunk();
+			chunk.setStart(start);
+			chunk.setEnd(end);
+			chunk.setSnps(snps);
+			chunk.setSamples(samples);
+			chunks.add(chunk);
+
+		}
+
+		return chunks;
+
+	}
+
+	// window of the fixed chunks (1 to maxWidth, maxWidth + 1 to 2 x maxWidth,
+	// ...)
+	private int getWindowStart(int position) {
+		return (int) ((long) Math.max(position - 1, 0) / maxWidth * maxWidth + 1);
+	}
+
+	private boolean isFull(int snps, int samples) {
+		if (maxSnps > 0 && snps >= maxSnps) {
+			return true;
+		}
+		if (maxWork > 0 && (long) (snps + 1) * samples > maxWork) {
+			return true;
+		}
+		return false;
+	}
+
+}
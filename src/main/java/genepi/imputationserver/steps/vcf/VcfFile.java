@@ -1,11 +1,16 @@
 package genepi.imputationserver.steps.vcf;
 
+import java.util.Map;
 import java.util.Set;
 
 public class VcfFile {
 
 	private Set<Integer> chunks;
 
+	private Map<Integer, Integer> chunkSnps;
+
+	private int[] positions;
+
 	private Set<String> chromosomes;
 
 	private String vcfFilename;
@@ -62,6 +67,28 @@ public class VcfFile {
 		this.chunks = chunks;
 	}
 
+	public int getSnps(int chunk) {
+		if (chunkSnps == null || !chunkSnps.containsKey(chunk)) {
+			return 0;
+		}
+		return chunkSnps.get(chunk);
+	}
+
+	public void setChunkSnps(Map<Integer, Integer> chunkSnps) {
+		this.chunkSnps = chunkSnps;
+	}
+
+	/**
+	 * returns the positions of all snps (used by VcfChunkPlanner).
+	 */
+	public int[] getPositions() {
+		return positions;
+	}
+
+	public void setPositions(int[] positions) {
+		this.positions = positions;
+	}
+
 	public void setVcfFilename(String vcfFilename) {
 		this.vcfFilename = vcfFilename;
 	}
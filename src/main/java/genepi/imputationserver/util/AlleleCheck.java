@@ -0,0 +1,27 @@
+package genepi.imputationserver.util;
+
+/**
+ * Result of comparing the alleles of a study snp with the alleles of the
+ * reference panel (see {@link GenomicTools#classify(char, char, char, char)}).
+ */
+public enum AlleleCheck {
+
+	/** same ref/alt in study and reference **/
+	MATCH,
+
+	/** A/T or C/G snp, strand can not be determined **/
+	AMBIGUOUS,
+
+	/** ref and alt are switched **/
+	ALLELE_SWITCH,
+
+	/** alleles are on the other strand **/
+	STRAND_SWAP,
+
+	/** alleles are on the other strand and switched **/
+	STRAND_SWAP_ALLELE_SWITCH,
+
+	/** alleles do not match **/
+	MISMATCH
+
+}
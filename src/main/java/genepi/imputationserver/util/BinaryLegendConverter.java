@@ -0,0 +1,177 @@
+package genepi.imputationserver.util;
+
+import genepi.imputationserver.steps.vcf.VcfFileUtil;
+import genepi.io.FileUtil;
+import genepi.io.text.LineReader;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Converts the text legend files of a reference panel into binary legend
+ * files (see {@link BinaryLegendIndex}). The binary files are written next to
+ * the legend files and have to be added to the legend archive of the panel.
+ *
+ * Usage: BinaryLegendConverter panels.txt panel-id legend-folder
+ */
+public class BinaryLegendConverter {
+
+	public static void main(String[] args) throws Exception {
+
+		if (args.length != 3) {
+			System.out.println("Usage: BinaryLegendConverter <panels.txt> <panel-id> <legend-folder>");
+			System.exit(1);
+		}
+
+		RefPanelList panels = RefPanelList.loadFromFile(args[0]);
+		RefPanel panel = panels.getById(args[1]);
+		if (panel == null) {
+			System.out.println("Reference '" + args[1] + "' not found.");
+			System.exit(1);
+		}
+
+		int files = convertPanel(panel, args[2]);
+		System.out.println("Converted " + files + " legend files. Add the " + BinaryLegendIndex.EXTENSION
+				+ " files to " + panel.getLegend() + ".");
+
+	}
+
+	public static int convertPanel(RefPanel panel, String folder) throws IOException {
+
+		int files = 0;
+		for (String chromosome : VcfFileUtil.validChromosomes) {
+			String chrFilename = panel.getLegendPattern().replaceAll("\\$chr", chromosome);
+			String legendFile = FileUtil.path(folder, chrFilename);
+			if (new File(legendFile).exists()) {
+				long time = System.currentTimeMillis();
+				int rows = convert(legendFile, BinaryLegendIndex.getFilename(legendFile));
+				time = (System.currentTimeMillis() - time) / 1000;
+				System.out.println("  " + chrFilename + ": " + rows + " rows [" + time + " sec]");
+				files++;
+			}
+		}
+		return files;
+
+	}
+
+	/**
+	 * Converts one legend file (id position a0 a1 [population frequencies])
+	 * and returns the number of rows.
+	 */
+	public static int convert(String legendFile, String binaryFile) throws IOException {
+
+		LineReader reader = new LineReader(legendFile);
+
+		if (!reader.next()) {
+			reader.close();
+			throw new IOException("Legend file '" + legendFile + "' is empty.");
+		}
+
+		String[] header = reader.get().trim().split("\\s+");
+		String[] populations = header.length > 4 ? Arrays.copyOfRange(header, 4, header.length) : new String[0];
+
+		int rows = 0;
+		int[] positions = new int[1 << 16];
+		byte[] alleles = new byte[2 * positions.length];
+		boolean[] snps = new boolean[positions.length];
+		float[][] frequencies = new float[populations.length][positions.length];
+
+		while (reader.next()) {
+
+			String line = reader.get().trim();
+			if (line.isEmpty()) {
+				continue;
+			}
+
+			String[] tiles = line.split("\\s+");
+			if (tiles.length < 4) {
+				reader.close();
+				throw new IOException("Legend file '" + legendFile + "' is malformed: " + line);
+			}
+
+			if (rows == positions.length) {
+				int capacity = positions.length * 2;
+				positions = Arrays.copyOf(positions, capacity);
+				alleles = Arrays.copyOf(alleles, 2 * capacity);
+				snps = Arrays.copyOf(snps, capacity);
+				for (int i = 0; i < populations.length; i++) {
+					frequencies[i] = Arrays.copyOf(frequencies[i], capacity);
+				}
+			}
+
+			positions[rows] = Integer.parseInt(tiles[1]);
+			alleles[2 * rows] = (byte) tiles[2].charAt(0);
+			alleles[2 * rows + 1] = (byte) tiles[3].charAt(0);
+			snps[rows] = tiles[2].length() == 1 && tiles[3].length() == 1;
+			for (int i = 0; i < populations.length; i++) {
+				frequencies[i][rows] = i + 4 < tiles.length ? parseFrequency(tiles[i + 4]) : Float.NaN;
+			}
+			rows++;
+
+		}
+		reader.close();
+
+		// sort by position, snps before other variants on the same position
+		long[] order = new long[rows];
+		for (int i = 0; i < rows; i++) {
+			order[i] = ((long) positions[i] << 32) | (snps[i] ? 0L : 1L << 31) | i;
+		}
+		Arrays.sort(order);
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(binaryFile)));
+
+		out.writeInt(BinaryLegendIndex.MAGIC);
+		out.writeInt(BinaryLegendIndex.VERSION);
+		out.writeInt(rows);
+		out.writeInt(populations.length);
+		for (String population : populations) {
+			out.writeUTF(population);
+		}
+		pad(out);
+
+		for (int i = 0; i < rows; i++) {
+			out.writeInt(positions[index(order[i])]);
+		}
+
+		for (int i = 0; i < rows; i++) {
+			int row = index(order[i]);
+			out.writeByte(alleles[2 * row]);
+			out.writeByte(alleles[2 * row + 1]);
+		}
+		pad(out);
+
+		for (int p = 0; p < populations.length; p++) {
+			for (int i = 0; i < rows; i++) {
+				out.writeFloat(frequencies[p][index(order[i])]);
+			}
+		}
+
+		out.close();
+
+		return rows;
+
+	}
+
+	private static int index(long order) {
+		return (int) (order & Integer.MAX_VALUE);
+	}
+
+	private static void pad(DataOutputStream out) throws IOException {
+		while (out.size() % 4 != 0) {
+			out.writeByte(0);
+		}
+	}
+
+	private static float parseFrequency(String value) {
+		try {
+			return Float.parseFloat(value);
+		} catch (NumberFormatException e) {
+			return Float.NaN;
+		}
+	}
+
+}
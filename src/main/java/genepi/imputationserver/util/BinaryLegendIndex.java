@@ -0,0 +1,189 @@
+package genepi.imputationserver.util;
+
+import genepi.io.legend.LegendEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * LegendIndex on top of a memory-mapped binary legend file created by
+ * {@link BinaryLegendConverter}. Nothing is parsed or copied on the heap when
+ * the file is opened, lookups are a binary search on the mapped positions.
+ *
+ * File layout (big endian):
+ *
+ * <pre>
+ * int     MAGIC
+ * int     VERSION
+ * int     rows
+ * int     populations
+ * UTF     population name (one per population)
+ * padding to 4 bytes
+ * int     position[rows] (sorted)
+ * byte    alleles[2 * rows] (alleleA, alleleB)
+ * padding to 4 bytes
+ * float   frequencyB[populations * rows] (population by population)
+ * </pre>
+ */
+public class BinaryLegendIndex implements LegendIndex {
+
+	public static final int MAGIC = 0x4C474E44;
+
+	public static final int VERSION = 1;
+
+	public static final String EXTENSION = ".bin";
+
+	private RandomAccessFile file;
+
+	private int rows;
+
+	private String[] populations;
+
+	private IntBuffer positions;
+
+	private ByteBuffer alleles;
+
+	private FloatBuffer frequencies;
+
+	public BinaryLegendIndex(String filename, String population) throws IOException {
+
+		file = new RandomAccessFile(filename, "r");
+
+		if (file.readInt() != MAGIC) {
+			file.close();
+			throw new IOException("File '" + filename + "' is not a binary legend file.");
+		}
+
+		int version = file.readInt();
+		if (version != VERSION) {
+			file.close();
+			throw new IOException("Binary legend file '" + filename + "' has unsupported version " + version + ".");
+		}
+
+		rows = file.readInt();
+		populations = new String[file.readInt()];
+		for (int i = 0; i < populations.length; i++) {
+			populations[i] = file.readUTF();
+		}
+
+		long positionsOffset = align(file.getFilePointer());
+		long allelesOffset = positionsOffset + 4L * rows;
+		long frequenciesOffset = align(allelesOffset + 2L * rows);
+
+		FileChannel channel = file.getChannel();
+		if (channel.size() > Integer.MAX_VALUE) {
+			file.close();
+			throw new IOException("Binary legend file '" + filename + "' is too large.");
+		}
+
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+		buffer.position((int) positionsOffset);
+		positions = buffer.slice().asIntBuffer();
+
+		buffer.position((int) allelesOffset);
+		alleles = buffer.slice();
+
+		int populationIndex = getPopulationIndex(populations, population);
+		if (populationIndex >= 0) {
+			buffer.position((int) (frequenciesOffset + 4L * rows * populationIndex));
+			frequencies = buffer.slice().asFloatBuffer();
+		}
+
+	}
+
+	/**
+	 * returns true if a population column for the given population is
+	 * available or if no population is needed (mixed).
+	 */
+	public boolean hasPopulation(String population) {
+		return population == null || population.equals("mixed") || getPopulationIndex(populations, population) >= 0;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public String[] getPopulations() {
+		return populations;
+	}
+
+	@Override
+	public LegendEntry findByPosition(int position) {
+
+		int low = 0;
+		int high = rows - 1;
+
+		// first row with this position
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (positions.get(mid) < position) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+
+		if (low >= rows || positions.get(low) != position) {
+			return null;
+		}
+
+		LegendEntry entry = new LegendEntry();
+		entry.setPosition(position);
+		entry.setAlleleA((char) alleles.get(2 * low));
+		entry.setAlleleB((char) alleles.get(2 * low + 1));
+		if (frequencies != null) {
+			float frequencyB = frequencies.get(low);
+			entry.setFrequencyA(1 - frequencyB);
+			entry.setFrequencyB(frequencyB);
+		} else {
+			entry.setFrequencyA(Float.NaN);
+			entry.setFrequencyB(Float.NaN);
+		}
+		return entry;
+
+	}
+
+	@Override
+	public void close() throws IOException {
+		// mapped buffers stay valid until they are garbage collected
+		file.close();
+	}
+
+	public static String getFilename(String legendFilename) {
+		return legendFilename + EXTENSION;
+	}
+
+	public static boolean exists(String legendFilename) {
+		return new File(getFilename(legendFilename)).exists();
+	}
+
+	static long align(long offset) {
+		return (offset + 3) & ~3L;
+	}
+
+	static int getPopulationIndex(String[] populations, String population) {
+
+		if (population == null) {
+			return -1;
+		}
+
+		// columns are named e.g. "eur" or "eur.aaf"
+		for (int i = 0; i < populations.length; i++) {
+			String name = populations[i].toLowerCase();
+			if (name.equals(population.toLowerCase()) || name.startsWith(population.toLowerCase() + ".")) {
+				return i;
+			}
+		}
+
+		return -1;
+
+	}
+
+}
@@ -0,0 +1,94 @@
+package genepi.imputationserver.util;
+
+import htsjdk.tribble.SimpleFeature;
+import htsjdk.tribble.index.Index;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+import htsjdk.tribble.util.LittleEndianOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Collects the sites of a bgzipped vcf file while it is written by a
+ * {@link ParallelBgzfOutputStream} and creates its tabix index after the
+ * stream is closed. Sites are stored with block addresses, so writing never
+ * waits for the compression threads. Sites have to be sorted.
+ */
+public class ChunkIndexBuilder {
+
+	private String[] chromosomes = new String[1 << 12];
+
+	private int[] starts = new int[1 << 12];
+
+	private int[] ends = new int[1 << 12];
+
+	private long[] addresses = new long[1 << 12];
+
+	private int sites = 0;
+
+	/**
+	 * adds a vcf data line that starts at the given block address.
+	 */
+	public void add(String line, long blockAddress) throws IOException {
+
+		int tab1 = line.indexOf('\t');
+		int tab2 = tab1 == -1 ? -1 : line.indexOf('\t', tab1 + 1);
+		int tab3 = tab2 == -1 ? -1 : line.indexOf('\t', tab2 + 1);
+		int tab4 = tab3 == -1 ? -1 : line.indexOf('\t', tab3 + 1);
+		if (tab4 == -1) {
+			throw new IOException("The provided VCF file is not tab-delimited");
+		}
+
+		if (sites == starts.length) {
+			int size = starts.length * 2;
+			chromosomes = Arrays.copyOf(chromosomes, size);
+			starts = Arrays.copyOf(starts, size);
+			ends = Arrays.copyOf(ends, size);
+			addresses = Arrays.copyOf(addresses, size);
+		}
+
+		String chromosome = line.substring(0, tab1);
+		if (sites > 0 && chromosome.equals(chromosomes[sites - 1])) {
+			chromosome = chromosomes[sites - 1];
+		}
+
+		// end is defined by the length of the reference allele
+		int start = Integer.parseInt(line.substring(tab1 + 1, tab2));
+		chromosomes[sites] = chromosome;
+		starts[sites] = start;
+		ends[sites] = start + (tab4 - tab3 - 1) - 1;
+		addresses[sites] = blockAddress;
+		sites++;
+
+	}
+
+	public int getSites() {
+		return sites;
+	}
+
+	/**
+	 * creates the index. The stream has to be closed.
+	 */
+	public Index build(ParallelBgzfOutputStream out) {
+		TabixIndexCreator indexCreator = new TabixIndexCreator(TabixFormat.VCF);
+		for (int i = 0; i < sites; i++) {
+			indexCreator.addFeature(new SimpleFeature(chromosomes[i], starts[i], ends[i]),
+					out.getFilePointer(addresses[i]));
+		}
+		return indexCreator.finalizeIndex(out.getFilePointer(out.getBlockAddress()));
+	}
+
+	/**
+	 * creates the index and writes it bgzipped (.tbi format) to the given
+	 * stream.
+	 */
+	public void write(ParallelBgzfOutputStream out, OutputStream indexStream) throws IOException {
+		Index index = build(out);
+		LittleEndianOutputStream writer = new LittleEndianOutputStream(new ParallelBgzfOutputStream(indexStream));
+		index.write(writer);
+		writer.close();
+	}
+
+}
@@ -0,0 +1,159 @@
+package genepi.imputationserver.util;
+
+import genepi.hadoop.PreferenceStore;
+import genepi.imputationserver.steps.vcf.VcfChunk;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Vector;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.LineRecordReader;
+import org.apache.hadoop.util.LineReader;
+
+/**
+ * Input format for chunk files. Adjacent chunks of the same chromosome are
+ * grouped into one split until the estimated work (snps x samples) reaches
+ * "minimac.split.work" (job.config). Chunks without snp or sample counts get
+ * their own split. Mappers receive one chunk per map() call as with
+ * NLineInputFormat, so setup() (legend, reference panel) is done once per
+ * group.
+ *
+ * If {@link #PER_CHROMOSOME} is set in the job configuration, all chunks of a
+ * chromosome are in one split (whole-chromosome phasing).
+ */
+public class ChunkInputFormat extends FileInputFormat<LongWritable, Text> {
+
+	public static final String MAX_WORK = "minimac.split.work";
+
+	public static final long DEFAULT_MAX_WORK = 100000000L;
+
+	public static final String PER_CHROMOSOME = "minimac.split.chromosome";
+
+	@Override
+	public RecordReader<LongWritable, Text> createRecordReader(InputSplit split, TaskAttemptContext context)
+			throws IOException, InterruptedException {
+		context.setStatus(split.toString());
+		return new LineRecordReader();
+	}
+
+	@Override
+	public List<InputSplit> getSplits(JobContext job) throws IOException {
+
+		long maxWork = getMaxWork(job.getConfiguration());
+
+		List<InputSplit> splits = new Vector<InputSplit>();
+		for (FileStatus status : listStatus(job)) {
+			splits.addAll(getSplitsForFile(status, job.getConfiguration(), maxWork));
+		}
+		return splits;
+
+	}
+
+	public static List<FileSplit> getSplitsForFile(FileStatus status, Configuration conf, long maxWork)
+			throws IOException {
+
+		List<FileSplit> splits = new Vector<FileSplit>();
+
+		Path filename = status.getPath();
+		if (status.isDir()) {
+			throw new IOException("Not a file: " + filename);
+		}
+
+		FileSystem fileSystem = filename.getFileSystem(conf);
+		FSDataInputStream in = fileSystem.open(filename);
+		LineReader reader = new LineReader(in, conf);
+
+		Text line = new Text();
+		long begin = 0;
+		long length = 0;
+		long work = 0;
+		int chunks = 0;
+		String chromosome = null;
+
+		int bytes;
+		while ((bytes = reader.readLine(line)) > 0) {
+
+			String value = line.toString();
+
+			if (!value.isEmpty()) {
+
+				VcfChunk chunk = new VcfChunk(value);
+				long cost = getWork(chunk, maxWork);
+
+				// close split on new chromosome or when budget is exceeded
+				if (chunks > 0
+						&& (!chunk.getChromosome().equals(chromosome) || (maxWork > 0 && work + cost > maxWork))) {
+					splits.add(createSplit(filename, begin, length));
+					begin += length;
+					length = 0;
+					work = 0;
+					chunks = 0;
+				}
+
+				chromosome = chunk.getChromosome();
+				work += cost;
+				chunks++;
+
+			}
+
+			length += bytes;
+
+		}
+
+		if (length > 0) {
+			splits.add(createSplit(filename, begin, length));
+		}
+
+		reader.close();
+
+		return splits;
+
+	}
+
+	// LineRecordReader skips the first line of a split that does not start at
+	// 0 and reads one line beyond its end (see NLineInputFormat), so the split
+	// boundaries are moved back by one
+	private static FileSplit createSplit(Path filename, long begin, long length) {
+		if (begin == 0) {
+			return new FileSplit(filename, begin, length - 1, new String[] {});
+		} else {
+			return new FileSplit(filename, begin - 1, length, new String[] {});
+		}
+	}
+
+	public static long getWork(VcfChunk chunk, long maxWork) {
+		if (chunk.getSnps() <= 0 || chunk.getSamples() <= 0) {
+			return maxWork;
+		}
+		return (long) chunk.getSnps() * chunk.getSamples();
+	}
+
+	/**
+	 * returns the work per split, 0 if chromosomes are not split.
+	 */
+	public static long getMaxWork(Configuration configuration) {
+		if (configuration.getBoolean(PER_CHROMOSOME, false)) {
+			return 0;
+		}
+		PreferenceStore store = new PreferenceStore(configuration);
+		String value = store.getString(MAX_WORK);
+		if (value == null || value.trim().isEmpty()) {
+			return DEFAULT_MAX_WORK;
+		}
+		return Long.parseLong(value.trim());
+	}
+
+}
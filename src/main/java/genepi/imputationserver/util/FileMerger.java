@@ -1,16 +1,18 @@
 package genepi.imputationserver.util;
 
 import genepi.io.text.LineReader;
-import htsjdk.samtools.util.BlockCompressedOutputStream;
 
+import java.io.DataInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Collections;
 import java.util.List;
 import java.util.Vector;
 import java.util.zip.GZIPOutputStream;
 
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
@@ -38,16 +40,66 @@ public class FileMerger {
 		reader.close();
 	}
 
+	/**
+	 * splits a vcf file into header and data and writes the tabix index of
+	 * the data part (offsets relative to the data part).
+	 */
+	public static void splitIntoHeaderAndData(String input,
+			OutputStream outHeader, BgzipSplitOutputStream outData,
+			OutputStream outIndex) throws IOException {
+		splitIntoHeaderAndData(new LineReader(input), outHeader, outData,
+				outIndex);
+	}
+
+	/**
+	 * splits a gzip compressed vcf stream (e.g. a named pipe, see
+	 * StreamingStage) and returns the number of data lines. Bgzip files
+	 * consist of many gzip members, GZIPInputStream stops after a member if
+	 * the stream has no bytes available (pipes, growing files).
+	 */
+	public static int splitIntoHeaderAndData(InputStream input,
+			OutputStream outHeader, BgzipSplitOutputStream outData,
+			OutputStream outIndex) throws IOException {
+		return splitIntoHeaderAndData(new LineReader(new DataInputStream(
+				new GzipCompressorInputStream(input, true))), outHeader,
+				outData, outIndex);
+	}
+
+	private static int splitIntoHeaderAndData(LineReader reader,
+			OutputStream outHeader, BgzipSplitOutputStream outData,
+			OutputStream outIndex) throws IOException {
+		ChunkIndexBuilder index = new ChunkIndexBuilder();
+		int lines = 0;
+		while (reader.next()) {
+			String line = reader.get();
+			if (!line.startsWith("#")) {
+				index.add(line, outData.getBlockAddress());
+				outData.write(line.getBytes());
+				outData.write("\n".getBytes());
+				lines++;
+			} else {
+				outHeader.write(line.getBytes());
+				outHeader.write("\n".getBytes());
+			}
+		}
+		outData.close();
+		outHeader.close();
+		reader.close();
+		index.write(outData, outIndex);
+		return lines;
+	}
+
 	public static class BgzipSplitOutputStream extends
-			BlockCompressedOutputStream {
+			ParallelBgzfOutputStream {
 
 		public BgzipSplitOutputStream(OutputStream os) {
-			super(os, null);
+			super(os);
 		}
 
+		// parts are concatenated by MergedVcfFile, no EOF block
 		@Override
 		public void close() throws IOException {
-			flush();
+			closeWithoutEofBlock();
 		}
 
 	}
@@ -141,8 +193,19 @@ public class FileMerger {
 
 	public static void mergeAndGz(String local, String hdfs,
 			boolean removeHeader, String ext) throws IOException {
+		FileOutputStream output = new FileOutputStream(local);
+		mergeAndGz(output, hdfs, removeHeader, ext);
+		output.close();
+	}
+
+	/**
+	 * merges all files into a gzipped stream. The stream is not closed, so it
+	 * can be an entry of a zip file.
+	 */
+	public static void mergeAndGz(OutputStream output, String hdfs,
+			boolean removeHeader, String ext) throws IOException {
 
-		GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(local));
+		GZIPOutputStream out = new GZIPOutputStream(output);
 
 		Configuration conf = new Configuration();
 
@@ -211,10 +274,11 @@ public class FileMerger {
 				in.close();
 
 			}
-			
-			out.close();
+
 		}
 
+		out.finish();
+
 	}
 
 }
@@ -1,11 +1,84 @@
 package genepi.imputationserver.util;
 
-import genepi.imputationserver.steps.qc.QualityControlMapper;
 import genepi.io.legend.LegendEntry;
 import htsjdk.variant.variantcontext.VariantContext;
 
+import java.util.Arrays;
+
 public class GenomicTools {
 
+	private static final char[] BASES = { 'A', 'C', 'G', 'T' };
+
+	// 2-bit code of a base, -1 for all other characters
+	private static final byte[] CODES = new byte[128];
+
+	// classification of all study/reference combinations, indexed by
+	// studyRef << 6 | studyAlt << 4 | legendRef << 2 | legendAlt
+	private static final AlleleCheck[] CHECKS = new AlleleCheck[256];
+
+	static {
+
+		Arrays.fill(CODES, (byte) -1);
+		for (int i = 0; i < BASES.length; i++) {
+			CODES[BASES[i]] = (byte) i;
+		}
+
+		for (int i = 0; i < CHECKS.length; i++) {
+			char studyRef = BASES[(i >> 6) & 3];
+			char studyAlt = BASES[(i >> 4) & 3];
+			char legendRef = BASES[(i >> 2) & 3];
+			char legendAlt = BASES[i & 3];
+			CHECKS[i] = check(studyRef, studyAlt, legendRef, legendAlt);
+		}
+
+	}
+
+	/**
+	 * classifies study alleles against reference alleles with a single table
+	 * lookup. Checks are applied in the same order as in the qc step: match,
+	 * A/T C/G, allele switch, strand swap, strand swap and allele switch.
+	 **/
+	public static AlleleCheck classify(char studyRef, char studyAlt,
+			char legendRef, char legendAlt) {
+
+		int sr = code(studyRef);
+		int sa = code(studyAlt);
+		int lr = code(legendRef);
+		int la = code(legendAlt);
+
+		if ((sr | sa | lr | la) < 0) {
+			// no simple bases (e.g. indel in legend file)
+			return check(studyRef, studyAlt, legendRef, legendAlt);
+		}
+
+		return CHECKS[sr << 6 | sa << 4 | lr << 2 | la];
+
+	}
+
+	private static int code(char base) {
+		return base < CODES.length ? CODES[base] : -1;
+	}
+
+	private static AlleleCheck check(char studyRef, char studyAlt,
+			char legendRef, char legendAlt) {
+
+		if (match(studyRef, studyAlt, legendRef, legendAlt)) {
+			return AlleleCheck.MATCH;
+		} else if (complicatedGenotypes(studyRef, studyAlt, legendRef,
+				legendAlt)) {
+			return AlleleCheck.AMBIGUOUS;
+		} else if (alleleSwitch(studyRef, studyAlt, legendRef, legendAlt)) {
+			return AlleleCheck.ALLELE_SWITCH;
+		} else if (strandSwap(studyRef, studyAlt, legendRef, legendAlt)) {
+			return AlleleCheck.STRAND_SWAP;
+		} else if (strandSwapAndAlleleSwitch(studyRef, studyAlt, legendRef,
+				legendAlt)) {
+			return AlleleCheck.STRAND_SWAP_ALLELE_SWITCH;
+		}
+		return AlleleCheck.MISMATCH;
+
+	}
+
 	public static boolean isValid(String allele) {
 		return allele.toUpperCase().equals("A")
 				|| allele.toUpperCase().equals("C")
@@ -21,6 +94,12 @@ public class GenomicTools {
 		char legendRef = refEntry.getAlleleA();
 		char legendAlt = refEntry.getAlleleB();
 
+		return match(studyRef, studyAlt, legendRef, legendAlt);
+	}
+
+	public static boolean match(char studyRef, char studyAlt, char legendRef,
+			char legendAlt) {
+
 		if (studyRef == legendRef && studyAlt == legendAlt) {
 
 			return true;
@@ -35,7 +114,7 @@ public class GenomicTools {
 	 * switch
 	 **/
 	public static boolean matchChiSquare(VariantContext snp,
-			LegendEntry refEntry) {
+			LegendEntry refEntry, int refN) {
 
 		char studyRef = snp.getReference().getBaseString().charAt(0);
 		char studyAlt = snp.getAltAlleleWithHighestAlleleCount()
@@ -45,7 +124,7 @@ public class GenomicTools {
 
 		if (studyRef == legendRef && studyAlt == legendAlt) {
 
-			return chiSquare(snp, refEntry, false).getChisq() <= 300;
+			return chiSquare(snp, refEntry, false, refN).getChisq() <= 300;
 
 		}
 
@@ -61,6 +140,13 @@ public class GenomicTools {
 		char legendRef = refEntry.getAlleleA();
 		char legendAlt = refEntry.getAlleleB();
 
+		return alleleSwitch(studyRef, studyAlt, legendRef, legendAlt);
+
+	}
+
+	public static boolean alleleSwitch(char studyRef, char studyAlt,
+			char legendRef, char legendAlt) {
+
 		// all simple cases
 		if (studyRef == legendAlt && studyAlt == legendRef) {
 
@@ -72,7 +158,7 @@ public class GenomicTools {
 	}
 
 	public static boolean alleleSwitchChiSquare(VariantContext snp,
-			LegendEntry refEntry) {
+			LegendEntry refEntry, int refN) {
 
 		char studyRef = snp.getReference().getBaseString().charAt(0);
 		char studyAlt = snp.getAltAlleleWithHighestAlleleCount()
@@ -91,13 +177,13 @@ public class GenomicTools {
 				&& (referenceGenotype.equals("AT") || referenceGenotype
 						.equals("TA"))) {
 
-			return chiSquare(snp, refEntry, false).getChisq() > 300;
+			return chiSquare(snp, refEntry, false, refN).getChisq() > 300;
 
 		} else if ((studyGenotype.equals("CG") || studyGenotype.equals("GC"))
 				&& (referenceGenotype.equals("CG") || referenceGenotype
 						.equals("GC"))) {
 
-			return chiSquare(snp, refEntry, false).getChisq() > 300;
+			return chiSquare(snp, refEntry, false, refN).getChisq() > 300;
 
 		}
 
@@ -167,6 +253,12 @@ public class GenomicTools {
 		char legendRef = refEntry.getAlleleA();
 		char legendAlt = refEntry.getAlleleB();
 
+		return complicatedGenotypes(studyRef, studyAlt, legendRef, legendAlt);
+	}
+
+	public static boolean complicatedGenotypes(char studyRef, char studyAlt,
+			char legendRef, char legendAlt) {
+
 		String studyGenotype = new StringBuilder().append(studyRef)
 				.append(studyAlt).toString();
 
@@ -190,7 +282,7 @@ public class GenomicTools {
 	}
 
 	public static boolean complicatedGenotypesChiSquare(VariantContext snp,
-			LegendEntry refEntry) {
+			LegendEntry refEntry, int refN) {
 
 		char studyRef = snp.getReference().getBaseString().charAt(0);
 		char studyAlt = snp.getAltAlleleWithHighestAlleleCount()
@@ -208,13 +300,13 @@ public class GenomicTools {
 				&& (referenceGenotype.equals("AT") || referenceGenotype
 						.equals("TA"))) {
 
-			return chiSquare(snp, refEntry, false).getChisq() <= 300;
+			return chiSquare(snp, refEntry, false, refN).getChisq() <= 300;
 
 		} else if ((studyGenotype.equals("CG") || studyGenotype.equals("GC"))
 				&& (referenceGenotype.equals("CG") || referenceGenotype
 						.equals("GC"))) {
 
-			return chiSquare(snp, refEntry, false).getChisq() <= 300;
+			return chiSquare(snp, refEntry, false, refN).getChisq() <= 300;
 
 		}
 		return false;
@@ -268,14 +360,24 @@ public class GenomicTools {
 	}
 
 	public static ChiSquareObject chiSquare(VariantContext snp,
-			LegendEntry refSnp, boolean strandSwap) {
+			LegendEntry refSnp, boolean strandSwap, int refN) {
+
+		GenotypeCounts counts = new GenotypeCounts(snp.getNSamples());
+		counts.count(snp);
+		return chiSquare(counts, refSnp, strandSwap, refN);
+
+	}
+
+	/**
+	 * refN is the size of the reference panel (see getPanelSize)
+	 **/
+	public static ChiSquareObject chiSquare(GenotypeCounts snp,
+			LegendEntry refSnp, boolean strandSwap, int refN) {
 
 		// calculate allele frequency
 
 		double chisq = 0;
 
-		int refN = getPanelSize(QualityControlMapper.PANEL_ID);
-		
 		double refA = refSnp.getFrequencyA();
 		double refB = refSnp.getFrequencyB();
 
@@ -296,7 +398,7 @@ public class GenomicTools {
 
 		double p = countRef / (double) (countRef + countAlt);
 		double q = countAlt / (double) (countRef + countAlt);
-		double studyN = (snp.getNSamples() - snp.getNoCallCount()) * 2;
+		double studyN = (snp.getSamples() - snp.getNoCallCount()) * 2;
 
 		double totalQ = q * studyN + refB * refN;
 		double expectedQ = totalQ / (studyN + refN) * studyN;
@@ -0,0 +1,215 @@
+package genepi.imputationserver.util;
+
+import htsjdk.variant.variantcontext.Genotype;
+import htsjdk.variant.variantcontext.VariantContext;
+
+import java.util.Arrays;
+
+/**
+ * Genotype counts of one biallelic site. {@link #scan(String)} walks the GT
+ * fields of a raw vcf line once and creates no objects per sample. Records
+ * the scanner does not understand (GT not first, multi-allelic, partial
+ * calls, polyploid) are rejected and have to be counted with
+ * {@link #count(VariantContext)}. One instance can be reused for all lines
+ * of a file.
+ */
+public class GenotypeCounts {
+
+	private int samples;
+
+	private int homRef;
+
+	private int het;
+
+	private int homVar;
+
+	private int noCall;
+
+	private boolean monomorphic;
+
+	private long[] called;
+
+	public GenotypeCounts(int samples) {
+		this.samples = samples;
+		called = new long[(samples + 63) / 64];
+	}
+
+	/**
+	 * counts genotypes of a vcf line. returns false if the line has to be
+	 * decoded by htsjdk.
+	 */
+	public boolean scan(String line) {
+
+		reset();
+
+		int length = line.length();
+
+		// skip CHROM - INFO
+		int pos = 0;
+		for (int i = 0; i < 8; i++) {
+			pos = line.indexOf('\t', pos);
+			if (pos == -1) {
+				return false;
+			}
+			pos++;
+		}
+
+		// GT has to be the first key
+		if (!line.startsWith("GT", pos)) {
+			return false;
+		}
+		pos += 2;
+		if (pos < length && line.charAt(pos) != ':' && line.charAt(pos) != '\t') {
+			return false;
+		}
+
+		pos = line.indexOf('\t', pos);
+
+		int sample = 0;
+
+		while (pos != -1) {
+
+			pos++;
+
+			if (sample == samples) {
+				return false;
+			}
+
+			int alleles = 0;
+			int alt = 0;
+			int missing = 0;
+
+			while (true) {
+
+				if (pos == length) {
+					return false;
+				}
+
+				char c = line.charAt(pos);
+				if (c == '1') {
+					alt++;
+				} else if (c == '.') {
+					missing++;
+				} else if (c != '0') {
+					return false;
+				}
+				alleles++;
+				pos++;
+
+				if (pos == length) {
+					break;
+				}
+
+				c = line.charAt(pos);
+				if (c == '/' || c == '|') {
+					pos++;
+				} else if (c == ':' || c == '\t') {
+					break;
+				} else {
+					// allele index > 9
+					return false;
+				}
+
+			}
+
+			if (alleles > 2) {
+				return false;
+			}
+
+			if (missing == alleles) {
+				noCall++;
+			} else if (missing > 0) {
+				return false;
+			} else {
+				called[sample >> 6] |= 1L << (sample & 63);
+				if (alt == 0) {
+					homRef++;
+				} else if (alt == alleles) {
+					homVar++;
+				} else {
+					het++;
+				}
+			}
+
+			sample++;
+
+			pos = line.indexOf('\t', pos);
+
+		}
+
+		if (sample != samples) {
+			return false;
+		}
+
+		monomorphic = het == 0 && homVar == 0;
+
+		return true;
+
+	}
+
+	/**
+	 * counts genotypes of a decoded variant.
+	 */
+	public void count(VariantContext snp) {
+
+		reset();
+
+		if (snp.getNSamples() != samples) {
+			samples = snp.getNSamples();
+			called = new long[(samples + 63) / 64];
+		}
+
+		homRef = snp.getHomRefCount();
+		het = snp.getHetCount();
+		homVar = snp.getHomVarCount();
+		noCall = snp.getNoCallCount();
+		monomorphic = snp.isMonomorphicInSamples();
+
+		int sample = 0;
+		for (Genotype genotype : snp.getGenotypes()) {
+			if (genotype.isCalled()) {
+				called[sample >> 6] |= 1L << (sample & 63);
+			}
+			sample++;
+		}
+
+	}
+
+	private void reset() {
+		homRef = 0;
+		het = 0;
+		homVar = 0;
+		noCall = 0;
+		monomorphic = false;
+		Arrays.fill(called, 0);
+	}
+
+	public int getSamples() {
+		return samples;
+	}
+
+	public int getHomRefCount() {
+		return homRef;
+	}
+
+	public int getHetCount() {
+		return het;
+	}
+
+	public int getHomVarCount() {
+		return homVar;
+	}
+
+	public int getNoCallCount() {
+		return noCall;
+	}
+
+	public boolean isMonomorphic() {
+		return monomorphic;
+	}
+
+	public boolean isCalled(int sample) {
+		return (called[sample >> 6] & (1L << (sample & 63))) != 0;
+	}
+
+}
@@ -0,0 +1,72 @@
+package genepi.imputationserver.util;
+
+import htsjdk.samtools.seekablestream.SeekableStream;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * SeekableStream on top of a HDFS file. Allows htsjdk readers (e.g.
+ * TabixReader) to jump to a region without copying the file to local disk.
+ */
+public class HdfsSeekableStream extends SeekableStream {
+
+	private String filename;
+
+	private FSDataInputStream in;
+
+	private long length;
+
+	public HdfsSeekableStream(String filename) throws IOException {
+		this.filename = filename;
+		FileSystem fileSystem = FileSystem.get(new Configuration());
+		Path path = new Path(filename);
+		length = fileSystem.getFileStatus(path).getLen();
+		in = fileSystem.open(path);
+	}
+
+	@Override
+	public long length() {
+		return length;
+	}
+
+	@Override
+	public long position() throws IOException {
+		return in.getPos();
+	}
+
+	@Override
+	public void seek(long position) throws IOException {
+		in.seek(position);
+	}
+
+	@Override
+	public int read() throws IOException {
+		return in.read();
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		return in.read(buffer, offset, length);
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	@Override
+	public boolean eof() throws IOException {
+		return in.getPos() >= length;
+	}
+
+	@Override
+	public String getSource() {
+		return filename;
+	}
+
+}
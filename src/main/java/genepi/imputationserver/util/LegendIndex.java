@@ -0,0 +1,17 @@
+package genepi.imputationserver.util;
+
+import genepi.io.legend.LegendEntry;
+
+import java.io.IOException;
+
+/**
+ * Position lookup in the legend file of one chromosome. Implementations have
+ * to be thread-safe, one index is shared by all threads of a task.
+ */
+public interface LegendIndex {
+
+	public LegendEntry findByPosition(int position) throws IOException;
+
+	public void close() throws IOException;
+
+}
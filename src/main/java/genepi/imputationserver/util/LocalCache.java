@@ -0,0 +1,89 @@
+package genepi.imputationserver.util;
+
+import genepi.hadoop.HdfsUtil;
+import genepi.io.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.util.RunJar;
+
+/**
+ * Local replacement of the distributed cache (CacheStore) for jobs that are
+ * executed without a Hadoop cluster. Files are copied to a local folder,
+ * archives (zip, jar, tar, tar.gz, tgz) are extracted into a folder named
+ * after the archive.
+ */
+public class LocalCache {
+
+	private String folder;
+
+	private Map<String, String> archives = new HashMap<String, String>();
+
+	private Map<String, String> files = new HashMap<String, String>();
+
+	public LocalCache(String folder) {
+		this.folder = folder;
+		FileUtil.createDirectory(folder);
+	}
+
+	public synchronized void addArchive(String name, String hdfs) throws IOException {
+
+		if (archives.containsKey(name)) {
+			return;
+		}
+
+		String archive = FileUtil.path(folder, "archive_" + name);
+		String target = FileUtil.path(folder, name);
+		HdfsUtil.get(hdfs, archive);
+		FileUtil.createDirectory(target);
+
+		String lowerName = name.toLowerCase();
+		if (lowerName.endsWith(".zip") || lowerName.endsWith(".jar")) {
+			RunJar.unJar(new File(archive), new File(target));
+		} else if (lowerName.endsWith(".tar.gz") || lowerName.endsWith(".tgz") || lowerName.endsWith(".tar")) {
+			org.apache.hadoop.fs.FileUtil.unTar(new File(archive), new File(target));
+		} else {
+			throw new IOException("Archive '" + hdfs + "' has an unknown format.");
+		}
+
+		new File(archive).delete();
+		archives.put(name, target);
+
+	}
+
+	public synchronized void addFile(String hdfs) throws IOException {
+
+		String name = FileUtil.getFilename(hdfs);
+		if (files.containsKey(name)) {
+			return;
+		}
+
+		String target = FileUtil.path(folder, name);
+		HdfsUtil.get(hdfs, target);
+		files.put(name, target);
+
+	}
+
+	/**
+	 * registers a file that is already on local disk (e.g. binaries).
+	 */
+	public synchronized void addLocalFile(String filename) {
+		files.put(FileUtil.getFilename(filename), filename);
+	}
+
+	public synchronized String getArchive(String name) {
+		return archives.get(name);
+	}
+
+	public synchronized String getFile(String name) {
+		return files.get(name);
+	}
+
+	public void close() {
+		FileUtil.deleteDirectory(folder);
+	}
+
+}
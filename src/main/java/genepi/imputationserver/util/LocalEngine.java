@@ -0,0 +1,32 @@
+package genepi.imputationserver.util;
+
+import genepi.hadoop.PreferenceStore;
+import genepi.hadoop.common.WorkflowContext;
+
+/**
+ * Settings of the local execution engine. A job is executed on the local
+ * machine instead of the Hadoop cluster if the input "engine" is set to
+ * "local". The number of threads is set by "minimac.local.threads" in
+ * job.config (default: all cores).
+ */
+public class LocalEngine {
+
+	public static final String ENGINE = "engine";
+
+	public static final String LOCAL = "local";
+
+	public static final String THREADS = "minimac.local.threads";
+
+	public static boolean isEnabled(WorkflowContext context) {
+		return LOCAL.equals(context.get(ENGINE));
+	}
+
+	public static int getThreads(PreferenceStore store) {
+		String threads = store.getString(THREADS);
+		if (threads == null || threads.trim().isEmpty()) {
+			return Runtime.getRuntime().availableProcessors();
+		}
+		return Integer.parseInt(threads.trim());
+	}
+
+}
@@ -0,0 +1,380 @@
+package genepi.imputationserver.util;
+
+import genepi.hadoop.PreferenceStore;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.LocationAware;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * BGZF output stream that deflates blocks on a shared thread pool. Blocks are
+ * cut and compressed exactly like in htsjdk's BlockCompressedOutputStream,
+ * so the output is byte-identical for the same compression level. Blocks are
+ * written in order by the calling thread, at most two blocks per pool thread
+ * are pending.
+ *
+ * The number of threads (minimac.bgzip.threads) and the compression level
+ * (minimac.bgzip.level) are set once per JVM, see {@link #configure}.
+ * {@link #getFilePointer()} has to wait for all pending blocks and should not
+ * be called per line. Use {@link #getBlockAddress()} instead and translate it
+ * with {@link #getFilePointer(long)} once the blocks are written.
+ */
+public class ParallelBgzfOutputStream extends OutputStream implements LocationAware {
+
+	public static final String THREADS = "minimac.bgzip.threads";
+
+	public static final String LEVEL = "minimac.bgzip.level";
+
+	private static int defaultThreads = Runtime.getRuntime().availableProcessors();
+
+	private static int defaultCompressionLevel = BlockCompressedStreamConstants.DEFAULT_COMPRESSION_LEVEL;
+
+	private static ExecutorService pool;
+
+	private static int poolThreads;
+
+	// one deflater per thread and compression level
+	private static final ThreadLocal<Deflater[]> DEFLATERS = new ThreadLocal<Deflater[]>() {
+		@Override
+		protected Deflater[] initialValue() {
+			return new Deflater[10];
+		}
+	};
+
+	private OutputStream out;
+
+	private int compressionLevel;
+
+	private byte[] buffer = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+
+	private int bufferSize = 0;
+
+	private Queue<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+
+	private int maxPending;
+
+	private ExecutorService executor;
+
+	private long compressedBytes = 0;
+
+	private int submittedBlocks = 0;
+
+	// compressed offset of every written block
+	private long[] blockOffsets = new long[64];
+
+	private int writtenBlocks = 0;
+
+	private boolean closed = false;
+
+	public ParallelBgzfOutputStream(String filename) throws IOException {
+		this(new FileOutputStream(filename));
+	}
+
+	public ParallelBgzfOutputStream(OutputStream out) {
+		this(out, defaultCompressionLevel);
+	}
+
+	public ParallelBgzfOutputStream(OutputStream out, int compressionLevel) {
+		this.out = out;
+		this.compressionLevel = compressionLevel;
+		executor = getPool();
+		maxPending = executor == null ? 0 : 2 * poolThreads;
+	}
+
+	/**
+	 * reads threads and compression level from job.config.
+	 */
+	public static void configure(PreferenceStore store) {
+		String threads = store.getString(THREADS);
+		if (threads != null && !threads.trim().isEmpty()) {
+			setDefaultThreads(Integer.parseInt(threads.trim()));
+		}
+		String level = store.getString(LEVEL);
+		if (level != null && !level.trim().isEmpty()) {
+			setDefaultCompressionLevel(Integer.parseInt(level.trim()));
+		}
+	}
+
+	public static synchronized void setDefaultThreads(int threads) {
+		defaultThreads = threads;
+	}
+
+	public static synchronized void setDefaultCompressionLevel(int level) {
+		if (level < 0 || level > 9) {
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		}
+		defaultCompressionLevel = level;
+	}
+
+	// returns null if blocks are compressed by the calling thread
+	private static synchronized ExecutorService getPool() {
+		if (defaultThreads <= 1) {
+			return null;
+		}
+		if (pool == null || poolThreads != defaultThreads) {
+			// threads of an old pool stop when they are idle
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(defaultThreads, defaultThreads, 60,
+					TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable, "bgzf-deflater");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			executor.allowCoreThreadTimeOut(true);
+			pool = executor;
+			poolThreads = defaultThreads;
+		}
+		return pool;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		buffer[bufferSize++] = (byte) b;
+		if (bufferSize == buffer.length) {
+			submitBlock();
+		}
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		while (length > 0) {
+			int count = Math.min(length, buffer.length - bufferSize);
+			System.arraycopy(bytes, offset, buffer, bufferSize, count);
+			bufferSize += count;
+			offset += count;
+			length -= count;
+			if (bufferSize == buffer.length) {
+				submitBlock();
+			}
+		}
+	}
+
+	/**
+	 * compresses the current (partial) block and writes all pending blocks.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (bufferSize > 0) {
+			submitBlock();
+		}
+		while (!pending.isEmpty()) {
+			writeBlock(pending.poll());
+		}
+		out.flush();
+	}
+
+	/**
+	 * writes all blocks and the empty EOF block and closes the underlying
+	 * stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		flush();
+		out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+		out.close();
+		closed = true;
+	}
+
+	/**
+	 * closes the underlying stream without the EOF block. Used for parts of a
+	 * file that are concatenated later.
+	 */
+	protected void closeWithoutEofBlock() throws IOException {
+		if (closed) {
+			return;
+		}
+		flush();
+		out.close();
+		closed = true;
+	}
+
+	/**
+	 * returns the virtual file pointer (compressed offset of the current block
+	 * and offset in the block).
+	 */
+	public long getFilePointer() throws IOException {
+		while (!pending.isEmpty()) {
+			writeBlock(pending.poll());
+		}
+		return (compressedBytes << 16) | bufferSize;
+	}
+
+	/**
+	 * returns the current position as block number and offset in the block.
+	 * Never waits for the compression threads.
+	 */
+	public long getBlockAddress() {
+		return ((long) submittedBlocks << 16) | bufferSize;
+	}
+
+	/**
+	 * translates a block address into a virtual file pointer. The block has to
+	 * be written (e.g. after flush or close).
+	 */
+	public long getFilePointer(long blockAddress) {
+		int block = (int) (blockAddress >>> 16);
+		long offset = blockAddress & 0xffff;
+		if (block < writtenBlocks) {
+			return (blockOffsets[block] << 16) | offset;
+		}
+		if (block == writtenBlocks && offset == 0) {
+			return compressedBytes << 16;
+		}
+		throw new IllegalStateException("Block " + block + " is not written yet.");
+	}
+
+	@Override
+	public long getPosition() {
+		try {
+			return getFilePointer();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void submitBlock() throws IOException {
+
+		final byte[] block = buffer;
+		final int length = bufferSize;
+		buffer = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+		bufferSize = 0;
+		submittedBlocks++;
+
+		if (executor == null) {
+			writeBlock(compressBlock(block, length, compressionLevel));
+			return;
+		}
+
+		pending.add(executor.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				return compressBlock(block, length, compressionLevel);
+			}
+		}));
+
+		while (pending.size() > maxPending) {
+			writeBlock(pending.poll());
+		}
+
+	}
+
+	private void writeBlock(Future<byte[]> future) throws IOException {
+		byte[] block;
+		try {
+			block = future.get();
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+		writeBlock(block);
+	}
+
+	private void writeBlock(byte[] block) throws IOException {
+		if (writtenBlocks == blockOffsets.length) {
+			blockOffsets = Arrays.copyOf(blockOffsets, blockOffsets.length * 2);
+		}
+		blockOffsets[writtenBlocks++] = compressedBytes;
+		out.write(block);
+		compressedBytes += block.length;
+	}
+
+	/**
+	 * returns a complete BGZF block (header, deflated data and footer).
+	 */
+	static byte[] compressBlock(byte[] data, int length, int level) {
+
+		byte[] compressed = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE
+				- BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH];
+
+		Deflater deflater = getDeflater(level);
+		deflater.reset();
+		deflater.setInput(data, 0, length);
+		deflater.finish();
+		int compressedSize = deflater.deflate(compressed, 0, compressed.length);
+
+		if (!deflater.finished()) {
+			// not compressible, store it
+			Deflater noCompression = getDeflater(Deflater.NO_COMPRESSION);
+			noCompression.reset();
+			noCompression.setInput(data, 0, length);
+			noCompression.finish();
+			compressedSize = noCompression.deflate(compressed, 0, compressed.length);
+			if (!noCompression.finished()) {
+				throw new IllegalStateException("Block could not be compressed.");
+			}
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+
+		int totalSize = compressedSize + BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH
+				+ BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+
+		byte[] block = new byte[totalSize];
+		int pos = 0;
+		block[pos++] = BlockCompressedStreamConstants.GZIP_ID1;
+		block[pos++] = (byte) BlockCompressedStreamConstants.GZIP_ID2;
+		block[pos++] = BlockCompressedStreamConstants.GZIP_CM_DEFLATE;
+		block[pos++] = (byte) BlockCompressedStreamConstants.GZIP_FLG;
+		pos = writeInt(block, pos, 0);
+		block[pos++] = (byte) BlockCompressedStreamConstants.GZIP_XFL;
+		block[pos++] = (byte) BlockCompressedStreamConstants.GZIP_OS_UNKNOWN;
+		pos = writeShort(block, pos, BlockCompressedStreamConstants.GZIP_XLEN);
+		block[pos++] = BlockCompressedStreamConstants.BGZF_ID1;
+		block[pos++] = BlockCompressedStreamConstants.BGZF_ID2;
+		pos = writeShort(block, pos, BlockCompressedStreamConstants.BGZF_LEN);
+		pos = writeShort(block, pos, totalSize - 1);
+		System.arraycopy(compressed, 0, block, pos, compressedSize);
+		pos += compressedSize;
+		pos = writeInt(block, pos, (int) crc.getValue());
+		writeInt(block, pos, length);
+
+		return block;
+
+	}
+
+	private static Deflater getDeflater(int level) {
+		Deflater[] deflaters = DEFLATERS.get();
+		if (deflaters[level] == null) {
+			deflaters[level] = new Deflater(level, true);
+		}
+		return deflaters[level];
+	}
+
+	// little endian
+	private static int writeShort(byte[] block, int pos, int value) {
+		block[pos] = (byte) value;
+		block[pos + 1] = (byte) (value >> 8);
+		return pos + 2;
+	}
+
+	private static int writeInt(byte[] block, int pos, int value) {
+		block[pos] = (byte) value;
+		block[pos + 1] = (byte) (value >> 8);
+		block[pos + 2] = (byte) (value >> 16);
+		block[pos + 3] = (byte) (value >> 24);
+		return pos + 4;
+	}
+
+}
@@ -6,11 +6,15 @@ import genepi.hadoop.common.WorkflowContext;
 import genepi.hadoop.common.WorkflowStep;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -18,31 +22,55 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.mapred.RunningJob;
 
+/**
+ * Workflow step that executes several Hadoop jobs in parallel. At most
+ * "threads" jobs are submitted to the cluster at the same time, all other
+ * jobs are queued. {@link #waitForAll()} returns as soon as the last job has
+ * finished or was canceled. Job states can be read from any thread, jobs
+ * report their final state immediately after they finished.
+ */
 public abstract class ParallelHadoopJobStep extends WorkflowStep {
 
-	private Map<String, HadoopJob> jobs;
+	public static final int WAIT = 0;
 
-	private BlockingQueue<Runnable> queueThreadPool;
+	public static final int RUNNING = 1;
 
-	private int THREADS = 22;
+	public static final int OK = 2;
 
-	private ThreadPoolExecutor threadPool;
+	public static final int FAILED = 3;
 
 	protected static final Log log = LogFactory.getLog(HadoopUtil.class);
 
-	public int WAIT = 0;
+	private Map<String, HadoopJob> jobs = new ConcurrentHashMap<String, HadoopJob>();
+
+	private ConcurrentHashMap<HadoopJob, Integer> states = new ConcurrentHashMap<HadoopJob, Integer>();
+
+	// final states reported by the job threads
+	private Map<HadoopJob, Integer> finalStates = new ConcurrentHashMap<HadoopJob, Integer>();
 
-	public int RUNNING = 1;
+	private List<Future<Boolean>> futures = new CopyOnWriteArrayList<Future<Boolean>>();
 
-	public int OK = 2;
+	private List<JobListener> listeners = new CopyOnWriteArrayList<JobListener>();
 
-	public int FAILED = 3;
+	private int threads;
 
-	private Map<HadoopJob, Integer> states = null;
+	private ThreadPoolExecutor threadPool;
 
 	private WorkflowContext context;
 
-	private boolean canceled = false;
+	private volatile boolean canceled = false;
+
+	/**
+	 * Callbacks for started and finished jobs. They are called by the thread
+	 * of the job.
+	 */
+	public interface JobListener {
+
+		public void onJobStart(String id, WorkflowContext context);
+
+		public void onJobFinish(String id, boolean successful, WorkflowContext context);
+
+	}
 
 	@Override
 	public void setup(WorkflowContext context) {
@@ -50,35 +78,66 @@ public abstract class ParallelHadoopJobStep extends WorkflowStep {
 	}
 
 	public ParallelHadoopJobStep(int threads) {
-		queueThreadPool = new ArrayBlockingQueue<Runnable>(100);
+		this.threads = threads;
+	}
+
+	/**
+	 * sets the number of parallel jobs. Has to be called before the first
+	 * job is executed.
+	 */
+	public void setThreads(int threads) {
+		if (threadPool != null) {
+			throw new IllegalStateException("Jobs are already running.");
+		}
+		this.threads = threads;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
 
-		threadPool = new ThreadPoolExecutor(THREADS, THREADS, 10,
-				TimeUnit.SECONDS, queueThreadPool);
+	public void addListener(JobListener listener) {
+		listeners.add(listener);
+	}
 
-		jobs = new HashMap<String, HadoopJob>();
-		states = new HashMap<HadoopJob, Integer>();
+	private synchronized ThreadPoolExecutor getThreadPool() {
+		if (threadPool == null) {
+			threadPool = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>());
+		}
+		return threadPool;
 	}
 
+	/**
+	 * waits until all jobs are finished or canceled. Jobs that are added by
+	 * a finished job (e.g. retries) are waited for too.
+	 */
 	protected void waitForAll() throws InterruptedException {
 
-		while (threadPool.getActiveCount() > 0) {
-			Thread.sleep(500);
+		// canceled futures return immediately, also if they were never started
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				futures.get(i).get();
+			} catch (CancellationException e) {
+			} catch (ExecutionException e) {
+				log.error("Job failed.", e.getCause());
+			}
+		}
+		if (threadPool != null) {
+			threadPool.shutdown();
 		}
-		threadPool.shutdown();
 
 	}
 
-	protected void executeJarInBackground(String id, WorkflowContext context,
-			HadoopJob hadoopJob) {
+	protected void executeJarInBackground(String id, WorkflowContext context, HadoopJob hadoopJob) {
 		BackgroundHadoopJob job = new BackgroundHadoopJob(id, hadoopJob);
 		job.setContext(context);
 		jobs.put(id, hadoopJob);
 		states.put(hadoopJob, WAIT);
-		Future<?> future = threadPool.submit(job);
-
+		futures.add(getThreadPool().submit(job));
 	}
 
-	class BackgroundHadoopJob implements Runnable {
+	class BackgroundHadoopJob implements Callable<Boolean> {
 
 		private WorkflowContext context;
 
@@ -100,17 +159,37 @@ public abstract class ParallelHadoopJobStep extends WorkflowStep {
 		}
 
 		@Override
-		public void run() {
+		public Boolean call() {
+
+			if (canceled) {
+				return false;
+			}
 
 			onJobStart(id, context);
-			boolean successful = job.execute();
+			for (JobListener listener : listeners) {
+				listener.onJobStart(id, context);
+			}
+
+			boolean successful = false;
+			try {
+				successful = job.execute();
+			} catch (RuntimeException e) {
+				log.error("Job " + id + " failed.", e);
+			}
+
+			finalStates.put(job, successful ? OK : FAILED);
+			states.put(job, successful ? OK : FAILED);
 			onJobFinish(id, successful, context);
+			for (JobListener listener : listeners) {
+				listener.onJobFinish(id, successful, context);
+			}
+
+			return successful;
 
 		}
 	}
 
-	protected synchronized void onJobFinish(String id, boolean successful,
-			WorkflowContext context) {
+	protected synchronized void onJobFinish(String id, boolean successful, WorkflowContext context) {
 
 	}
 
@@ -137,21 +216,26 @@ public abstract class ParallelHadoopJobStep extends WorkflowStep {
 
 					job.kill();
 
-					context.println(" Job " + id + " (" + job.getJobId()
-							+ " killed.");
+					context.println(" Job " + id + " (" + job.getJobId() + " killed.");
 
 				} catch (Exception e) {
 
-					//context.println(" Cancel Job " + id + " (" + job.getJobId()
-					//		+ ") failed: " + e.getMessage());
+					// context.println(" Cancel Job " + id + " (" + job.getJobId()
+					// + ") failed: " + e.getMessage());
 
 				}
 			}
 
 		}
 
-		threadPool.purge();
-		threadPool.shutdownNow();
+		// queued jobs are never started, waitForAll returns
+		for (Future<Boolean> future : futures) {
+			future.cancel(false);
+		}
+
+		if (threadPool != null) {
+			threadPool.shutdownNow();
+		}
 
 	}
 
@@ -159,7 +243,7 @@ public abstract class ParallelHadoopJobStep extends WorkflowStep {
 		return jobs.get(id);
 	}
 
-	public int getState(HadoopJob job) {
+	public Integer getState(HadoopJob job) {
 		return states.get(job);
 	}
 
@@ -168,54 +252,58 @@ public abstract class ParallelHadoopJobStep extends WorkflowStep {
 
 		for (HadoopJob job : jobs.values()) {
 
-			int state = WAIT;
-
-			if (job != null) {
+			// finished jobs keep their state
+			if (finalStates.containsKey(job)) {
+				continue;
+			}
+			Integer previous = states.get(job);
 
-				String hadoopJobId = job.getJobId();
+			int state = WAIT;
 
-				if (hadoopJobId != null) {
+			String hadoopJobId = job.getJobId();
 
-					RunningJob hadoopJob = HadoopUtil.getInstance().getJob(
-							hadoopJobId);
-					try {
+			if (hadoopJobId != null) {
 
-						if (hadoopJob != null) {
+				RunningJob hadoopJob = HadoopUtil.getInstance().getJob(hadoopJobId);
+				try {
 
-							if (hadoopJob.isComplete()) {
+					if (hadoopJob != null) {
 
-								if (hadoopJob.isSuccessful()) {
-									state = OK;
-								} else {
-									state = FAILED;
-								}
+						if (hadoopJob.isComplete()) {
 
+							if (hadoopJob.isSuccessful()) {
+								state = OK;
 							} else {
+								state = FAILED;
+							}
 
-								if (hadoopJob.getJobStatus().mapProgress() > 0) {
+						} else {
 
-									state = RUNNING;
+							if (hadoopJob.getJobStatus().mapProgress() > 0) {
 
-								} else {
-									state = WAIT;
-								}
+								state = RUNNING;
 
+							} else {
+								state = WAIT;
 							}
 
-						} else {
-							state = WAIT;
 						}
-					} catch (IOException e) {
 
+					} else {
 						state = WAIT;
-
 					}
+				} catch (IOException e) {
+
+					state = WAIT;
 
 				}
 
 			}
 
-			states.put(job, state);
+			// no update if the job finished in the meantime
+			if (previous != null) {
+				states.replace(job, previous, state);
+			}
 
 		}
 
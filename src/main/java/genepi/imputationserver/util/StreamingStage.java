@@ -0,0 +1,253 @@
+package genepi.imputationserver.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+
+import org.apache.commons.io.input.CloseShieldInputStream;
+
+/**
+ * Connects the output file of a pipeline stage (an external command) with the
+ * next stage without an intermediate file. The output file is replaced by a
+ * named pipe (mkfifo) and the consumer reads it in a background thread while
+ * the command writes it. {@link #finish(boolean)} waits until the consumer
+ * has read all data and throws its exception. The rest of a named pipe is
+ * drained if the consumer stops before its end, this is an error too.
+ *
+ * Named pipes need a command that writes its output file sequentially. The
+ * stage keeps the pipe open for writing until {@link #finish(boolean)}, so
+ * the consumer does not see the end of the stream when the command closes
+ * and reopens the file (the command would block on the reopen forever).
+ * Data of a reopened file is appended, a command that rewrites or seeks in
+ * its output needs tail mode. If mkfifo is not available, {@link #start()}
+ * returns false and the caller has to read the file after the command has
+ * finished.
+ *
+ * In tail mode (see {@link #setTail(boolean)}) the output file is a regular
+ * file. The consumer follows it while it grows (polling every
+ * {@link #POLL_INTERVAL} ms) and reads the rest after the command has
+ * finished, so only the final flush remains after the command. The file is
+ * kept. If the command writes the file elsewhere and renames it, the
+ * consumer reads the complete file after the command.
+ */
+public class StreamingStage {
+
+	public interface Consumer {
+
+		public void consume(InputStream in) throws IOException;
+
+	}
+
+	public static final int POLL_INTERVAL = 100;
+
+	private final String filename;
+
+	private final Consumer consumer;
+
+	private Thread thread;
+
+	// keeps the named pipe open until the command has finished
+	private RandomAccessFile writer;
+
+	private InputStream pipe;
+
+	private boolean tail = false;
+
+	private volatile boolean finished = false;
+
+	private volatile IOException exception;
+
+	public StreamingStage(String filename, Consumer consumer) {
+		this.filename = filename;
+		this.consumer = consumer;
+	}
+
+	/**
+	 * stage that overrides {@link #consume(InputStream)}.
+	 */
+	protected StreamingStage(String filename) {
+		this(filename, null);
+	}
+
+	protected void consume(InputStream in) throws IOException {
+		consumer.consume(in);
+	}
+
+	/**
+	 * follows a regular file instead of a named pipe.
+	 */
+	public void setTail(boolean tail) {
+		this.tail = tail;
+	}
+
+	public static boolean isSupported() {
+		return new File("/usr/bin/mkfifo").exists() || new File("/bin/mkfifo").exists();
+	}
+
+	/**
+	 * creates the named pipe and starts the consumer. Returns false if named
+	 * pipes are not supported.
+	 */
+	public boolean start() throws IOException, InterruptedException {
+
+		// file of a previous command
+		new File(filename).delete();
+
+		if (!tail) {
+			if (!isSupported()) {
+				return false;
+			}
+			Process mkfifo = new ProcessBuilder("mkfifo", filename).start();
+			if (mkfifo.waitFor() != 0) {
+				return false;
+			}
+			// read-write open of a named pipe does not block (linux), the
+			// reader is opened before the command starts
+			try {
+				writer = new RandomAccessFile(filename, "rw");
+				pipe = new FileInputStream(filename);
+			} catch (IOException e) {
+				if (writer != null) {
+					writer.close();
+				}
+				new File(filename).delete();
+				return false;
+			}
+		}
+
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					InputStream in = tail ? new TailInputStream() : pipe;
+					try {
+						// the stream is closed after draining
+						consume(new CloseShieldInputStream(in));
+					} catch (IOException e) {
+						exception = e;
+					} finally {
+						try {
+							// the command blocks on a full pipe if the consumer
+							// stopped before the end (the pipe is kept open)
+							if (!tail && drain(in) > 0 && exception == null) {
+								exception = new IOException("Consumer of " + filename
+										+ " stopped before the end of the stream.");
+							}
+						} finally {
+							in.close();
+						}
+					}
+				} catch (IOException e) {
+					if (exception == null) {
+						exception = e;
+					}
+				}
+			}
+		}, "stage-" + new File(filename).getName());
+		thread.start();
+
+		return true;
+
+	}
+
+	private static long drain(InputStream in) throws IOException {
+		long skipped = 0;
+		byte[] buffer = new byte[64 * 1024];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			skipped += read;
+		}
+		return skipped;
+	}
+
+	/**
+	 * waits for the consumer. Has to be called after the command has
+	 * finished. If the command failed without opening the file, the consumer
+	 * gets an empty stream.
+	 */
+	public void finish(boolean successful) throws IOException, InterruptedException {
+
+		if (thread == null) {
+			return;
+		}
+
+		finished = true;
+
+		if (!tail) {
+			// end of stream for the consumer
+			writer.close();
+		}
+
+		thread.join();
+
+		if (!tail) {
+			new File(filename).delete();
+		}
+
+		if (exception != null && successful) {
+			throw exception;
+		}
+
+	}
+
+	// reads a file that is written by a running command, end of file is
+	// reached after the command has finished
+	class TailInputStream extends InputStream {
+
+		private InputStream in;
+
+		@Override
+		public int read() throws IOException {
+			byte[] buffer = new byte[1];
+			int read;
+			while ((read = read(buffer, 0, 1)) == 0) {
+			}
+			return read == -1 ? -1 : buffer[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+
+			while (true) {
+
+				// all data is in the file if the command finished before
+				boolean done = finished;
+
+				if (in == null) {
+					if (new File(filename).exists()) {
+						in = new FileInputStream(filename);
+					} else if (done) {
+						return -1;
+					}
+				}
+
+				if (in != null) {
+					int read = in.read(buffer, offset, length);
+					if (read != -1 || done) {
+						return read;
+					}
+				}
+
+				try {
+					Thread.sleep(POLL_INTERVAL);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Tail of " + filename + " interrupted.");
+				}
+
+			}
+
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (in != null) {
+				in.close();
+			}
+		}
+
+	}
+
+}
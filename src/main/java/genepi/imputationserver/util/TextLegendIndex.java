@@ -0,0 +1,33 @@
+package genepi.imputationserver.util;
+
+import genepi.io.legend.LegendEntry;
+import genepi.io.legend.LegendFileReader;
+
+import java.io.IOException;
+
+/**
+ * LegendIndex based on the text legend file. The index is built in memory
+ * when the file is opened. Lookups are synchronized, because the reader keeps
+ * its search state.
+ */
+public class TextLegendIndex implements LegendIndex {
+
+	private LegendFileReader reader;
+
+	public TextLegendIndex(String filename, String population) throws IOException {
+		reader = new LegendFileReader(filename, population);
+		reader.createIndex();
+		reader.initSearch();
+	}
+
+	@Override
+	public synchronized LegendEntry findByPosition(int position) throws IOException {
+		return reader.findByPosition2(position);
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+}
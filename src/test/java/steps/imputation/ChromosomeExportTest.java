@@ -0,0 +1,115 @@
+package steps.imputation;
+
+import genepi.imputationserver.steps.export.ChromosomeExport;
+import genepi.imputationserver.util.FileMerger;
+import genepi.imputationserver.util.FileMerger.BgzipSplitOutputStream;
+import genepi.io.FileUtil;
+import genepi.io.text.LineReader;
+import genepi.io.text.LineWriter;
+import htsjdk.tribble.readers.TabixReader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import net.lingala.zip4j.core.ZipFile;
+import net.lingala.zip4j.exception.ZipException;
+
+import org.apache.commons.io.IOUtils;
+
+public class ChromosomeExportTest extends TestCase {
+
+	public static final String TEMP_FOLDER = "temp-export";
+
+	public static final String PASSWORD = "imputation@michigan";
+
+	public void testStreamingExport() throws IOException, ZipException {
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+		String output = FileUtil.path(TEMP_FOLDER, "output", "20");
+		FileUtil.createDirectory(output);
+
+		// two imputed chunks
+		for (int chunk = 0; chunk < 2; chunk++) {
+			String id = "chunk_20_" + chunk;
+			String vcfFilename = FileUtil.path(TEMP_FOLDER, id + ".vcf");
+			LineWriter writer = new LineWriter(vcfFilename);
+			writer.write("##fileformat=VCFv4.1");
+			writer.write("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tS1\tS2");
+			for (int i = 0; i < 2000; i++) {
+				writer.write("20\t" + (chunk * 5000000 + i * 100 + 1) + "\trs" + i
+						+ "\tA\tC\t.\tPASS\t.\tGT:DS\t0|1:0.9\t1|1:2.0");
+			}
+			writer.close();
+
+			FileMerger.splitIntoHeaderAndData(vcfFilename,
+					new BgzipSplitOutputStream(new FileOutputStream(FileUtil.path(output, id
+							+ ".header.dose.vcf.gz"))),
+					new BgzipSplitOutputStream(new FileOutputStream(FileUtil.path(output, id + ".data.dose.vcf.gz"))),
+					new FileOutputStream(FileUtil.path(output, id + ".data.dose.vcf.gz.tbi")));
+
+			LineWriter info = new LineWriter(FileUtil.path(output, id + ".info"));
+			info.write("SNP\tREF(0)\tALT(1)");
+			info.write("20:" + (chunk * 5000000 + 1) + "\tA\tC");
+			info.close();
+		}
+
+		// streamed and merged in temp folder
+		ChromosomeExport export = new ChromosomeExport(output, FileUtil.path(TEMP_FOLDER, "temp"));
+		assertTrue(export.isIndexed());
+		String streamed = FileUtil.path(TEMP_FOLDER, "streamed.zip");
+		export.export(streamed, PASSWORD);
+		export.prepare();
+		String prepared = FileUtil.path(TEMP_FOLDER, "prepared.zip");
+		export.zip(prepared, PASSWORD);
+
+		String streamedFolder = FileUtil.path(TEMP_FOLDER, "streamed");
+		String preparedFolder = FileUtil.path(TEMP_FOLDER, "prepared");
+		unzip(streamed, streamedFolder);
+		unzip(prepared, preparedFolder);
+
+		for (String name : new String[] { "chr20.dose.vcf.gz", "chr20.dose.vcf.gz.tbi", "chr20.info.gz" }) {
+			assertTrue(Arrays.equals(read(FileUtil.path(preparedFolder, name)),
+					read(FileUtil.path(streamedFolder, name))));
+		}
+
+		// merged info file has one header
+		LineReader reader = new LineReader(FileUtil.path(streamedFolder, "chr20.info.gz"));
+		int lines = 0;
+		while (reader.next()) {
+			lines++;
+		}
+		reader.close();
+		assertEquals(3, lines);
+
+		// index is valid
+		TabixReader tabix = new TabixReader(FileUtil.path(streamedFolder, "chr20.dose.vcf.gz"));
+		TabixReader.Iterator iterator = tabix.query("20", 5000000, 5000201);
+		int snps = 0;
+		while (iterator.next() != null) {
+			snps++;
+		}
+		tabix.close();
+		assertEquals(3, snps);
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+
+	}
+
+	private void unzip(String filename, String folder) throws ZipException {
+		ZipFile file = new ZipFile(filename);
+		file.setPassword(PASSWORD);
+		file.extractAll(folder);
+	}
+
+	private byte[] read(String filename) throws IOException {
+		FileInputStream in = new FileInputStream(new File(filename));
+		byte[] bytes = IOUtils.toByteArray(in);
+		in.close();
+		return bytes;
+	}
+
+}
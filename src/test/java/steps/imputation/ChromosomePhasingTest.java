@@ -0,0 +1,89 @@
+package steps.imputation;
+
+import genepi.imputationserver.steps.imputationMinimac3.ChromosomePhasing;
+import genepi.imputationserver.steps.imputationMinimac3.ImputationPipelineMinimac3;
+import genepi.imputationserver.steps.vcf.VcfChunk;
+import genepi.imputationserver.steps.vcf.VcfChunkOutput;
+import genepi.io.FileUtil;
+import genepi.io.text.LineReader;
+import genepi.io.text.LineWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+import junit.framework.TestCase;
+
+public class ChromosomePhasingTest extends TestCase {
+
+	public static final String TEMP_FOLDER = "temp-chromosome-phasing";
+
+	public void testMergeAndSplit() throws IOException {
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+		FileUtil.createDirectory(TEMP_FOLDER);
+
+		// chunks 1-100 and 101-200, phasing window 20
+		List<VcfChunk> chunks = new Vector<VcfChunk>();
+		chunks.add(createChunk(101, 200, 90, 110, 150, 220));
+		chunks.add(createChunk(1, 100, 10, 90, 110, 115));
+
+		final List<String> merged = new Vector<String>();
+
+		// no phasing, records of the merged file are copied
+		ImputationPipelineMinimac3 pipeline = new ImputationPipelineMinimac3() {
+			@Override
+			public boolean phaseChromosome(VcfChunk chunk, VcfChunkOutput output, int threads) {
+				try {
+					merged.addAll(readPositions(output.getVcfFilename()));
+					Files.copy(Paths.get(output.getVcfFilename()), Paths.get(output.getPhasedVcfFilename()));
+					return true;
+				} catch (IOException e) {
+					return false;
+				}
+			}
+		};
+		pipeline.setPhasingWindow(20);
+
+		ChromosomePhasing phasing = new ChromosomePhasing(pipeline, FileUtil.path(TEMP_FOLDER, "phasing"), 4);
+		Map<String, String> phased = phasing.phase(chunks);
+
+		// flanks are phased once
+		assertEquals("[10, 90, 110, 115, 150, 220]", merged.toString());
+
+		assertEquals("[10, 90, 110, 115]", readPositions(phased.get(chunks.get(1).getId())).toString());
+		assertEquals("[90, 110, 115, 150, 220]", readPositions(phased.get(chunks.get(0).getId())).toString());
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+
+	}
+
+	private VcfChunk createChunk(int start, int end, int... positions) throws IOException {
+		String filename = FileUtil.path(TEMP_FOLDER, "chunk_" + start + ".vcf");
+		LineWriter writer = new LineWriter(filename);
+		writer.write("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tS1");
+		for (int position : positions) {
+			writer.write("20\t" + position + "\trs" + position + "\tA\tC\t.\tPASS\t.\tGT\t0/1");
+		}
+		writer.close();
+		return new VcfChunk("20\t" + start + "\t" + end + "\tVCF-UNPHASED\t" + new File(filename).getAbsolutePath()
+				+ "\t-\t" + positions.length + "\t" + positions.length + "\t1");
+	}
+
+	private List<String> readPositions(String filename) throws IOException {
+		List<String> positions = new Vector<String>();
+		LineReader reader = new LineReader(filename);
+		while (reader.next()) {
+			if (!reader.get().startsWith("#")) {
+				positions.add(reader.get().split("\t")[1]);
+			}
+		}
+		reader.close();
+		return positions;
+	}
+
+}
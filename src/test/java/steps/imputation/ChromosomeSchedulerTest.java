@@ -0,0 +1,47 @@
+package steps.imputation;
+
+import genepi.imputationserver.steps.imputationMinimac3.ChromosomeScheduler;
+import genepi.imputationserver.steps.vcf.VcfChunk;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ChromosomeSchedulerTest extends TestCase {
+
+	public void testChunkCost() {
+
+		VcfChunk phased = new VcfChunk("20\t1\t20000000\tVCF-PHASED\tchunk.vcf.gz\tchunk.vcf.gz.tbi\t1000\t800\t100");
+		VcfChunk unphased = new VcfChunk("20\t1\t20000000\tVCF-UNPHASED\tchunk.vcf.gz\tchunk.vcf.gz.tbi\t1000\t800\t100");
+
+		// snps in reference x samples, unphased chunks are phased first
+		assertEquals(ChromosomeScheduler.CHUNK_OVERHEAD + 80000, ChromosomeScheduler.getCost(phased));
+		assertEquals(ChromosomeScheduler.CHUNK_OVERHEAD + 160000, ChromosomeScheduler.getCost(unphased));
+
+	}
+
+	public void testLongestJobFirst() {
+
+		ChromosomeScheduler scheduler = new ChromosomeScheduler();
+		scheduler.add("22", 100);
+		scheduler.add("1", 900);
+		scheduler.add("X.auto", 50);
+		scheduler.add("2", 800);
+		scheduler.add("20", 100);
+		scheduler.add("21", 90);
+
+		List<String> order = scheduler.getOrder();
+		assertEquals("1", order.get(0));
+		assertEquals("2", order.get(1));
+		assertEquals("20", order.get(2));
+		assertEquals("22", order.get(3));
+		assertEquals("21", order.get(4));
+		assertEquals("X.auto", order.get(5));
+
+		assertEquals(ChromosomeScheduler.HIGH, scheduler.getPriority("1"));
+		assertEquals(ChromosomeScheduler.NORMAL, scheduler.getPriority("20"));
+		assertEquals(ChromosomeScheduler.LOW, scheduler.getPriority("X.auto"));
+
+	}
+
+}
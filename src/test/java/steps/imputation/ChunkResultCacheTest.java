@@ -0,0 +1,163 @@
+package steps.imputation;
+
+import genepi.imputationserver.steps.imputationMinimac3.ChunkResultCache;
+import genepi.imputationserver.steps.vcf.VcfChunk;
+import genepi.io.FileUtil;
+import genepi.io.text.LineReader;
+import genepi.io.text.LineWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Vector;
+
+import junit.framework.TestCase;
+
+public class ChunkResultCacheTest extends TestCase {
+
+	public static final String TEMP_FOLDER = "temp-cache";
+
+	public void testRestoreAndEvict() throws IOException, InterruptedException {
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+		String cacheFolder = FileUtil.path(TEMP_FOLDER, "cache");
+		String output = FileUtil.path(TEMP_FOLDER, "output");
+		String restored = FileUtil.path(TEMP_FOLDER, "restored");
+		FileUtil.createDirectory(output);
+		FileUtil.createDirectory(restored);
+
+		String vcfFilename = FileUtil.path(TEMP_FOLDER, "chunk.vcf");
+		write(vcfFilename, "20\t1\trs1\tA\tC");
+
+		VcfChunk chunk = createChunk("20", 1, 20000000);
+
+		ChunkResultCache cache = new ChunkResultCache(cacheFolder);
+		cache.setParameters("hapmap2", "eagle", "5", "2500000");
+		String key = cache.getKey(vcfFilename, chunk);
+
+		// same chunk with other parameters
+		ChunkResultCache otherCache = new ChunkResultCache(cacheFolder);
+		otherCache.setParameters("hapmap2", "eagle", "5", "500000");
+		assertFalse(key.equals(otherCache.getKey(vcfFilename, chunk)));
+
+		// same snps in another region
+		assertFalse(key.equals(cache.getKey(vcfFilename, createChunk("20", 1, 10000000))));
+		assertFalse(key.equals(cache.getKey(vcfFilename, createChunk("21", 1, 20000000))));
+
+		assertEquals(-1, cache.restore(key, restored, chunk.toString()));
+
+		List<String> files = new Vector<String>();
+		files.add(write(FileUtil.path(output, chunk + ".info"), "info"));
+		files.add(write(FileUtil.path(output, chunk + ".data.dose.vcf"), "data"));
+		cache.put(key, chunk.toString(), files, 42);
+
+		// restored with the name of the current chunk
+		assertEquals(42, cache.restore(key, restored, "chunk_X_1"));
+		assertEquals("info", read(FileUtil.path(restored, "chunk_X_1.info")));
+		assertEquals("data", read(FileUtil.path(restored, "chunk_X_1.data.dose.vcf")));
+
+		// second entry, first one is used again
+		String otherKey = otherCache.getKey(vcfFilename, chunk);
+		otherCache.put(otherKey, chunk.toString(), files, 7);
+		Thread.sleep(1000);
+		assertEquals(42, cache.restore(key, restored, chunk.toString()));
+
+		// nothing to remove
+		assertEquals(0, cache.evict(1024 * 1024));
+
+		// least recently used entry is removed
+		assertEquals(1, cache.evict(15));
+		assertEquals(-1, otherCache.restore(otherKey, restored, chunk.toString()));
+		assertEquals(42, cache.restore(key, restored, chunk.toString()));
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+
+	}
+
+	public void testSameChunkTwice() throws IOException {
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+		String cacheFolder = FileUtil.path(TEMP_FOLDER, "cache");
+		String output = FileUtil.path(TEMP_FOLDER, "output");
+		String restored = FileUtil.path(TEMP_FOLDER, "restored");
+		FileUtil.createDirectory(output);
+		FileUtil.createDirectory(restored);
+
+		String vcfFilename = write(FileUtil.path(TEMP_FOLDER, "chunk.vcf"), "20\t1\trs1\tA\tC");
+		VcfChunk chunk = createChunk("20", 1, 20000000);
+
+		ChunkResultCache cache = new ChunkResultCache(cacheFolder);
+		String key = cache.getKey(vcfFilename, chunk);
+
+		List<String> files = new Vector<String>();
+		files.add(write(FileUtil.path(output, chunk + ".info"), "first"));
+		cache.put(key, chunk.toString(), files, 1);
+
+		// second task stores the same chunk, the first entry is kept
+		write(FileUtil.path(output, chunk + ".info"), "second");
+		cache.put(key, chunk.toString(), files, 2);
+
+		assertEquals(1, cache.restore(key, restored, chunk.toString()));
+		assertEquals("first", read(FileUtil.path(restored, chunk + ".info")));
+		// no temp folders are left (checksum files of the local file system
+		// are ignored)
+		File[] entries = new File(cacheFolder).listFiles();
+		assertEquals(1, entries.length);
+		int entryFiles = 0;
+		for (String name : entries[0].list()) {
+			if (!name.endsWith(".crc")) {
+				entryFiles++;
+			}
+		}
+		assertEquals(2, entryFiles);
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+
+	}
+
+	public void testLocalFile() throws IOException {
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+		FileUtil.createDirectory(TEMP_FOLDER);
+
+		String vcfFilename = write(FileUtil.path(TEMP_FOLDER, "chunk.vcf"), "20\t1\trs1\tA\tC");
+		String phasedFilename = write(FileUtil.path(TEMP_FOLDER, "chunk.phased.vcf"), "20\t1\trs1\tA\tC\t0|1");
+
+		ChunkResultCache cache = new ChunkResultCache(FileUtil.path(TEMP_FOLDER, "cache"));
+		cache.setParameters("eagle", "map.txt", "5000000");
+		String key = cache.getKey(vcfFilename, createChunk("20", 1, 20000000));
+
+		String restored = FileUtil.path(TEMP_FOLDER, "restored.vcf");
+		assertFalse(cache.restoreFile(key, restored));
+		cache.putFile(key, phasedFilename);
+		assertTrue(cache.restoreFile(key, restored));
+		assertEquals("20\t1\trs1\tA\tC\t0|1", read(restored));
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+
+	}
+
+	private VcfChunk createChunk(String chromosome, int start, int end) {
+		VcfChunk chunk = new VcfChunk();
+		chunk.setChromosome(chromosome);
+		chunk.setStart(start);
+		chunk.setEnd(end);
+		return chunk;
+	}
+
+	private String write(String filename, String content) throws IOException {
+		LineWriter writer = new LineWriter(filename);
+		writer.write(content);
+		writer.close();
+		return new File(filename).getAbsolutePath();
+	}
+
+	private String read(String filename) throws IOException {
+		LineReader reader = new LineReader(filename);
+		reader.next();
+		String line = reader.get();
+		reader.close();
+		return line;
+	}
+
+}
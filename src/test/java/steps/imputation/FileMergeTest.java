@@ -3,11 +3,17 @@ package steps.imputation;
 import genepi.hadoop.command.Command;
 import genepi.imputationserver.steps.vcf.MergedVcfFile;
 import genepi.imputationserver.util.FileMerger;
+import genepi.imputationserver.util.FileMerger.BgzipSplitOutputStream;
 import genepi.io.FileUtil;
 import genepi.io.text.LineReader;
+import genepi.io.text.LineWriter;
+import htsjdk.tribble.readers.TabixReader;
 
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.List;
+import java.util.Vector;
 
 import junit.framework.TestCase;
 
@@ -87,4 +93,65 @@ public class FileMergeTest extends TestCase {
 
 	}
 
+	public void testIndexStitching() throws IOException {
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+		FileUtil.createDirectory(TEMP_FOLDER);
+
+		// three chunks with 3000 snps each
+		List<String> lines = new Vector<String>();
+		for (int chunk = 0; chunk < 3; chunk++) {
+			String vcfFilename = TEMP_FOLDER + "/chunk_" + chunk + ".vcf";
+			LineWriter writer = new LineWriter(vcfFilename);
+			writer.write("##fileformat=VCFv4.1");
+			writer.write("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tS1\tS2");
+			for (int i = 0; i < 3000; i++) {
+				String line = "20\t" + (chunk * 3000000 + i * 1000 + 1) + "\trs" + i + "\tA\tC\t.\tPASS\t.\tGT:DS\t0|1:0.9\t1|1:2.0";
+				writer.write(line);
+				lines.add(line);
+			}
+			writer.close();
+
+			BgzipSplitOutputStream outHeader = new BgzipSplitOutputStream(new FileOutputStream(TEMP_FOLDER
+					+ "/chunk_" + chunk + ".header.vcf.gz"));
+			BgzipSplitOutputStream outData = new BgzipSplitOutputStream(new FileOutputStream(TEMP_FOLDER
+					+ "/chunk_" + chunk + ".data.vcf.gz"));
+			FileMerger.splitIntoHeaderAndData(vcfFilename, outHeader, outData, new FileOutputStream(TEMP_FOLDER
+					+ "/chunk_" + chunk + ".data.vcf.gz.tbi"));
+		}
+
+		// merge
+		MergedVcfFile vcfFile = new MergedVcfFile(TEMP_FOLDER + "/out.vcf.gz");
+		vcfFile.addFile(new FileInputStream(TEMP_FOLDER + "/chunk_0.header.vcf.gz"));
+		for (int chunk = 0; chunk < 3; chunk++) {
+			vcfFile.addFile(new FileInputStream(TEMP_FOLDER + "/chunk_" + chunk + ".data.vcf.gz"),
+					new FileInputStream(TEMP_FOLDER + "/chunk_" + chunk + ".data.vcf.gz.tbi"));
+		}
+		vcfFile.close();
+
+		// query regions inside and across chunks (0-based begin)
+		TabixReader reader = new TabixReader(TEMP_FOLDER + "/out.vcf.gz");
+		int[][] regions = { { 0, 1 }, { 500000, 700001 }, { 2900000, 3100000 }, { 5999000, 9000000 } };
+		for (int[] region : regions) {
+			List<String> expected = new Vector<String>();
+			for (String line : lines) {
+				int position = Integer.parseInt(line.split("\t")[1]);
+				if (position > region[0] && position <= region[1]) {
+					expected.add(line);
+				}
+			}
+			List<String> actual = new Vector<String>();
+			TabixReader.Iterator iterator = reader.query("20", region[0], region[1]);
+			String line;
+			while ((line = iterator.next()) != null) {
+				actual.add(line);
+			}
+			assertEquals(expected, actual);
+		}
+		reader.close();
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+
+	}
+
 }
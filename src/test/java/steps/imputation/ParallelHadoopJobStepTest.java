@@ -0,0 +1,222 @@
+package steps.imputation;
+
+import genepi.hadoop.HadoopJob;
+import genepi.hadoop.common.WorkflowContext;
+import genepi.imputationserver.util.ParallelHadoopJobStep;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class ParallelHadoopJobStepTest extends TestCase {
+
+	public void testSuccess() throws InterruptedException {
+
+		TestStep step = new TestStep(2);
+		List<TestJob> jobs = new Vector<TestJob>();
+		for (int i = 1; i <= 5; i++) {
+			TestJob job = new TestJob(true);
+			jobs.add(job);
+			step.submit("chr" + i, job);
+		}
+		step.waitForJobs();
+
+		for (int i = 1; i <= 5; i++) {
+			assertSame(jobs.get(i - 1), step.getHadoopJob("chr" + i));
+			assertEquals(ParallelHadoopJobStep.OK, (int) step.getState(jobs.get(i - 1)));
+			assertEquals(1, jobs.get(i - 1).executions.get());
+		}
+		assertEquals(5, step.successful.size());
+		assertTrue(step.failed.isEmpty());
+		assertTrue(step.maxRunning.get() <= 2);
+
+	}
+
+	public void testFailure() throws InterruptedException {
+
+		TestStep step = new TestStep(2);
+		TestJob ok = new TestJob(true);
+		TestJob failed = new TestJob(false);
+		TestJob exception = new TestJob(true) {
+			@Override
+			public boolean execute() {
+				super.execute();
+				throw new RuntimeException("Job crashed.");
+			}
+		};
+		step.submit("ok", ok);
+		step.submit("failed", failed);
+		step.submit("exception", exception);
+		step.waitForJobs();
+
+		assertEquals(ParallelHadoopJobStep.OK, (int) step.getState(ok));
+		assertEquals(ParallelHadoopJobStep.FAILED, (int) step.getState(failed));
+		assertEquals(ParallelHadoopJobStep.FAILED, (int) step.getState(exception));
+		assertEquals(1, step.successful.size());
+		assertEquals(2, step.failed.size());
+
+		// final states are not overwritten
+		step.updateProgress();
+		assertEquals(ParallelHadoopJobStep.FAILED, (int) step.getState(failed));
+
+	}
+
+	public void testRetry() throws InterruptedException {
+
+		TestStep step = new TestStep(1);
+		final TestJob failed = new TestJob(false);
+		final TestJob retry = new TestJob(true);
+		step.retries.put("chr1", retry);
+		step.submit("chr1", failed);
+		step.submit("chr2", new TestJob(true));
+		step.waitForJobs();
+
+		// the retry replaces the failed job
+		assertSame(retry, step.getHadoopJob("chr1"));
+		assertEquals(ParallelHadoopJobStep.FAILED, (int) step.getState(failed));
+		assertEquals(ParallelHadoopJobStep.OK, (int) step.getState(retry));
+		assertEquals(1, retry.executions.get());
+		assertEquals(2, step.successful.size());
+		assertEquals(1, step.failed.size());
+
+	}
+
+	public void testKill() throws InterruptedException {
+
+		final TestStep step = new TestStep(1);
+		BlockingJob running = new BlockingJob();
+		BlockingJob queued = new BlockingJob();
+		step.submit("running", running);
+		step.submit("queued", queued);
+		assertTrue(running.started.await(10, TimeUnit.SECONDS));
+
+		step.kill();
+		assertTrue(step.isCanceled());
+		assertTrue(running.killed);
+
+		// returns although the queued job was never started
+		Thread waiting = new Thread() {
+			@Override
+			public void run() {
+				try {
+					step.waitForJobs();
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		waiting.start();
+		waiting.join(10000);
+		assertFalse(waiting.isAlive());
+		assertEquals(0, queued.executions.get());
+
+	}
+
+	class TestStep extends ParallelHadoopJobStep {
+
+		List<String> successful = new Vector<String>();
+
+		List<String> failed = new Vector<String>();
+
+		Map<String, HadoopJob> retries = new ConcurrentHashMap<String, HadoopJob>();
+
+		AtomicInteger running = new AtomicInteger();
+
+		AtomicInteger maxRunning = new AtomicInteger();
+
+		public TestStep(int threads) {
+			super(threads);
+		}
+
+		public void submit(String id, HadoopJob job) {
+			executeJarInBackground(id, null, job);
+		}
+
+		public void waitForJobs() throws InterruptedException {
+			waitForAll();
+		}
+
+		@Override
+		protected synchronized void onJobStart(String id, WorkflowContext context) {
+			int current = running.incrementAndGet();
+			maxRunning.set(Math.max(maxRunning.get(), current));
+		}
+
+		@Override
+		protected synchronized void onJobFinish(String id, boolean successful, WorkflowContext context) {
+			running.decrementAndGet();
+			if (successful) {
+				this.successful.add(id);
+			} else {
+				failed.add(id);
+				HadoopJob retry = retries.remove(id);
+				if (retry != null) {
+					executeJarInBackground(id, context, retry);
+				}
+			}
+		}
+
+		@Override
+		public boolean run(WorkflowContext context) {
+			return true;
+		}
+
+	}
+
+	static class TestJob extends HadoopJob {
+
+		AtomicInteger executions = new AtomicInteger();
+
+		private boolean result;
+
+		public TestJob(boolean result) {
+			super("test", null);
+			this.result = result;
+		}
+
+		@Override
+		public boolean execute() {
+			executions.incrementAndGet();
+			return result;
+		}
+
+	}
+
+	static class BlockingJob extends TestJob {
+
+		CountDownLatch started = new CountDownLatch(1);
+
+		CountDownLatch finished = new CountDownLatch(1);
+
+		volatile boolean killed = false;
+
+		public BlockingJob() {
+			super(true);
+		}
+
+		@Override
+		public boolean execute() {
+			super.execute();
+			started.countDown();
+			try {
+				finished.await();
+			} catch (InterruptedException e) {
+				return false;
+			}
+			return !killed;
+		}
+
+		@Override
+		public void kill() {
+			killed = true;
+			finished.countDown();
+		}
+
+	}
+
+}
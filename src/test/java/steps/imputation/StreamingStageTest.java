@@ -0,0 +1,210 @@
+package steps.imputation;
+
+import genepi.imputationserver.steps.imputationMinimac3.ImputationChunkProcessor.DoseUpload;
+import genepi.imputationserver.steps.vcf.VcfChunk;
+import genepi.imputationserver.util.StreamingStage;
+import genepi.io.FileUtil;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.io.IOUtils;
+
+public class StreamingStageTest extends TestCase {
+
+	public static final String TEMP_FOLDER = "temp-streaming";
+
+	public void testNamedPipe() throws IOException, InterruptedException {
+
+		if (!StreamingStage.isSupported()) {
+			return;
+		}
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+		FileUtil.createDirectory(TEMP_FOLDER);
+		String filename = FileUtil.path(TEMP_FOLDER, "chunk.dose.vcf.gz");
+
+		final StringBuilder content = new StringBuilder();
+		StreamingStage stage = new StreamingStage(filename, new StreamingStage.Consumer() {
+			@Override
+			public void consume(InputStream in) throws IOException {
+				content.append(IOUtils.toString(in));
+			}
+		});
+		assertTrue(stage.start());
+
+		// the command
+		OutputStream out = new FileOutputStream(filename);
+		out.write("#header\n20\t1\n".getBytes());
+		out.close();
+
+		stage.finish(true);
+		assertEquals("#header\n20\t1\n", content.toString());
+
+		// failed command does not open the file
+		content.setLength(0);
+		stage = new StreamingStage(filename, new StreamingStage.Consumer() {
+			@Override
+			public void consume(InputStream in) throws IOException {
+				content.append(IOUtils.toString(in));
+			}
+		});
+		assertTrue(stage.start());
+		stage.finish(false);
+		assertEquals("", content.toString());
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+
+	}
+
+	public void testReopenedPipe() throws IOException, InterruptedException {
+
+		if (!StreamingStage.isSupported()) {
+			return;
+		}
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+		FileUtil.createDirectory(TEMP_FOLDER);
+		String filename = FileUtil.path(TEMP_FOLDER, "chunk.dose.vcf.gz");
+
+		final StringBuffer content = new StringBuffer();
+		StreamingStage stage = new StreamingStage(filename, new StreamingStage.Consumer() {
+			@Override
+			public void consume(InputStream in) throws IOException {
+				content.append(IOUtils.toString(in));
+			}
+		});
+		assertTrue(stage.start());
+
+		// the command closes the file and opens it again, the consumer
+		// reads both parts
+		OutputStream out = new FileOutputStream(filename);
+		out.write("#header\n".getBytes());
+		out.close();
+		out = new FileOutputStream(filename, true);
+		out.write("20\t1\n".getBytes());
+		out.close();
+
+		stage.finish(true);
+		assertEquals("#header\n20\t1\n", content.toString());
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+
+	}
+
+	public void testBgzipDoseFile() throws IOException, InterruptedException {
+		if (StreamingStage.isSupported()) {
+			testDoseUpload(false);
+		}
+	}
+
+	public void testBgzipDoseFileTail() throws IOException, InterruptedException {
+		testDoseUpload(true);
+	}
+
+	private void testDoseUpload(boolean tail) throws IOException, InterruptedException {
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+		FileUtil.createDirectory(TEMP_FOLDER);
+		String filename = FileUtil.path(TEMP_FOLDER, "chunk.dose.vcf.gz");
+		String output = new File(FileUtil.path(TEMP_FOLDER, "output")).getAbsolutePath();
+		FileUtil.createDirectory(output);
+
+		VcfChunk chunk = new VcfChunk();
+		chunk.setChromosome("20");
+		chunk.setStart(1);
+		chunk.setEnd(20000000);
+
+		DoseUpload upload = new DoseUpload(chunk.toString(), filename, output);
+		upload.setTail(tail);
+		assertTrue(upload.start());
+
+		// many bgzip blocks, the file is closed and opened again. The
+		// consumer reaches the end of a gzip member while no data is
+		// available
+		writeDoseFile(filename, false, 0, 150000);
+		Thread.sleep(StreamingStage.POLL_INTERVAL * 5);
+		writeDoseFile(filename, true, 150000, 200000);
+
+		upload.finish(true);
+		assertEquals(200000, upload.getLines());
+		assertDataFile(FileUtil.path(output, chunk + ".data.dose.vcf.gz"), 200000);
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+
+	}
+
+	public void testTail() throws IOException, InterruptedException {
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+		FileUtil.createDirectory(TEMP_FOLDER);
+		String filename = FileUtil.path(TEMP_FOLDER, "chunk.dose.vcf.gz");
+
+		final StringBuffer content = new StringBuffer();
+		StreamingStage stage = new StreamingStage(filename, new StreamingStage.Consumer() {
+			@Override
+			public void consume(InputStream in) throws IOException {
+				int value;
+				while ((value = in.read()) != -1) {
+					content.append((char) value);
+				}
+			}
+		});
+		stage.setTail(true);
+		assertTrue(stage.start());
+
+		// the command, first part is read while it is running
+		OutputStream out = new FileOutputStream(filename);
+		out.write("#header\n".getBytes());
+		out.flush();
+		Thread.sleep(StreamingStage.POLL_INTERVAL * 5);
+		assertEquals("#header\n", content.toString());
+		out.write("20\t1\n".getBytes());
+		out.close();
+
+		stage.finish(true);
+		assertEquals("#header\n20\t1\n", content.toString());
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+
+	}
+
+	// minimac writes bgzip files, the header only at the beginning
+	private void writeDoseFile(String filename, boolean append, int from, int to) throws IOException {
+		BlockCompressedOutputStream out = new BlockCompressedOutputStream(new FileOutputStream(filename, append),
+				(File) null);
+		if (!append) {
+			out.write("##fileformat=VCFv4.1\n".getBytes());
+			out.write("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tS1\n".getBytes());
+		}
+		for (int i = from; i < to; i++) {
+			out.write(("20\t" + (i + 1) + "\trs" + i + "\tA\tC\t.\tPASS\t.\tGT:DS\t0|1:1.000\n").getBytes());
+		}
+		out.close();
+	}
+
+	private void assertDataFile(String filename, int lines) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new GzipCompressorInputStream(
+				new FileInputStream(filename), true)));
+		String line;
+		int count = 0;
+		while ((line = reader.readLine()) != null) {
+			assertFalse(line.startsWith("#"));
+			assertEquals("20\t" + (count + 1), line.substring(0, line.indexOf("\trs")));
+			count++;
+		}
+		reader.close();
+		assertEquals(lines, count);
+	}
+
+}
@@ -0,0 +1,56 @@
+package steps.qc;
+
+import genepi.imputationserver.util.AlleleCheck;
+import genepi.imputationserver.util.GenomicTools;
+import junit.framework.TestCase;
+
+public class AlleleCheckTest extends TestCase {
+
+	public void testClassify() {
+
+		assertEquals(AlleleCheck.MATCH, GenomicTools.classify('A', 'C', 'A', 'C'));
+		assertEquals(AlleleCheck.MATCH, GenomicTools.classify('A', 'T', 'A', 'T'));
+		assertEquals(AlleleCheck.AMBIGUOUS, GenomicTools.classify('A', 'T', 'T', 'A'));
+		assertEquals(AlleleCheck.AMBIGUOUS, GenomicTools.classify('G', 'C', 'C', 'G'));
+		assertEquals(AlleleCheck.ALLELE_SWITCH, GenomicTools.classify('A', 'C', 'C', 'A'));
+		assertEquals(AlleleCheck.STRAND_SWAP, GenomicTools.classify('A', 'C', 'T', 'G'));
+		assertEquals(AlleleCheck.STRAND_SWAP_ALLELE_SWITCH, GenomicTools.classify('A', 'C', 'G', 'T'));
+		assertEquals(AlleleCheck.MISMATCH, GenomicTools.classify('A', 'C', 'A', 'G'));
+		assertEquals(AlleleCheck.MISMATCH, GenomicTools.classify('A', 'C', 'A', '-'));
+
+	}
+
+	public void testSameResultAsChecks() {
+
+		char[] bases = { 'A', 'C', 'G', 'T' };
+
+		for (char studyRef : bases) {
+			for (char studyAlt : bases) {
+				for (char legendRef : bases) {
+					for (char legendAlt : bases) {
+
+						AlleleCheck expected;
+						if (GenomicTools.match(studyRef, studyAlt, legendRef, legendAlt)) {
+							expected = AlleleCheck.MATCH;
+						} else if (GenomicTools.complicatedGenotypes(studyRef, studyAlt, legendRef, legendAlt)) {
+							expected = AlleleCheck.AMBIGUOUS;
+						} else if (GenomicTools.alleleSwitch(studyRef, studyAlt, legendRef, legendAlt)) {
+							expected = AlleleCheck.ALLELE_SWITCH;
+						} else if (GenomicTools.strandSwap(studyRef, studyAlt, legendRef, legendAlt)) {
+							expected = AlleleCheck.STRAND_SWAP;
+						} else if (GenomicTools.strandSwapAndAlleleSwitch(studyRef, studyAlt, legendRef, legendAlt)) {
+							expected = AlleleCheck.STRAND_SWAP_ALLELE_SWITCH;
+						} else {
+							expected = AlleleCheck.MISMATCH;
+						}
+
+						assertEquals(expected, GenomicTools.classify(studyRef, studyAlt, legendRef, legendAlt));
+
+					}
+				}
+			}
+		}
+
+	}
+
+}
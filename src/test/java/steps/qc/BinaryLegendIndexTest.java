@@ -0,0 +1,63 @@
+package steps.qc;
+
+import genepi.imputationserver.util.BinaryLegendConverter;
+import genepi.imputationserver.util.BinaryLegendIndex;
+import genepi.io.FileUtil;
+import genepi.io.legend.LegendEntry;
+import genepi.io.text.LineWriter;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class BinaryLegendIndexTest extends TestCase {
+
+	public static final String TEMP_FOLDER = "temp-legend";
+
+	public void testConvertAndFind() throws IOException {
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+		FileUtil.createDirectory(TEMP_FOLDER);
+
+		String legend = FileUtil.path(TEMP_FOLDER, "chr20.legend");
+		LineWriter writer = new LineWriter(legend);
+		writer.write("id position a0 a1 afr.aaf eur.aaf");
+		writer.write("rs3 300 G T 0.3 0.03");
+		writer.write("rs1 100 A C 0.1 0.01");
+		writer.write("rs2a 200 A AT 0.5 0.5");
+		writer.write("rs2 200 C G 0.2 0.02");
+		writer.close();
+
+		int rows = BinaryLegendConverter.convert(legend, BinaryLegendIndex.getFilename(legend));
+		assertEquals(4, rows);
+
+		BinaryLegendIndex index = new BinaryLegendIndex(BinaryLegendIndex.getFilename(legend), "eur");
+		assertEquals(4, index.getRows());
+		assertTrue(index.hasPopulation("eur"));
+		assertTrue(index.hasPopulation("mixed"));
+		assertFalse(index.hasPopulation("eas"));
+
+		LegendEntry entry = index.findByPosition(100);
+		assertEquals('A', entry.getAlleleA());
+		assertEquals('C', entry.getAlleleB());
+		assertEquals(0.01f, entry.getFrequencyB(), 0.0001);
+		assertEquals(0.99f, entry.getFrequencyA(), 0.0001);
+
+		// snps are preferred over indels on the same position
+		entry = index.findByPosition(200);
+		assertEquals('C', entry.getAlleleA());
+		assertEquals('G', entry.getAlleleB());
+
+		entry = index.findByPosition(300);
+		assertEquals('T', entry.getAlleleB());
+
+		assertNull(index.findByPosition(99));
+		assertNull(index.findByPosition(250));
+		assertNull(index.findByPosition(301));
+		index.close();
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+
+	}
+
+}
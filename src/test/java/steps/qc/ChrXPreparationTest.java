@@ -0,0 +1,114 @@
+package steps.qc;
+
+import genepi.imputationserver.steps.vcf.ChrXPreparation;
+import genepi.imputationserver.steps.vcf.VcfFile;
+import genepi.io.FileUtil;
+import genepi.io.text.LineWriter;
+import htsjdk.tribble.readers.TabixReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class ChrXPreparationTest extends TestCase {
+
+	public static final String TEMP_FOLDER = "temp-chrx";
+
+	public void testSplitBySex() throws IOException {
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+		FileUtil.createDirectory(TEMP_FOLDER);
+
+		// samples 1 and 3 are males (haploid), 2 and 4 are females
+		String vcfFilename = FileUtil.path(TEMP_FOLDER, "chrX.vcf");
+		LineWriter writer = new LineWriter(vcfFilename);
+		writer.write("##fileformat=VCFv4.1");
+		writer.write("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tM1\tF1\tM2\tF2");
+		Random random = new Random(1);
+		for (int i = 0; i < 10; i++) {
+			writer.write("X\t" + (1000 + i) + "\t.\tA\tC\t.\tPASS\t.\tGT\t0/1\t1/1\t0/0\t0/1");
+		}
+		for (int i = 0; i < 50; i++) {
+			String line = "X\t" + (3000000 + i * 1000) + "\t.\tA\tC\t.\tPASS\t.\tGT";
+			line += "\t" + random.nextInt(2) + "\t0/1\t" + random.nextInt(2) + "\t1/0";
+			writer.write(line);
+		}
+		writer.close();
+
+		VcfFile file = new VcfFile();
+		file.setVcfFilename(vcfFilename);
+		file.setChunkSize(20000000);
+
+		ChrXPreparation preparation = new ChrXPreparation(file);
+		List<VcfFile> files = preparation.execute();
+		assertEquals(3, files.size());
+
+		VcfFile males = files.get(0);
+		assertEquals("X.no.auto_male", males.getChromosome());
+		assertEquals(2, males.getNoSamples());
+		assertEquals(50, males.getNoSnps());
+		assertTrue(males.isPhased());
+		assertTrue(new File(males.getIndexFilename()).exists());
+
+		// index is valid
+		TabixReader reader = new TabixReader(males.getVcfFilename());
+		TabixReader.Iterator iterator = reader.query("X", 2999000, 3010500);
+		int lines = 0;
+		while (iterator.next() != null) {
+			lines++;
+		}
+		reader.close();
+		assertEquals(11, lines);
+
+		VcfFile females = files.get(1);
+		assertEquals("X.no.auto_female", females.getChromosome());
+		assertEquals(2, females.getNoSamples());
+		assertEquals(50, females.getNoSnps());
+		assertFalse(females.isPhased());
+		assertEquals(1, females.getChunks().size());
+
+		VcfFile par = files.get(2);
+		assertEquals("X.auto", par.getChromosome());
+		assertEquals(4, par.getNoSamples());
+		assertEquals(10, par.getNoSnps());
+		assertTrue(new File(par.getVcfFilename()).exists());
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+
+	}
+
+	public void testHeterozygousMales() throws IOException {
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+		FileUtil.createDirectory(TEMP_FOLDER);
+
+		// sample 3 is male, but one genotype is heterozygous
+		String vcfFilename = FileUtil.path(TEMP_FOLDER, "chrX.vcf");
+		LineWriter writer = new LineWriter(vcfFilename);
+		writer.write("##fileformat=VCFv4.1");
+		writer.write("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tF1\tF2\tM1");
+		for (int i = 0; i < 50; i++) {
+			String male = i == 25 ? "0/1" : (i % 2 == 0 ? "0/0" : "1/1");
+			writer.write("X\t" + (3000000 + i * 1000) + "\t.\tA\tC\t.\tPASS\t.\tGT\t0/1\t1/0\t" + male);
+		}
+		writer.close();
+
+		VcfFile file = new VcfFile();
+		file.setVcfFilename(vcfFilename);
+		file.setChunkSize(20000000);
+
+		try {
+			new ChrXPreparation(file).execute();
+			fail("heterozygous male not detected");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("for male proband M1"));
+		}
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+
+	}
+
+}
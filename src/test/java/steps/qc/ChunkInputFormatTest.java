@@ -0,0 +1,76 @@
+package steps.qc;
+
+import genepi.imputationserver.util.ChunkInputFormat;
+import genepi.io.FileUtil;
+import genepi.io.text.LineWriter;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Vector;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.LineRecordReader;
+
+import junit.framework.TestCase;
+
+public class ChunkInputFormatTest extends TestCase {
+
+	public static final String TEMP_FOLDER = "temp-splits";
+
+	public void testGroupChunks() throws IOException, InterruptedException {
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+		FileUtil.createDirectory(TEMP_FOLDER);
+
+		String chunkfile = FileUtil.path(TEMP_FOLDER, "chunks");
+		LineWriter writer = new LineWriter(chunkfile);
+		// work: 100, 100, 300, 100, unknown, 100
+		writer.write("1\t1\t20000000\tVCF-PHASED\tchr1.vcf.gz\tchr1.vcf.gz.tbi\t10\t0\t10");
+		writer.write("1\t20000001\t40000000\tVCF-PHASED\tchr1.vcf.gz\tchr1.vcf.gz.tbi\t10\t0\t10");
+		writer.write("1\t40000001\t60000000\tVCF-PHASED\tchr1.vcf.gz\tchr1.vcf.gz.tbi\t30\t0\t10");
+		writer.write("2\t1\t20000000\tVCF-PHASED\tchr2.vcf.gz\tchr2.vcf.gz.tbi\t10\t0\t10");
+		writer.write("2\t20000001\t40000000\tVCF-PHASED\tchr2.vcf.gz\tchr2.vcf.gz.tbi");
+		writer.write("2\t40000001\t60000000\tVCF-PHASED\tchr2.vcf.gz\tchr2.vcf.gz.tbi\t10\t0\t10");
+		writer.close();
+
+		Configuration conf = new Configuration();
+		Path path = new Path(chunkfile);
+		FileSystem fileSystem = path.getFileSystem(conf);
+
+		List<FileSplit> splits = ChunkInputFormat.getSplitsForFile(fileSystem.getFileStatus(path), conf, 300);
+		assertEquals(5, splits.size());
+
+		List<Integer> lines = new Vector<Integer>();
+		List<String> starts = new Vector<String>();
+		for (FileSplit split : splits) {
+			LineRecordReader reader = new LineRecordReader();
+			reader.initialize(split, new TaskAttemptContext(conf, new TaskAttemptID()));
+			int count = 0;
+			while (reader.nextKeyValue()) {
+				String[] tiles = reader.getCurrentValue().toString().split("\t");
+				starts.add(tiles[0] + ":" + tiles[1]);
+				count++;
+			}
+			reader.close();
+			lines.add(count);
+		}
+
+		assertEquals("[2, 1, 1, 1, 1]", lines.toString());
+		assertEquals("[1:1, 1:20000001, 1:40000001, 2:1, 2:20000001, 2:40000001]", starts.toString());
+
+		// one split per chromosome
+		conf.setBoolean(ChunkInputFormat.PER_CHROMOSOME, true);
+		splits = ChunkInputFormat.getSplitsForFile(fileSystem.getFileStatus(path), conf,
+				ChunkInputFormat.getMaxWork(conf));
+		assertEquals(2, splits.size());
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+
+	}
+
+}
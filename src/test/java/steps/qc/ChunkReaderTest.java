@@ -0,0 +1,169 @@
+package steps.qc;
+
+import genepi.imputationserver.steps.qc.ChunkReader;
+import genepi.imputationserver.steps.vcf.VcfChunk;
+import genepi.io.FileUtil;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.tribble.index.IndexFactory;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndex;
+import htsjdk.tribble.readers.TabixReader;
+import htsjdk.variant.vcf.VCFCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Vector;
+
+import junit.framework.TestCase;
+
+public class ChunkReaderTest extends TestCase {
+
+	public static final String TEMP_FOLDER = "temp-chunk-reader";
+
+	private String vcfFilename;
+
+	private String indexFilename;
+
+	@Override
+	protected void setUp() throws Exception {
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+		FileUtil.createDirectory(TEMP_FOLDER);
+
+		// 10 records, position 100 to 1000
+		vcfFilename = FileUtil.path(TEMP_FOLDER, "test.vcf.gz");
+		BlockCompressedOutputStream out = new BlockCompressedOutputStream(new File(vcfFilename));
+		StringBuffer lines = new StringBuffer();
+		lines.append("##fileformat=VCFv4.1\n");
+		lines.append("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">\n");
+		lines.append("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tS1\tS2\n");
+		for (int position = 100; position <= 1000; position += 100) {
+			lines.append("20\t" + position + "\trs" + position + "\tA\tC\t.\tPASS\t.\tGT\t0|1\t1|1\n");
+		}
+		out.write(lines.toString().getBytes());
+		out.close();
+
+		TabixIndex index = IndexFactory.createTabixIndex(new File(vcfFilename), new VCFCodec(), TabixFormat.VCF,
+				null);
+		indexFilename = vcfFilename + ".tbi";
+		index.write(new File(indexFilename));
+
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+	}
+
+	public void testHeader() throws IOException {
+
+		ChunkReader reader = createReader("local.tbi");
+
+		assertEquals(3, reader.getHeaderLines().size());
+		assertEquals(2, reader.getHeader().getNGenotypeSamples());
+		assertEquals(vcfFilename, reader.getVcfFilename());
+
+		reader.close();
+
+	}
+
+	public void testChunkBoundaries() throws IOException {
+
+		ChunkReader reader = createReader("local.tbi");
+		VcfChunk chunk = createChunk(301, 600);
+
+		// start and end are inclusive
+		assertEquals(positions(300, 400, 500, 600), query(reader, chunk, 300, 600));
+		assertEquals(positions(400, 500, 600), query(reader, chunk, 301, 600));
+		assertEquals(positions(400, 500), query(reader, chunk, 301, 599));
+		assertEquals(positions(), query(reader, chunk, 301, 399));
+
+		reader.close();
+
+	}
+
+	public void testFirstAndLastRecord() throws IOException {
+
+		ChunkReader reader = createReader("local.tbi");
+		VcfChunk chunk = createChunk(1, 1000);
+
+		List<Integer> all = query(reader, chunk, 1, 1000);
+		assertEquals(10, all.size());
+		assertEquals(100, (int) all.get(0));
+		assertEquals(1000, (int) all.get(9));
+
+		assertEquals(positions(100), query(reader, chunk, 100, 100));
+		assertEquals(positions(1000), query(reader, chunk, 1000, 2000));
+		assertEquals(positions(), query(reader, chunk, 1001, 2000));
+
+		reader.close();
+
+	}
+
+	public void testChunksOfSameFile() throws IOException {
+
+		// chunks of one file are read one after the other with the same
+		// reader
+		ChunkReader reader = createReader("local.tbi");
+		List<Integer> all = new Vector<Integer>();
+		for (int start = 1; start <= 1000; start += 250) {
+			VcfChunk chunk = createChunk(start, start + 249);
+			all.addAll(query(reader, chunk, chunk.getStart(), chunk.getEnd()));
+		}
+		assertEquals(positions(100, 200, 300, 400, 500, 600, 700, 800, 900, 1000), all);
+
+		// and in parallel with a second reader
+		ChunkReader other = createReader("other.tbi");
+		VcfChunk chunk = createChunk(1, 500);
+		TabixReader.Iterator first = reader.query(chunk, 1, 500);
+		TabixReader.Iterator second = other.query(chunk, 1, 500);
+		for (int position = 100; position <= 500; position += 100) {
+			assertEquals(position, reader.decode(first.next()).getStart());
+			assertEquals(position, other.decode(second.next()).getStart());
+		}
+		assertNull(first.next());
+		assertNull(second.next());
+
+		reader.close();
+		other.close();
+
+	}
+
+	private ChunkReader createReader(String localIndex) throws IOException {
+		// the local copy of the index is created by HdfsUtil.get on a cluster
+		String localIndexFilename = FileUtil.path(TEMP_FOLDER, localIndex);
+		Files.copy(new File(indexFilename).toPath(), new File(localIndexFilename).toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		return new ChunkReader(vcfFilename, indexFilename, localIndexFilename);
+	}
+
+	private VcfChunk createChunk(int start, int end) {
+		VcfChunk chunk = new VcfChunk();
+		chunk.setChromosome("20");
+		chunk.setStart(start);
+		chunk.setEnd(end);
+		return chunk;
+	}
+
+	private List<Integer> query(ChunkReader reader, VcfChunk chunk, int start, int end) throws IOException {
+		List<Integer> positions = new Vector<Integer>();
+		TabixReader.Iterator iterator = reader.query(chunk, start, end);
+		String line;
+		while ((line = iterator.next()) != null) {
+			positions.add(reader.decode(line).getStart());
+		}
+		return positions;
+	}
+
+	private List<Integer> positions(int... values) {
+		List<Integer> positions = new Vector<Integer>();
+		for (int value : values) {
+			positions.add(value);
+		}
+		return positions;
+	}
+
+}
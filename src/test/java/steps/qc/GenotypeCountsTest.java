@@ -0,0 +1,42 @@
+package steps.qc;
+
+import genepi.imputationserver.util.GenotypeCounts;
+import junit.framework.TestCase;
+
+public class GenotypeCountsTest extends TestCase {
+
+	public void testScan() {
+
+		GenotypeCounts counts = new GenotypeCounts(5);
+
+		assertTrue(counts.scan("1\t100\trs1\tA\tC\t.\tPASS\t.\tGT:DS\t0|0:0\t0/1:1\t1|1:2\t./.:.\t1|0:1"));
+		assertEquals(1, counts.getHomRefCount());
+		assertEquals(2, counts.getHetCount());
+		assertEquals(1, counts.getHomVarCount());
+		assertEquals(1, counts.getNoCallCount());
+		assertFalse(counts.isMonomorphic());
+		assertTrue(counts.isCalled(0));
+		assertFalse(counts.isCalled(3));
+		assertTrue(counts.isCalled(4));
+
+		assertTrue(counts.scan("1\t200\trs2\tA\tC\t.\tPASS\t.\tGT\t0|0\t0|0\t.\t0\t0/0"));
+		assertEquals(4, counts.getHomRefCount());
+		assertEquals(1, counts.getNoCallCount());
+		assertTrue(counts.isMonomorphic());
+
+	}
+
+	public void testRejectUnsupportedRecords() {
+
+		GenotypeCounts counts = new GenotypeCounts(2);
+
+		// GT not first, multi-allelic, partial calls and wrong sample count
+		assertFalse(counts.scan("1\t100\trs1\tA\tC\t.\tPASS\t.\tDS:GT\t0:0|0\t1:0|1"));
+		assertFalse(counts.scan("1\t100\trs1\tA\tC,G\t.\tPASS\t.\tGT\t0|2\t0|1"));
+		assertFalse(counts.scan("1\t100\trs1\tA\tC\t.\tPASS\t.\tGT\t0|.\t0|1"));
+		assertFalse(counts.scan("1\t100\trs1\tA\tC\t.\tPASS\t.\tGT\t0|0\t0|1\t1|1"));
+		assertFalse(counts.scan("1\t100\trs1\tA\tC\t.\tPASS\t.\tGT\t0|0"));
+
+	}
+
+}
@@ -0,0 +1,95 @@
+package steps.qc;
+
+import genepi.imputationserver.util.ParallelBgzfOutputStream;
+import genepi.io.FileUtil;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class ParallelBgzfOutputStreamTest extends TestCase {
+
+	public static final String TEMP_FOLDER = "temp-bgzf";
+
+	public void testSameBytesAsHtsjdk() throws IOException {
+
+		byte[] data = createData(300000);
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		write(new BlockCompressedOutputStream(expected, (File) null), data);
+
+		for (int threads = 1; threads <= 4; threads++) {
+			ParallelBgzfOutputStream.setDefaultThreads(threads);
+			ByteArrayOutputStream actual = new ByteArrayOutputStream();
+			write(new ParallelBgzfOutputStream(actual), data);
+			assertTrue(Arrays.equals(expected.toByteArray(), actual.toByteArray()));
+		}
+
+	}
+
+	public void testReadable() throws IOException {
+
+		byte[] data = createData(200000);
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+		FileUtil.createDirectory(TEMP_FOLDER);
+		String filename = FileUtil.path(TEMP_FOLDER, "test.vcf.gz");
+
+		ParallelBgzfOutputStream.setDefaultThreads(3);
+		ParallelBgzfOutputStream out = new ParallelBgzfOutputStream(filename);
+		out.write(data, 0, 100000);
+		long pointer = out.getFilePointer();
+		out.write(data, 100000, data.length - 100000);
+		out.close();
+
+		BlockCompressedInputStream in = new BlockCompressedInputStream(new File(filename));
+		byte[] uncompressed = new byte[data.length];
+		int read = 0;
+		while (read < data.length) {
+			int count = in.read(uncompressed, read, data.length - read);
+			assertTrue(count > 0);
+			read += count;
+		}
+		assertEquals(-1, in.read());
+		assertTrue(Arrays.equals(data, uncompressed));
+
+		// virtual file pointer points to the second part
+		in.seek(pointer);
+		assertEquals(data[100000], (byte) in.read());
+		in.close();
+
+		FileUtil.deleteDirectory(TEMP_FOLDER);
+
+	}
+
+	private void write(OutputStream out, byte[] data) throws IOException {
+		// mix of single bytes and arrays
+		out.write(data, 0, 1000);
+		for (int i = 1000; i < 2000; i++) {
+			out.write(data[i]);
+		}
+		out.write(data, 2000, data.length - 2000);
+		out.close();
+	}
+
+	private byte[] createData(int size) {
+		Random random = new Random(4711);
+		StringBuilder builder = new StringBuilder();
+		while (builder.length() < size) {
+			builder.append("20\t").append(random.nextInt(1000000)).append("\t.\tA\tC\t.\tPASS\t.\tGT");
+			for (int i = 0; i < 20; i++) {
+				builder.append('\t').append(random.nextInt(2)).append('|').append(random.nextInt(2));
+			}
+			builder.append('\n');
+		}
+		return builder.substring(0, size).getBytes();
+	}
+
+}
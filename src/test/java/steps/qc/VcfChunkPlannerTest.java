@@ -0,0 +1,148 @@
+package steps.qc;
+
+import genepi.imputationserver.steps.vcf.VcfChunk;
+import genepi.imputationserver.steps.vcf.VcfChunkPlanner;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class VcfChunkPlannerTest extends TestCase {
+
+	public void testWidthOnly() {
+
+		// 1000 snps every 100 bases
+		int[] positions = new int[1000];
+		for (int i = 0; i < positions.length; i++) {
+			positions[i] = 1 + i * 100;
+		}
+
+		VcfChunkPlanner planner = new VcfChunkPlanner(20000);
+		List<VcfChunk> chunks = planner.plan(positions, 10);
+
+		assertEquals(5, chunks.size());
+		assertEquals(1, chunks.get(0).getStart());
+		assertEquals(20000, chunks.get(0).getEnd());
+		assertEquals(200, chunks.get(0).getSnps());
+		assertEquals(20001, chunks.get(1).getStart());
+		assertEquals(10, chunks.get(1).getSamples());
+
+	}
+
+	public void testDenseRegionIsSplit() {
+
+		// 500 snps in 1kb, then 300 snps in the next 20kb
+		int[] positions = new int[800];
+		for (int i = 0; i < 500; i++) {
+			positions[i] = 1 + i * 2;
+		}
+		for (int i = 0; i < 300; i++) {
+			positions[500 + i] = 1001 + i * 66;
+		}
+
+		VcfChunkPlanner planner = new VcfChunkPlanner(20000);
+		planner.setMaxSnps(200);
+		List<VcfChunk> chunks = planner.plan(positions, 10);
+
+		int snps = 0;
+		int end = 0;
+		for (VcfChunk chunk : chunks) {
+			assertTrue(chunk.getSnps() <= 200);
+			assertTrue(chunk.getStart() > end);
+			end = chunk.getEnd();
+			snps += chunk.getSnps();
+		}
+		assertEquals(800, snps);
+		assertEquals(1, chunks.get(0).getStart());
+		assertEquals(400, chunks.get(0).getEnd());
+		assertEquals(401, chunks.get(1).getStart());
+
+	}
+
+	public void testWorkAndSamePosition() {
+
+		int[] positions = { 10, 20, 30, 30, 30, 40 };
+
+		VcfChunkPlanner planner = new VcfChunkPlanner(1000);
+		planner.setMaxWork(300);
+		planner.setMinSnps(1);
+
+		// 3 snps x 100 samples per chunk, but position 30 is not split
+		List<VcfChunk> chunks = planner.plan(positions, 100);
+		assertEquals(2, chunks.size());
+		assertEquals(1, chunks.get(0).getStart());
+		assertEquals(5, chunks.get(0).getSnps());
+		assertEquals(39, chunks.get(0).getEnd());
+		assertEquals(40, chunks.get(1).getStart());
+
+	}
+
+	public void testSmallChunksAreMerged() {
+
+		// 150 snps, 5 snps after the work limit
+		int[] positions = new int[155];
+		for (int i = 0; i < positions.length; i++) {
+			positions[i] = 1 + i * 100;
+		}
+
+		VcfChunkPlanner planner = new VcfChunkPlanner(20000);
+		planner.setMaxWork(1500);
+		List<VcfChunk> chunks = planner.plan(positions, 10);
+		assertEquals(1, chunks.size());
+		assertEquals(155, chunks.get(0).getSnps());
+		assertEquals(1, chunks.get(0).getStart());
+		assertEquals(20000, chunks.get(0).getEnd());
+
+	}
+
+	public void testMergeIsLimitedByWidth() {
+
+		// 150 snps, gap (centromere), 5 snps
+		int[] positions = new int[155];
+		for (int i = 0; i < 150; i++) {
+			positions[i] = 1 + i * 100;
+		}
+		for (int i = 0; i < 5; i++) {
+			positions[150 + i] = 100001 + i * 100;
+		}
+
+		VcfChunkPlanner planner = new VcfChunkPlanner(20000);
+		List<VcfChunk> chunks = planner.plan(positions, 10);
+		assertEquals(2, chunks.size());
+		assertEquals(150, chunks.get(0).getSnps());
+		assertEquals(20000, chunks.get(0).getEnd());
+		assertEquals(5, chunks.get(1).getSnps());
+		assertEquals(100001, chunks.get(1).getStart());
+		assertEquals(120000, chunks.get(1).getEnd());
+
+	}
+
+	public void testChunksAreContiguous() {
+
+		// first snp in the middle of a window, dense and sparse regions
+		int[] positions = new int[1000];
+		positions[0] = 25000;
+		for (int i = 1; i < positions.length; i++) {
+			positions[i] = positions[i - 1] + (i < 500 ? 3 : 150);
+		}
+
+		VcfChunkPlanner planner = new VcfChunkPlanner(20000);
+		planner.setMaxSnps(200);
+		List<VcfChunk> chunks = planner.plan(positions, 10);
+
+		assertEquals(20001, chunks.get(0).getStart());
+		int snps = 0;
+		for (int i = 0; i < chunks.size(); i++) {
+			VcfChunk chunk = chunks.get(i);
+			assertTrue(chunk.getEnd() - chunk.getStart() < 20000);
+			if (i > 0) {
+				assertEquals(chunks.get(i - 1).getEnd() + 1, chunk.getStart());
+			}
+			snps += chunk.getSnps();
+		}
+		assertEquals(1000, snps);
+		assertTrue(chunks.get(chunks.size() - 1).getEnd() >= positions[positions.length - 1]);
+
+	}
+
+}